@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.dou.opencl.BufferPool;
+import org.dou.opencl.ClRuntime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Device buffer allocation churn, allocate and release per operation versus pooled buffers. The
+ * allocating path is a pool without idle buffers, so every acquisition allocates and every
+ * release frees device memory.
+ *
+ * @author Viktor Gubin
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class AllocationBenchmark {
+
+  @Param({"4096", "1048576", "67108864"})
+  public int size;
+
+  private BufferPool allocating;
+  private BufferPool pooled;
+
+  @Setup
+  public void setUp(OpenClState cl) {
+    allocating = new BufferPool(cl.getContext(), 0L);
+    pooled = new BufferPool(cl.getContext(), Long.MAX_VALUE);
+  }
+
+  @TearDown
+  public void tearDown() {
+    allocating.close();
+    pooled.close();
+  }
+
+  @Benchmark
+  public void allocateRelease() {
+    ClRuntime.VideoMemBuffer buffer = allocating.acquire(size);
+    allocating.release(buffer);
+  }
+
+  @Benchmark
+  public void pooled() {
+    ClRuntime.VideoMemBuffer buffer = pooled.acquire(size);
+    pooled.release(buffer);
+  }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.dou.opencl.ClRuntime;
+import org.dou.opencl.NDRange;
+import org.dou.opencl.PreparedLaunch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of binding the mul_arrays kernel arguments with {@link ClRuntime.Kernel#arg} and with
+ * {@link PreparedLaunch#set} for changed and unchanged values.
+ *
+ * @author Viktor Gubin
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class KernelArgBenchmark {
+
+  private ClRuntime.Program program;
+  private ClRuntime.Kernel kernel;
+  private PreparedLaunch prepared;
+  private ClRuntime.VideoMemBuffer a;
+  private ClRuntime.VideoMemBuffer b;
+  private ClRuntime.VideoMemBuffer answer;
+  private boolean swap;
+
+  @Setup
+  public void setUp(OpenClState cl) {
+    program = cl.getContext().createProgramWithSource(OpenClState.MUL_ARRAYS);
+    ClRuntime.CommandQueue queue = program.getCommandQueue();
+    a = queue.createReadWriteBuffer(Float.BYTES);
+    b = queue.createReadWriteBuffer(Float.BYTES);
+    answer = queue.createReadWriteBuffer(Float.BYTES);
+    kernel = program.createKernel("mul_arrays");
+    prepared = program.createKernel("mul_arrays").prepare(NDRange.of(1));
+  }
+
+  @TearDown
+  public void tearDown() {
+    prepared.close();
+    program.close();
+  }
+
+  @Benchmark
+  public ClRuntime.Kernel kernelArgs() {
+    kernel.flush();
+    return kernel.arg(a).arg(b).arg(answer);
+  }
+
+  @Benchmark
+  public PreparedLaunch preparedUnchanged() {
+    return prepared.set(0, a).set(1, b).set(2, answer);
+  }
+
+  @Benchmark
+  public PreparedLaunch preparedChanged() {
+    swap = !swap;
+    return prepared.set(0, swap ? a : b).set(1, swap ? b : a).set(2, answer);
+  }
+
+}
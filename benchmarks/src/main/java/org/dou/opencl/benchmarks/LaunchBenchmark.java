@@ -0,0 +1,104 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl.benchmarks;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.dou.opencl.ClRuntime;
+import org.dou.opencl.NDRange;
+import org.dou.opencl.PreparedLaunch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Launch overhead of the mul_arrays kernel from {@link org.dou.opencl.MultArrays}, launched the
+ * plain way, with an event and with a prepared launch. Small work sizes measure the overhead
+ * itself.
+ *
+ * @author Viktor Gubin
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class LaunchBenchmark {
+
+  @Param({"1", "1024", "1048576"})
+  public int workItems;
+
+  private ClRuntime.Program program;
+  private ClRuntime.CommandQueue queue;
+  private ClRuntime.Kernel kernel;
+  private PreparedLaunch prepared;
+  private NDRange range;
+
+  @Setup
+  public void setUp(OpenClState cl) {
+    program = cl.getContext().createProgramWithSource(OpenClState.MUL_ARRAYS);
+    queue = program.getCommandQueue();
+    ClRuntime.VideoMemBuffer a = queue.createReadWriteBuffer(workItems * Float.BYTES);
+    ClRuntime.VideoMemBuffer b = queue.createReadWriteBuffer(workItems * Float.BYTES);
+    ClRuntime.VideoMemBuffer answer = queue.createReadWriteBuffer(workItems * Float.BYTES);
+    range = NDRange.of(workItems);
+    kernel = program.createKernel("mul_arrays");
+    kernel.arg(a).arg(b).arg(answer);
+    prepared = program.createKernel("mul_arrays").prepare(range).set(0, a).set(1, b).set(2,
+        answer);
+  }
+
+  @TearDown
+  public void tearDown() {
+    prepared.close();
+    program.close();
+  }
+
+  @Benchmark
+  public void execute() throws ExecutionException {
+    kernel.execute(range);
+    queue.finish();
+  }
+
+  @Benchmark
+  public void enqueueWithEvent() throws ExecutionException {
+    try (ClRuntime.Event event = kernel.enqueue(range)) {
+      event.waitFor();
+    }
+  }
+
+  @Benchmark
+  public void preparedLaunch() throws ExecutionException {
+    prepared.launch();
+    queue.finish();
+  }
+
+  /**
+   * Host side cost only, commands are drained once per 64 launches
+   */
+  @Benchmark
+  @OperationsPerInvocation(64)
+  public void preparedLaunchBatch() throws ExecutionException {
+    for (int i = 0; i < 64; i++) {
+      prepared.launch();
+    }
+    queue.finish();
+  }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl.benchmarks;
+
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import org.dou.opencl.ClRuntime;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * OpenCL runtime and context shared by benchmarks of a fork. Device is selected by
+ * <code>opencl.device</code> system property, one of <code>cpu</code> (default),
+ * <code>gpu</code> or <code>any</code>.
+ *
+ * @author Viktor Gubin
+ */
+@State(Scope.Benchmark)
+public class OpenClState {
+
+  /**
+   * Source of the mul_arrays kernel from {@link org.dou.opencl.MultArrays}
+   */
+  static final String MUL_ARRAYS =
+      "kernel void mul_arrays(global const float *a, global const float *b, global float *answer) { \n"
+      + " unsigned int xid = get_global_id(0); \n"
+      + " answer[xid] = a[xid] * b[xid]; \n"
+      + " } \n";
+
+  private ClRuntime runtime;
+  private ClRuntime.Context context;
+
+  @Setup
+  public void setUp() {
+    runtime = new ClRuntime();
+    ClRuntime.Device device = selectDevice(runtime, System.getProperty("opencl.device", "cpu"));
+    context = device.createContext();
+  }
+
+  private static ClRuntime.Device selectDevice(ClRuntime runtime, String type) {
+    NavigableSet<ClRuntime.Device> devices = new TreeSet<>();
+    for (ClRuntime.Platform platform : runtime.getComputePlatforms()) {
+      switch (type) {
+        case "cpu":
+          devices.addAll(platform.getCPUDevices());
+          break;
+        case "gpu":
+          devices.addAll(platform.getGPUDevices());
+          break;
+        case "any":
+          devices.addAll(platform.getAllDevices());
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown OpenCL device type " + type);
+      }
+    }
+    if (devices.isEmpty()) {
+      throw new IllegalStateException("No " + type + " OpenCL devices, e.g. install POCL");
+    }
+    return devices.first();
+  }
+
+  public ClRuntime.Context getContext() {
+    return context;
+  }
+
+  @TearDown
+  public void tearDown() {
+    context.close();
+    runtime.close();
+  }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.dou.opencl.ClRuntime;
+import org.lwjgl.system.MemoryUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Host to device transfer of a buffer: host pointer buffer copied on device, copy-in write and
+ * write into mapped staging buffer copied on device. Each operation completes when the data is in
+ * the device buffer.
+ *
+ * @author Viktor Gubin
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TransferBenchmark {
+
+  @Param({"4096", "65536", "1048576", "16777216", "268435456", "1073741824"})
+  public int size;
+
+  private ClRuntime.CommandQueue queue;
+  private ByteBuffer host;
+  private ClRuntime.VideoMemBuffer device;
+  private ClRuntime.VideoMemBuffer staging;
+
+  @Setup
+  public void setUp(OpenClState cl) {
+    queue = cl.getContext().createCommandQueue();
+    host = MemoryUtil.memAlloc(size);
+    for (int i = 0; i < size; i += Long.BYTES) {
+      host.putLong(i, i);
+    }
+    device = queue.createReadWriteBuffer(size);
+    staging = queue.createStagingBuffer(size);
+  }
+
+  @TearDown
+  public void tearDown() {
+    queue.close();
+    MemoryUtil.memFree(host);
+  }
+
+  /**
+   * Host pointer buffers stay bound to the creating queue until it is closed, so each invocation
+   * uses its own queue
+   */
+  @State(Scope.Thread)
+  public static class InvocationQueue {
+    private ClRuntime.CommandQueue queue;
+
+    @Setup(Level.Invocation)
+    public void setUp(OpenClState cl) {
+      queue = cl.getContext().createCommandQueue();
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+      queue.close();
+    }
+  }
+
+  @Benchmark
+  public void hostPtr(InvocationQueue invocation) {
+    ClRuntime.CommandQueue cq = invocation.queue;
+    ClRuntime.VideoMemBuffer src = cq.hostPtrReadBuffer(host);
+    cq.enqueueCopy(src, 0, device, 0, size).close();
+    cq.finish();
+  }
+
+  @Benchmark
+  public void copyIn() {
+    queue.enqueueWrite(device, 0, host).close();
+    queue.finish();
+  }
+
+  @Benchmark
+  public void mapped() {
+    ByteBuffer mapped = queue.map(staging, ClRuntime.MapAccess.WRITE);
+    MemoryUtil.memCopy(host, mapped);
+    queue.unmap(staging, mapped).close();
+    // staging buffer is host side memory, data is on device only after the copy
+    queue.enqueueCopy(staging, 0, device, 0, size).close();
+    queue.finish();
+  }
+
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Lazy elementwise expression over {@link DeviceArray}s. Operations only record a node of the
+ * expression graph, and {@link #evaluate()} generates a single fused kernel computing the whole
+ * graph per element, so intermediate values stay in registers instead of device memory, e.g.
+ *
+ * <pre>
+ * DeviceArray r = a.lazy().mul(b.lazy()).add(c.lazy().mul(d.lazy())).sub(e.lazy()).evaluate();
+ * </pre>
+ *
+ * reads five arrays and writes one, while eager operations write and read back four
+ * intermediate arrays. Sub expressions used several times are computed once per element.
+ *
+ * Kernel source depends only on the expression shape, i.e. operations, types and the order of
+ * distinct input arrays, while arrays and scalar values are kernel arguments, so fused kernels
+ * are built once per shape and cached by {@link DeviceArrays}.
+ *
+ * Expressions are immutable and thread safe, arrays must stay open until evaluated.
+ *
+ * @author Viktor Gubin
+ */
+public final class ArrayExpr {
+
+  private enum Kind {
+    INPUT, SCALAR, UNARY, BINARY, FMA, SELECT, CONVERT
+  }
+
+  private final Kind kind;
+  private final ElementType type;
+  private final ArrayExpr[] operands;
+  private final Object op;
+  private final DeviceArray input;
+  private final Number scalar;
+
+  private ArrayExpr(Kind kind, ElementType type, Object op, DeviceArray input, Number scalar,
+      ArrayExpr... operands) {
+    this.kind = kind;
+    this.type = type;
+    this.op = op;
+    this.input = input;
+    this.scalar = scalar;
+    this.operands = operands;
+  }
+
+  /**
+   * Returns expression leaf reading the array
+   *
+   * @param array input array
+   * @return new expression
+   */
+  public static ArrayExpr of(DeviceArray array) {
+    return new ArrayExpr(Kind.INPUT, array.getType(), null, array, null);
+  }
+
+  /**
+   * Returns expression leaf of scalar value
+   *
+   * @param type scalar type
+   * @param value scalar value
+   * @return new expression
+   */
+  public static ArrayExpr scalar(ElementType type, Number value) {
+    return new ArrayExpr(Kind.SCALAR, type, null, null, type.convert(value));
+  }
+
+  public ElementType getType() {
+    return type;
+  }
+
+  private void checkType(ArrayExpr other) {
+    if (type != other.type) {
+      throw new IllegalArgumentException("Operand type mismatch " + type + " != " + other.type);
+    }
+  }
+
+  public ArrayExpr map(DeviceArray.UnaryOp unary) {
+    // fail fast on unsupported type
+    unary.expression(type, "x");
+    return new ArrayExpr(Kind.UNARY, type, unary, null, null, this);
+  }
+
+  public ArrayExpr neg() {
+    return map(DeviceArray.UnaryOp.NEG);
+  }
+
+  public ArrayExpr abs() {
+    return map(DeviceArray.UnaryOp.ABS);
+  }
+
+  public ArrayExpr exp() {
+    return map(DeviceArray.UnaryOp.EXP);
+  }
+
+  public ArrayExpr log() {
+    return map(DeviceArray.UnaryOp.LOG);
+  }
+
+  public ArrayExpr sqrt() {
+    return map(DeviceArray.UnaryOp.SQRT);
+  }
+
+  public ArrayExpr zip(DeviceArray.BinaryOp binary, ArrayExpr other) {
+    checkType(other);
+    return new ArrayExpr(Kind.BINARY, binary.resultType(type), binary, null, null, this, other);
+  }
+
+  /**
+   * Applies binary operation to each element and the scalar
+   *
+   * @param binary operation
+   * @param value right hand operand, converted into this expression type
+   * @return new expression
+   */
+  public ArrayExpr zip(DeviceArray.BinaryOp binary, Number value) {
+    return zip(binary, scalar(type, value));
+  }
+
+  public ArrayExpr add(ArrayExpr other) {
+    return zip(DeviceArray.BinaryOp.ADD, other);
+  }
+
+  public ArrayExpr add(Number value) {
+    return zip(DeviceArray.BinaryOp.ADD, value);
+  }
+
+  public ArrayExpr sub(ArrayExpr other) {
+    return zip(DeviceArray.BinaryOp.SUB, other);
+  }
+
+  public ArrayExpr sub(Number value) {
+    return zip(DeviceArray.BinaryOp.SUB, value);
+  }
+
+  public ArrayExpr mul(ArrayExpr other) {
+    return zip(DeviceArray.BinaryOp.MUL, other);
+  }
+
+  public ArrayExpr mul(Number value) {
+    return zip(DeviceArray.BinaryOp.MUL, value);
+  }
+
+  public ArrayExpr div(ArrayExpr other) {
+    return zip(DeviceArray.BinaryOp.DIV, other);
+  }
+
+  public ArrayExpr div(Number value) {
+    return zip(DeviceArray.BinaryOp.DIV, value);
+  }
+
+  public ArrayExpr min(ArrayExpr other) {
+    return zip(DeviceArray.BinaryOp.MIN, other);
+  }
+
+  public ArrayExpr max(ArrayExpr other) {
+    return zip(DeviceArray.BinaryOp.MAX, other);
+  }
+
+  public ArrayExpr lt(ArrayExpr other) {
+    return zip(DeviceArray.BinaryOp.LT, other);
+  }
+
+  public ArrayExpr le(ArrayExpr other) {
+    return zip(DeviceArray.BinaryOp.LE, other);
+  }
+
+  public ArrayExpr gt(ArrayExpr other) {
+    return zip(DeviceArray.BinaryOp.GT, other);
+  }
+
+  public ArrayExpr ge(ArrayExpr other) {
+    return zip(DeviceArray.BinaryOp.GE, other);
+  }
+
+  public ArrayExpr eq(ArrayExpr other) {
+    return zip(DeviceArray.BinaryOp.EQ, other);
+  }
+
+  public ArrayExpr ne(ArrayExpr other) {
+    return zip(DeviceArray.BinaryOp.NE, other);
+  }
+
+  /**
+   * Fused multiply-add, i.e. <code>this * factor + addend</code> elementwise
+   *
+   * @param factor multiplier
+   * @param addend addend
+   * @return new expression
+   */
+  public ArrayExpr fma(ArrayExpr factor, ArrayExpr addend) {
+    checkType(factor);
+    checkType(addend);
+    return new ArrayExpr(Kind.FMA, type, null, null, null, this, factor, addend);
+  }
+
+  /**
+   * Selects elements by this int mask, i.e. <code>mask != 0 ? ifTrue : ifFalse</code>
+   *
+   * @param ifTrue elements selected by non zero mask
+   * @param ifFalse elements selected by zero mask
+   * @return new expression
+   */
+  public ArrayExpr select(ArrayExpr ifTrue, ArrayExpr ifFalse) {
+    if (ElementType.INT != type) {
+      throw new IllegalArgumentException("Mask must be an int expression");
+    }
+    ifTrue.checkType(ifFalse);
+    return new ArrayExpr(Kind.SELECT, ifTrue.type, null, null, null, this, ifTrue, ifFalse);
+  }
+
+  public ArrayExpr convert(ElementType target) {
+    return new ArrayExpr(Kind.CONVERT, target, null, null, null, this);
+  }
+
+  /**
+   * Generates fused kernel for the expression and enqueues it
+   *
+   * @return new array with the expression value
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public DeviceArray evaluate() throws ExecutionException {
+    Codegen codegen = new Codegen();
+    String result = codegen.emit(this);
+    if (codegen.inputs.isEmpty()) {
+      throw new IllegalStateException("Expression without arrays has no length");
+    }
+    DeviceArray first = codegen.inputs.get(0);
+    return first.getOwner().elementwise(first.length(), type, codegen.statements.toString(),
+        result, codegen.inputs.toArray(new DeviceArray[0]),
+        codegen.scalarTypes.toArray(new ElementType[0]), codegen.scalars.toArray(new Number[0]));
+  }
+
+  /**
+   * Returns OpenCL C source of the fused kernel, e.g. for debugging
+   *
+   * @return kernel source
+   */
+  public String toSource() {
+    Codegen codegen = new Codegen();
+    String result = codegen.emit(this);
+    ElementType[] inputTypes = new ElementType[codegen.inputs.size()];
+    for (int i = 0; i < inputTypes.length; i++) {
+      inputTypes[i] = codegen.inputs.get(i).getType();
+    }
+    return DeviceArrays.elementwiseSource(inputTypes,
+        codegen.scalarTypes.toArray(new ElementType[0]), type, codegen.statements.toString(),
+        result);
+  }
+
+  /**
+   * Kernel code generator, emits one temporary per operation node in topological order
+   */
+  private static final class Codegen {
+    private final Map<ArrayExpr, String> names = new IdentityHashMap<>();
+    private final Map<DeviceArray, String> arrays = new IdentityHashMap<>();
+    private final List<DeviceArray> inputs = new ArrayList<>();
+    private final List<ElementType> scalarTypes = new ArrayList<>();
+    private final List<Number> scalars = new ArrayList<>();
+    private final StringBuilder statements = new StringBuilder();
+    private int temporaries;
+
+    String emit(ArrayExpr node) {
+      String result = names.get(node);
+      if (null != result) {
+        return result;
+      }
+      switch (node.kind) {
+        case INPUT:
+          result = arrays.get(node.input);
+          if (null == result) {
+            result = "a" + inputs.size();
+            inputs.add(node.input);
+            arrays.put(node.input, result);
+          }
+          break;
+        case SCALAR:
+          result = "s" + scalars.size();
+          scalarTypes.add(node.type);
+          scalars.add(node.scalar);
+          break;
+        default:
+          result = temporary(node.type, expression(node));
+          break;
+      }
+      names.put(node, result);
+      return result;
+    }
+
+    private String expression(ArrayExpr node) {
+      ArrayExpr[] operands = node.operands;
+      switch (node.kind) {
+        case UNARY:
+          return ((DeviceArray.UnaryOp) node.op).expression(operands[0].type, emit(operands[0]));
+        case BINARY:
+          return ((DeviceArray.BinaryOp) node.op).expression(operands[0].type, emit(operands[0]),
+              emit(operands[1]));
+        case FMA:
+          String x = emit(operands[0]);
+          String y = emit(operands[1]);
+          String z = emit(operands[2]);
+          return node.type.isFloatingPoint() ? "fma(" + x + ", " + y + ", " + z + ")"
+              : x + " * " + y + " + " + z;
+        case SELECT:
+          return "0 != " + emit(operands[0]) + " ? " + emit(operands[1]) + " : "
+              + emit(operands[2]);
+        default:
+          return "(" + node.type.clName() + ") " + emit(operands[0]);
+      }
+    }
+
+    private String temporary(ElementType type, String expression) {
+      String result = "t" + temporaries++;
+      statements.append(" const ").append(type.clName()).append(' ').append(result)
+          .append(" = ").append(expression).append("; \n");
+      return result;
+    }
+  }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.lwjgl.opencl.CL10.CL_MEM_READ_WRITE;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * OpenCL device memory buffer pool. Buffers are allocated in power of two size classes and reused
+ * once returned into the pool with {@link #release(ClRuntime.VideoMemBuffer)}.
+ *
+ * Idle buffers are kept up to the maximum idle bytes limit, {@link #trim()} releases idle buffers
+ * exceeding per size class high-water mark of buffers in use since previous trim.
+ *
+ * Pool is thread safe, idle lists and the closed state are guarded by a single lock, which is never
+ * held while device memory is allocated or released.
+ *
+ * @author Viktor Gubin
+ */
+public final class BufferPool implements AutoCloseable {
+
+  private static final int MIN_SHIFT = 8;
+  private static final int MAX_SHIFT = 30;
+
+  private final ClRuntime.Context context;
+  private final int flags;
+  private final long maxIdleBytes;
+  private final SizeClass[] classes;
+  private final AtomicLong idleBytes;
+  private final LongAdder hits;
+  private final LongAdder misses;
+  // guards idle lists and closed state
+  private final Object lock;
+  private boolean closed;
+
+  /**
+   * Creates read-write buffer pool
+   *
+   * @param context OpenCL context to allocate buffers in
+   * @param maxIdleBytes maximum total size of idle buffers kept by the pool
+   */
+  public BufferPool(ClRuntime.Context context, long maxIdleBytes) {
+    this(context, CL_MEM_READ_WRITE, maxIdleBytes);
+  }
+
+  /**
+   * Creates buffer pool
+   *
+   * @param context OpenCL context to allocate buffers in
+   * @param flags OpenCL memory flags for all pool buffers
+   * @param maxIdleBytes maximum total size of idle buffers kept by the pool
+   */
+  public BufferPool(ClRuntime.Context context, int flags, long maxIdleBytes) {
+    this.context = context;
+    this.flags = flags;
+    this.maxIdleBytes = maxIdleBytes;
+    this.classes = new SizeClass[MAX_SHIFT + 1];
+    for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+      classes[shift] = new SizeClass(1 << shift);
+    }
+    this.idleBytes = new AtomicLong();
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.lock = new Object();
+  }
+
+  static int shiftOf(int capacityBytes) {
+    if (capacityBytes <= 0 || capacityBytes > (1 << MAX_SHIFT)) {
+      throw new IllegalArgumentException("Buffer size out of pool range: " + capacityBytes);
+    }
+    return Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(capacityBytes - 1));
+  }
+
+  /**
+   * Takes buffer from the pool or allocates new one. Returned buffer capacity is the requested
+   * capacity rounded up to the power of two
+   *
+   * @param capacityBytes requested buffer size in bytes
+   * @return device memory buffer
+   */
+  public ClRuntime.VideoMemBuffer acquire(int capacityBytes) {
+    SizeClass sizeClass = classes[shiftOf(capacityBytes)];
+    ClRuntime.VideoMemBuffer result;
+    synchronized (lock) {
+      if (closed) {
+        throw new IllegalStateException("Buffer pool is closed");
+      }
+      sizeClass.markInUse();
+      result = sizeClass.idle.pollFirst();
+      if (null != result) {
+        idleBytes.addAndGet(-sizeClass.size);
+      }
+    }
+    if (null != result) {
+      hits.increment();
+      return result;
+    }
+    misses.increment();
+    try {
+      return context.createBuffer(sizeClass.size, flags);
+    } catch (RuntimeException | OutOfMemoryError err) {
+      sizeClass.inUse.decrementAndGet();
+      throw err;
+    }
+  }
+
+  /**
+   * Returns buffer taken with {@link #acquire(int)} into the pool. Buffer is released when pool is
+   * closed or maximum idle bytes are exceeded
+   *
+   * @param buffer buffer to return
+   * @throws IllegalArgumentException when buffer capacity is not exactly a pool size class
+   */
+  public void release(ClRuntime.VideoMemBuffer buffer) {
+    SizeClass sizeClass = classes[shiftOf(buffer.getCapacity())];
+    // buffers of other sizes can't come from the pool
+    if (sizeClass.size != buffer.getCapacity()) {
+      throw new IllegalArgumentException("Buffer is not allocated by the pool");
+    }
+    synchronized (lock) {
+      sizeClass.inUse.decrementAndGet();
+      if (!closed && idleBytes.get() + sizeClass.size <= maxIdleBytes) {
+        idleBytes.addAndGet(sizeClass.size);
+        sizeClass.idle.offerFirst(buffer);
+        return;
+      }
+    }
+    buffer.free();
+  }
+
+  /**
+   * Releases idle buffers exceeding number of buffers simultaneously used since previous trim, in
+   * each size class
+   */
+  public void trim() {
+    List<ClRuntime.VideoMemBuffer> excessive = new ArrayList<>();
+    synchronized (lock) {
+      for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+        SizeClass sizeClass = classes[shift];
+        int inUse = sizeClass.inUse.get();
+        int keep = Math.max(0, sizeClass.peak.getAndSet(inUse) - inUse);
+        // least recently returned buffers are on the tail
+        for (int excess = sizeClass.idle.size() - keep; excess > 0; excess--) {
+          excessive.add(sizeClass.idle.pollLast());
+          idleBytes.addAndGet(-sizeClass.size);
+        }
+      }
+    }
+    excessive.forEach(ClRuntime.VideoMemBuffer::free);
+  }
+
+  /**
+   * Returns number of acquisitions served by an idle pooled buffer
+   *
+   * @return pool hits count
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * Returns number of acquisitions which required new device memory allocation
+   *
+   * @return pool misses count
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * Returns total size of idle buffers kept by the pool
+   *
+   * @return idle bytes
+   */
+  public long getIdleBytes() {
+    return idleBytes.get();
+  }
+
+  /**
+   * Releases all idle buffers, buffers in use are released when returned into the pool
+   */
+  @Override
+  public void close() {
+    List<ClRuntime.VideoMemBuffer> idle = new ArrayList<>();
+    synchronized (lock) {
+      closed = true;
+      for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+        SizeClass sizeClass = classes[shift];
+        idle.addAll(sizeClass.idle);
+        idleBytes.addAndGet(-(long) sizeClass.size * sizeClass.idle.size());
+        sizeClass.idle.clear();
+      }
+    }
+    idle.forEach(ClRuntime.VideoMemBuffer::free);
+  }
+
+  private static final class SizeClass {
+    private final int size;
+    private final Deque<ClRuntime.VideoMemBuffer> idle;
+    private final AtomicInteger inUse;
+    private final AtomicInteger peak;
+
+    SizeClass(int size) {
+      this.size = size;
+      this.idle = new ArrayDeque<>();
+      this.inUse = new AtomicInteger();
+      this.peak = new AtomicInteger();
+    }
+
+    void markInUse() {
+      int current = inUse.incrementAndGet();
+      peak.accumulateAndGet(current, Math::max);
+    }
+  }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Multi-buffered upload, compute, download pipeline. Each stage runs on its own command queue, so
+ * chunk N+1 is uploaded while chunk N is computed and chunk N-1 is downloaded.
+ *
+ * Chunks are assigned to slots round robin, a slot is a set of device and host buffers owned by
+ * the {@link Handler}. Slot is reused only when the previous chunk in it is completely downloaded,
+ * so the number of chunks in flight never exceeds the pipeline depth.
+ *
+ * Number of chunks may be unknown in advance, e.g. for streamed input, then the handler ends the
+ * run by returning null from {@link Handler#upload(long, int, ClRuntime.CommandQueue)}.
+ *
+ * @author Viktor Gubin
+ */
+public final class ChunkPipeline implements AutoCloseable {
+
+  private final ClRuntime.CommandQueue upload;
+  private final ClRuntime.CommandQueue compute;
+  private final ClRuntime.CommandQueue download;
+  private final int depth;
+
+  /**
+   * Creates double buffered pipeline
+   *
+   * @param context OpenCL context to create pipeline queues in
+   */
+  public ChunkPipeline(ClRuntime.Context context) {
+    this(context, 2);
+  }
+
+  /**
+   * Creates pipeline
+   *
+   * @param context OpenCL context to create pipeline queues in
+   * @param depth number of slots i.e. 2 for double or 3 for triple buffering
+   */
+  public ChunkPipeline(ClRuntime.Context context, int depth) {
+    if (depth < 1) {
+      throw new IllegalArgumentException("Positive pipeline depth expected");
+    }
+    this.depth = depth;
+    this.upload = context.createCommandQueue();
+    this.compute = context.createCommandQueue();
+    this.download = context.createCommandQueue();
+  }
+
+  public int getDepth() {
+    return depth;
+  }
+
+  public ClRuntime.CommandQueue getUploadQueue() {
+    return upload;
+  }
+
+  public ClRuntime.CommandQueue getComputeQueue() {
+    return compute;
+  }
+
+  public ClRuntime.CommandQueue getDownloadQueue() {
+    return download;
+  }
+
+  /**
+   * Processes chunks through the pipeline until the handler has no more chunks to upload, returns
+   * when all chunks are downloaded
+   *
+   * @param handler enqueues chunk commands
+   * @return number of processed chunks
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public long run(Handler handler) throws ExecutionException {
+    return run(Long.MAX_VALUE, handler);
+  }
+
+  /**
+   * Processes chunks through the pipeline, returns when all chunks are downloaded
+   *
+   * @param chunks maximum number of chunks to process
+   * @param handler enqueues chunk commands
+   * @return number of processed chunks, less than maximum when the handler has no more chunks
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public long run(long chunks, Handler handler) throws ExecutionException {
+    final ClRuntime.Event[] uploaded = new ClRuntime.Event[depth];
+    final ClRuntime.Event[] computed = new ClRuntime.Event[depth];
+    final ClRuntime.Event[] downloaded = new ClRuntime.Event[depth];
+    final long[] inFlight = new long[depth];
+    long count = 0;
+    try {
+      for (; count < chunks; count++) {
+        final int slot = (int) (count % depth);
+        if (null != downloaded[slot]) {
+          complete(handler, inFlight[slot], slot, uploaded, computed, downloaded);
+        }
+        inFlight[slot] = count;
+        uploaded[slot] = handler.upload(count, slot, upload);
+        if (null == uploaded[slot]) {
+          break;
+        }
+        computed[slot] = handler.compute(count, slot, compute, uploaded[slot]);
+        downloaded[slot] = handler.download(count, slot, download, computed[slot]);
+        upload.flush();
+        compute.flush();
+        download.flush();
+      }
+      for (long chunk = Math.max(0L, count - depth); chunk < count; chunk++) {
+        final int slot = (int) (chunk % depth);
+        if (null != downloaded[slot]) {
+          complete(handler, chunk, slot, uploaded, computed, downloaded);
+        }
+      }
+      return count;
+    } finally {
+      for (int slot = 0; slot < depth; slot++) {
+        release(uploaded, computed, downloaded, slot);
+      }
+    }
+  }
+
+  private static void complete(Handler handler, long chunk, int slot, ClRuntime.Event[] uploaded,
+      ClRuntime.Event[] computed, ClRuntime.Event[] downloaded) {
+    downloaded[slot].waitFor();
+    release(uploaded, computed, downloaded, slot);
+    handler.completed(chunk, slot);
+  }
+
+  private static void release(ClRuntime.Event[] uploaded, ClRuntime.Event[] computed,
+      ClRuntime.Event[] downloaded, int slot) {
+    for (ClRuntime.Event[] events : new ClRuntime.Event[][] {uploaded, computed, downloaded}) {
+      if (null != events[slot]) {
+        events[slot].close();
+        events[slot] = null;
+      }
+    }
+  }
+
+  /**
+   * Releases pipeline command queues and memory buffers created with them
+   */
+  @Override
+  public void close() {
+    upload.close();
+    compute.close();
+    download.close();
+  }
+
+  /**
+   * Enqueues commands of a pipeline chunk. Each method must return the event of its last enqueued
+   * command, which is owned by the pipeline afterwards
+   */
+  public interface Handler {
+
+    /**
+     * Enqueues host to device transfer of the chunk
+     *
+     * @param chunk chunk number
+     * @param slot slot number to transfer chunk into
+     * @param queue upload command queue
+     * @return upload event, or null when there are no more chunks
+     */
+    ClRuntime.Event upload(long chunk, int slot, ClRuntime.CommandQueue queue);
+
+    /**
+     * Enqueues chunk computation, see {@link ClRuntime.Kernel#enqueue(ClRuntime.CommandQueue,
+     * NDRange, ClRuntime.Event...)}
+     *
+     * @param chunk chunk number
+     * @param slot slot number chunk is uploaded into
+     * @param queue compute command queue
+     * @param uploaded upload event to wait for
+     * @return compute event
+     * @throws ExecutionException in case of OpenCL error
+     */
+    ClRuntime.Event compute(long chunk, int slot, ClRuntime.CommandQueue queue,
+        ClRuntime.Event uploaded) throws ExecutionException;
+
+    /**
+     * Enqueues device to host transfer of the chunk result
+     *
+     * @param chunk chunk number
+     * @param slot slot number chunk is computed in
+     * @param queue download command queue
+     * @param computed compute event to wait for
+     * @return download event
+     */
+    ClRuntime.Event download(long chunk, int slot, ClRuntime.CommandQueue queue,
+        ClRuntime.Event computed);
+
+    /**
+     * Called on the pipeline thread when chunk result is downloaded, before the slot is reused
+     *
+     * @param chunk chunk number
+     * @param slot slot number
+     */
+    default void completed(long chunk, int slot) {}
+
+  }
+
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Device characterization tool in the spirit of clpeak. For every OpenCL device measures host to
+ * device, device to host and device to device bandwidth, kernel launch latency and single, double
+ * and half precision compute throughput for vector widths 1 to 16.
+ *
+ * Prints human readable report to the standard output, and machine readable JSON when started
+ * with <code>--json &lt;file&gt;</code> or <code>--json -</code> for the standard output.
+ *
+ * Device side times are taken from profiling events, so measurements exclude host overhead except
+ * the launch latency, which is reported both ways.
+ *
+ * @author Viktor Gubin
+ */
+public final class ClPeak {
+
+  private static final int TRANSFER_BYTES = 64 << 20;
+  // first repeat is a warm up
+  private static final int REPEATS = 4;
+  private static final int LAUNCHES = 1000;
+  // multiply-add operations per work item lane
+  private static final int LOOP = 64;
+  private static final int MADS_PER_LOOP = 16;
+  private static final int[] WIDTHS = {1, 2, 4, 8, 16};
+  private static final String LANES = "0123456789abcdef";
+
+  private static final String EMPTY_KERNEL = "kernel void empty(global int *out) { } \n";
+
+  private ClPeak() {}
+
+  public static void main(String[] args) {
+    String json = null;
+    for (int i = 0; i < args.length; i++) {
+      if ("--json".equals(args[i]) && i + 1 < args.length) {
+        json = args[++i];
+      } else {
+        System.err.println("Usage: ClPeak [--json <file>|-]");
+        System.exit(-1);
+      }
+    }
+    PrintStream report = "-".equals(json) ? System.err : System.out;
+    List<Map<String, Object>> devices = new ArrayList<>();
+    try (ClRuntime cl = new ClRuntime()) {
+      for (ClRuntime.Platform platform : cl.getComputePlatforms()) {
+        for (ClRuntime.Device device : platform.getAllDevices()) {
+          Map<String, Object> result = measure(device);
+          devices.add(result);
+          print(result, report);
+        }
+      }
+    }
+    if (null != json) {
+      Map<String, Object> root = new LinkedHashMap<>();
+      root.put("devices", devices);
+      String text = toJson(root, new StringBuilder(), "").append('\n').toString();
+      if ("-".equals(json)) {
+        System.out.print(text);
+      } else {
+        try (Writer out = Files.newBufferedWriter(Paths.get(json), StandardCharsets.UTF_8)) {
+          out.write(text);
+        } catch (IOException exc) {
+          System.err.println(exc.getMessage());
+          System.exit(-1);
+        }
+      }
+    }
+  }
+
+  /**
+   * Measures single device
+   *
+   * @param device device to measure
+   * @return measurements as ordered JSON like map
+   */
+  public static Map<String, Object> measure(ClRuntime.Device device) {
+    DeviceProperties properties = device.getProperties();
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("name", properties.getName());
+    result.put("vendor", properties.getVendor());
+    result.put("version", properties.getVersion());
+    result.put("driverVersion", properties.getDriverVersion());
+    result.put("computeUnits", properties.getComputeUnits());
+    result.put("maxClockFrequency", properties.getMaxClockFrequency());
+    try (ClRuntime.Context context = device.createContext()) {
+      context.setProfilingEnabled(true);
+      try {
+        result.put("bandwidth", bandwidth(context, properties));
+        result.put("launchLatency", launchLatency(context));
+      } catch (ExecutionException | RuntimeException exc) {
+        result.put("error", String.valueOf(exc.getMessage()));
+        return result;
+      }
+      Map<String, Object> flops = new LinkedHashMap<>();
+      flops.put("float", flops(context, properties, "float", Float.BYTES));
+      if (properties.isDoubleSupported()) {
+        flops.put("double", flops(context, properties, "double", Double.BYTES));
+      }
+      if (properties.isHalfSupported()) {
+        flops.put("half", flops(context, properties, "half", Short.BYTES));
+      }
+      result.put("gflops", flops);
+    }
+    return result;
+  }
+
+  private static double deviceTime(ClRuntime.Event event) {
+    try {
+      event.waitFor();
+      return event.getEndTime() - event.getStartTime();
+    } finally {
+      event.close();
+    }
+  }
+
+  /**
+   * Returns best device time of the repeated command in nanoseconds
+   */
+  private static double best(CommandSupplier command) throws ExecutionException {
+    double result = Double.MAX_VALUE;
+    for (int i = 0; i < REPEATS; i++) {
+      double time = Math.max(1D, deviceTime(command.enqueue()));
+      if (i > 0) {
+        result = Math.min(result, time);
+      }
+    }
+    return result;
+  }
+
+  private static Map<String, Object> bandwidth(ClRuntime.Context context,
+      DeviceProperties properties) throws ExecutionException {
+    final int size = (int) Math.min(TRANSFER_BYTES, properties.getMaxMemAllocSize() / 2) & ~3;
+    Map<String, Object> result = new LinkedHashMap<>();
+    ByteBuffer host = MemoryUtil.memCalloc(size);
+    try (ClRuntime.CommandQueue queue = context.createCommandQueue()) {
+      ClRuntime.VideoMemBuffer src = queue.createReadWriteBuffer(size);
+      ClRuntime.VideoMemBuffer dst = queue.createReadWriteBuffer(size);
+      result.put("bytes", size);
+      result.put("hostToDevice", size / best(() -> queue.enqueueWrite(src, 0, host)));
+      result.put("deviceToHost", size / best(() -> queue.enqueueRead(src, 0, host)));
+      result.put("deviceToDevice", size / best(() -> queue.enqueueCopy(src, 0, dst, 0, size)));
+    } finally {
+      MemoryUtil.memFree(host);
+    }
+    return result;
+  }
+
+  private static Map<String, Object> launchLatency(ClRuntime.Context context)
+      throws ExecutionException {
+    Map<String, Object> result = new LinkedHashMap<>();
+    try (ClRuntime.Program program = context.createProgramWithSource(EMPTY_KERNEL)) {
+      ClRuntime.CommandQueue queue = program.getCommandQueue();
+      ClRuntime.Kernel kernel = program.createKernel("empty");
+      kernel.arg(queue.createWriteBuffer(Integer.BYTES));
+      NDRange range = NDRange.of(1);
+      // warm up
+      deviceTime(kernel.enqueue(range));
+      long host = 0;
+      long submit = 0;
+      long device = 0;
+      for (int i = 0; i < LAUNCHES; i++) {
+        long start = System.nanoTime();
+        try (ClRuntime.Event event = kernel.enqueue(range)) {
+          event.waitFor();
+          host += System.nanoTime() - start;
+          submit += event.getStartTime() - event.getQueuedTime();
+          device += event.getEndTime() - event.getStartTime();
+        }
+      }
+      result.put("hostRoundTripUs", host / 1E3 / LAUNCHES);
+      result.put("queuedToStartUs", submit / 1E3 / LAUNCHES);
+      result.put("executionUs", device / 1E3 / LAUNCHES);
+    }
+    return result;
+  }
+
+  /**
+   * Generates compute kernel, lanes are summed up, so compiler can't drop any of them
+   */
+  static String computeKernel(String type, int width) {
+    String vector = 1 == width ? type : type + width;
+    StringBuilder source = new StringBuilder();
+    if ("double".equals(type)) {
+      source.append("#pragma OPENCL EXTENSION cl_khr_fp64 : enable \n");
+    } else if ("half".equals(type)) {
+      source.append("#pragma OPENCL EXTENSION cl_khr_fp16 : enable \n");
+    }
+    source.append("kernel void peak(global ").append(type).append(" *out, const int seed) { \n")
+        .append(" ").append(type).append(" a = (").append(type).append(") seed / (").append(type)
+        .append(") 1000; \n")
+        .append(" ").append(vector).append(" x = (").append(vector).append(") (a); \n")
+        .append(" ").append(vector).append(" y = (").append(vector).append(") ((").append(type)
+        .append(") get_local_id(0)); \n")
+        .append(" for (int i = 0; i < ").append(LOOP).append("; i++) { \n");
+    for (int i = 0; i < MADS_PER_LOOP / 2; i++) {
+      source.append("  x = mad(y, x, y); y = mad(x, y, x); \n");
+    }
+    source.append(" } \n out[get_global_id(0)] = ");
+    if (1 == width) {
+      source.append('y');
+    } else {
+      for (int i = 0; i < width; i++) {
+        source.append(0 == i ? "" : " + ").append("y.s").append(LANES.charAt(i));
+      }
+    }
+    return source.append("; \n} \n").toString();
+  }
+
+  private static Map<String, Object> flops(ClRuntime.Context context,
+      DeviceProperties properties, String type, int typeBytes) {
+    Map<String, Object> result = new LinkedHashMap<>();
+    for (int width : WIDTHS) {
+      long items = Math.max(properties.getMaxWorkGroupSize(),
+          properties.getComputeUnits() * properties.getMaxWorkGroupSize() * 16 / width);
+      try (ClRuntime.Program program = context.createProgramWithSource(computeKernel(type, width))) {
+        ClRuntime.CommandQueue queue = program.getCommandQueue();
+        ClRuntime.Kernel kernel = program.createKernel("peak");
+        kernel.arg(queue.createWriteBuffer((int) items * typeBytes)).arg(1001);
+        NDRange range = NDRange.of(items);
+        double nanos = best(() -> kernel.enqueue(range));
+        double operations = 2D * width * LOOP * MADS_PER_LOOP * items;
+        result.put(Integer.toString(width), operations / nanos);
+      } catch (ExecutionException | RuntimeException exc) {
+        result.put(Integer.toString(width), null);
+      }
+    }
+    return result;
+  }
+
+  private static void print(Map<String, Object> result, PrintStream out) {
+    out.println(result.get("name") + " (" + result.get("vendor") + ", " + result.get("version")
+        + ", driver " + result.get("driverVersion") + ")");
+    out.println("  compute units: " + result.get("computeUnits") + ", clock: "
+        + result.get("maxClockFrequency") + " MHz");
+    if (result.containsKey("error")) {
+      out.println("  error: " + result.get("error"));
+      return;
+    }
+    Map<?, ?> bandwidth = (Map<?, ?>) result.get("bandwidth");
+    out.println(String.format(Locale.ROOT,
+        "  bandwidth GB/s: host to device %.2f, device to host %.2f, device to device %.2f",
+        bandwidth.get("hostToDevice"), bandwidth.get("deviceToHost"),
+        bandwidth.get("deviceToDevice")));
+    Map<?, ?> latency = (Map<?, ?>) result.get("launchLatency");
+    out.println(String.format(Locale.ROOT,
+        "  launch latency us: host round trip %.2f, queued to start %.2f, execution %.2f",
+        latency.get("hostRoundTripUs"), latency.get("queuedToStartUs"),
+        latency.get("executionUs")));
+    Map<?, ?> flops = (Map<?, ?>) result.get("gflops");
+    for (Map.Entry<?, ?> type : flops.entrySet()) {
+      StringBuilder line = new StringBuilder("  ").append(type.getKey()).append(" GFLOPS:");
+      for (Map.Entry<?, ?> width : ((Map<?, ?>) type.getValue()).entrySet()) {
+        line.append(' ').append(width.getKey()).append(": ").append(null == width.getValue()
+            ? "n/a" : String.format(Locale.ROOT, "%.2f", width.getValue()));
+      }
+      out.println(line);
+    }
+  }
+
+  private static StringBuilder toJson(Object value, StringBuilder out, String indent) {
+    if (value instanceof Map) {
+      String nested = indent + "  ";
+      out.append("{");
+      boolean first = true;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        out.append(first ? "\n" : ",\n").append(nested);
+        toJson(String.valueOf(entry.getKey()), out, nested).append(": ");
+        toJson(entry.getValue(), out, nested);
+        first = false;
+      }
+      return out.append(first ? "" : "\n" + indent).append('}');
+    } else if (value instanceof List) {
+      String nested = indent + "  ";
+      out.append("[");
+      boolean first = true;
+      for (Object item : (List<?>) value) {
+        out.append(first ? "\n" : ",\n").append(nested);
+        toJson(item, out, nested);
+        first = false;
+      }
+      return out.append(first ? "" : "\n" + indent).append(']');
+    } else if (value instanceof Double) {
+      double number = (Double) value;
+      return out.append(Double.isFinite(number) ? String.format(Locale.ROOT, "%.4f", number)
+          : "null");
+    } else if (value instanceof Number || value instanceof Boolean) {
+      return out.append(value);
+    } else if (null == value) {
+      return out.append("null");
+    }
+    out.append('"');
+    String text = value.toString();
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if ('"' == c || '\\' == c) {
+        out.append('\\').append(c);
+      } else if (c < 0x20) {
+        out.append(String.format("\\u%04x", (int) c));
+      } else {
+        out.append(c);
+      }
+    }
+    return out.append('"');
+  }
+
+  @FunctionalInterface
+  private interface CommandSupplier {
+    ClRuntime.Event enqueue() throws ExecutionException;
+  }
+
+}
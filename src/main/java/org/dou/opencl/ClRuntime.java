@@ -18,27 +18,46 @@ import static org.lwjgl.opencl.CL.createPlatformCapabilities;
 import static org.lwjgl.opencl.CL.destroy;
 import static org.lwjgl.opencl.CL.getICD;
 import static org.lwjgl.opencl.CL10.*;
+import static org.lwjgl.opencl.CL11.CL_DEVICE_HOST_UNIFIED_MEMORY;
+import static org.lwjgl.opencl.CL11.CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE;
+import static org.lwjgl.opencl.CL11.clSetEventCallback;
+import static org.lwjgl.opencl.CL12.clEnqueueFillBuffer;
+import static org.lwjgl.opencl.CL21.clCloneKernel;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.Deque;
+import java.util.List;
 import java.util.LinkedList;
 import java.util.NavigableSet;
 import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.opencl.CLCapabilities;
+import org.lwjgl.opencl.CLEventCallback;
 import org.lwjgl.opencl.KHRICD;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
@@ -74,12 +93,68 @@ public final class ClRuntime implements AutoCloseable {
     }
   }
 
+  /**
+   * Calculates SHA-256 digest hex string of the string parts, parts are separated with zero char
+   * 
+   * @param parts strings to digest
+   * @return digest hex string
+   */
+  static String digest(String... parts) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      for (String part : parts) {
+        md.update(part.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+      }
+      StringBuilder result = new StringBuilder(64);
+      for (byte b : md.digest()) {
+        result.append(Character.forDigit((b >> 4) & 0xF, 16));
+        result.append(Character.forDigit(b & 0xF, 16));
+      }
+      return result.toString();
+    } catch (NoSuchAlgorithmException exc) {
+      throw new IllegalStateException("SHA-256 is not supported by JVM", exc);
+    }
+  }
+
+  /**
+   * Converts events into OpenCL event wait list allocated on the stack
+   * 
+   * @param stack stack to allocate wait list on
+   * @param events events to wait for, can be empty
+   * @return native event wait list or null when there is nothing to wait for
+   */
+  static PointerBuffer waitList(MemoryStack stack, Event... events) {
+    if (null == events || 0 == events.length) {
+      return null;
+    }
+    PointerBuffer result = stack.mallocPointer(events.length);
+    for (Event event : events) {
+      result.put(event.getId());
+    }
+    return result.flip();
+  }
+
   /**
    * Returns list of OpenCL platforms supported by this environment
    * 
    * @return list of OpenCL platforms
    */
   public NavigableSet<Platform> getPlatforms() {
+    return getPlatforms(true);
+  }
+
+  /**
+   * Returns list of all OpenCL platforms supported by this environment, including compute only
+   * platforms without OpenGL sharing support like POCL
+   * 
+   * @return list of OpenCL platforms
+   */
+  public NavigableSet<Platform> getComputePlatforms() {
+    return getPlatforms(false);
+  }
+
+  private NavigableSet<Platform> getPlatforms(boolean glSharingOnly) {
     try (MemoryStack stack = MemoryStack.stackPush()) {
       NavigableSet<Platform> result = new TreeSet<>();
       IntBuffer pi = stack.mallocInt(1);
@@ -90,11 +165,10 @@ public final class ClRuntime implements AutoCloseable {
       PointerBuffer ids = stack.mallocPointer(pi.get(0));
       validateCL(clGetPlatformIDs(ids, (IntBuffer) null));
       for (int i = 0; i < ids.capacity(); i++) {
-        CLCapabilities caps = createPlatformCapabilities(ids.get());
-        if (caps.cl_khr_gl_sharing || caps.cl_APPLE_gl_sharing) {
+        CLCapabilities caps = createPlatformCapabilities(ids.get(i));
+        if (!glSharingOnly || caps.cl_khr_gl_sharing || caps.cl_APPLE_gl_sharing) {
           result.add(new Platform(ids.get(i), caps));
         }
-
       }
       return result;
     }
@@ -160,13 +234,32 @@ public final class ClRuntime implements AutoCloseable {
           validateCL(clGetDeviceIDs(this.id, deviceType, deviceIDs, (IntBuffer) null));
           result = new TreeSet<>();
           for (int i = 0; i < deviceIDs.capacity(); i++) {
-            result.add(new Device(deviceIDs.get(i), deviceType));
+            long deviceId = deviceIDs.get(i);
+            result.add(new Device(this, deviceId,
+                CL_DEVICE_TYPE_ALL == deviceType ? getDeviceType(deviceId) : deviceType));
           }
         }
       }
       return result;
     }
 
+    private static int getDeviceType(long deviceId) {
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        LongBuffer type = stack.mallocLong(1);
+        validateCL(clGetDeviceInfo(deviceId, CL_DEVICE_TYPE, type, null));
+        return (int) type.get(0);
+      }
+    }
+
+    /**
+     * Returns list of all devices provided by this platform
+     * 
+     * @return list of all devices
+     */
+    public NavigableSet<Device> getAllDevices() {
+      return getDevices(CL_DEVICE_TYPE_ALL);
+    }
+
     /**
      * Returns list of GPU based devices provided by this platform
      * 
@@ -182,7 +275,7 @@ public final class ClRuntime implements AutoCloseable {
      * @return list of �PU based devices
      */
     public NavigableSet<Device> getCPUDevices() {
-      return getDevices(CL_DEVICE_TYPE_GPU);
+      return getDevices(CL_DEVICE_TYPE_CPU);
     }
 
     /**
@@ -204,9 +297,7 @@ public final class ClRuntime implements AutoCloseable {
         final PointerBuffer deviceIDs = stack.mallocPointer(1);
         validateCL(clGetDeviceIDs(this.id, CL_DEVICE_TYPE_DEFAULT, deviceIDs, (IntBuffer) null),
             "Can not obtain OpenCL default device");
-        final ByteBuffer typeBuf = stack.malloc(Long.BYTES);
-        validateCL(clGetDeviceInfo(deviceIDs.get(0), CL_DEVICE_TYPE, typeBuf, null));
-        return new Device(deviceIDs.get(0), typeBuf.getInt());
+        return new Device(this, deviceIDs.get(0), getDeviceType(deviceIDs.get(0)));
       }
     }
 
@@ -239,16 +330,47 @@ public final class ClRuntime implements AutoCloseable {
    */
   public static final class Device implements Comparable<Device> {
 
+    private final Platform platform;
+
     private final long id;
 
     private final int type;
 
-    private Device(long id, int type) {
+    private volatile String name;
+
+    private volatile DeviceProperties properties;
+
+    private Device(Platform platform, long id, int type) {
+      this.platform = platform;
       this.id = id;
       this.type = type;
     }
 
-    private String getInfoStringUTF8(int paramName) {
+    int getInfoInt(int paramName) {
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        IntBuffer value = stack.mallocInt(1);
+        validateCL(clGetDeviceInfo(this.id, paramName, value, null));
+        return value.get(0);
+      }
+    }
+
+    long getInfoLong(int paramName) {
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        LongBuffer value = stack.mallocLong(1);
+        validateCL(clGetDeviceInfo(this.id, paramName, value, null));
+        return value.get(0);
+      }
+    }
+
+    long getInfoSize(int paramName) {
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        PointerBuffer value = stack.mallocPointer(1);
+        validateCL(clGetDeviceInfo(this.id, paramName, value, null));
+        return value.get(0);
+      }
+    }
+
+    String getInfoStringUTF8(int paramName) {
       try (MemoryStack stack = MemoryStack.stackPush()) {
         PointerBuffer pp = stack.mallocPointer(1);
         validateCL(clGetDeviceInfo(this.id, paramName, (ByteBuffer) null, pp));
@@ -272,15 +394,98 @@ public final class ClRuntime implements AutoCloseable {
     }
 
     public boolean isCPU() {
-      return CL_DEVICE_TYPE == this.type;
+      return CL_DEVICE_TYPE_CPU == this.type;
     }
 
     public boolean isGPU() {
       return CL_DEVICE_TYPE_GPU == this.type;
     }
 
+    /**
+     * Returns platform providing this device
+     * 
+     * @return device platform
+     */
+    public Platform getPlatform() {
+      return platform;
+    }
+
+    CLCapabilities getCapabilities() {
+      return platform.capabilities;
+    }
+
     public String getName() {
-      return getInfoStringUTF8(CL_DEVICE_NAME);
+      String result = name;
+      if (null == result) {
+        result = getInfoStringUTF8(CL_DEVICE_NAME);
+        name = result;
+      }
+      return result;
+    }
+
+    /**
+     * Returns device capabilities snapshot, queried once per device object
+     * 
+     * @return device properties
+     */
+    public DeviceProperties getProperties() {
+      DeviceProperties result = properties;
+      if (null == result) {
+        result = new DeviceProperties(this);
+        properties = result;
+      }
+      return result;
+    }
+
+    /**
+     * Returns OpenCL software driver version string
+     * 
+     * @return driver version string
+     */
+    public String getDriverVersion() {
+      return getInfoStringUTF8(CL_DRIVER_VERSION);
+    }
+
+    /**
+     * Returns maximum number of work-items in a work-group executing a kernel on this device
+     * 
+     * @return maximum work-group size
+     */
+    public long getMaxWorkGroupSize() {
+      return getInfoSize(CL_DEVICE_MAX_WORK_GROUP_SIZE);
+    }
+
+    /**
+     * Returns maximum number of work-items that can be specified in each dimension of the
+     * work-group
+     * 
+     * @return maximum work-item sizes for each dimension
+     */
+    public long[] getMaxWorkItemSizes() {
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        IntBuffer dimensions = stack.mallocInt(1);
+        validateCL(
+            clGetDeviceInfo(this.id, CL_DEVICE_MAX_WORK_ITEM_DIMENSIONS, dimensions, null));
+        PointerBuffer sizes = stack.mallocPointer(dimensions.get(0));
+        validateCL(clGetDeviceInfo(this.id, CL_DEVICE_MAX_WORK_ITEM_SIZES, sizes, null));
+        long[] result = new long[sizes.capacity()];
+        sizes.get(result);
+        return result;
+      }
+    }
+
+    /**
+     * Checks whether this device and the host share unified memory subsystem, i.e. host accessible
+     * buffers are zero-copy
+     * 
+     * @return whether device has unified memory with host
+     */
+    public boolean isHostUnifiedMemory() {
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        IntBuffer value = stack.mallocInt(1);
+        return CL_SUCCESS == clGetDeviceInfo(this.id, CL_DEVICE_HOST_UNIFIED_MEMORY, value, null)
+            && CL_TRUE == value.get(0);
+      }
     }
 
     /**
@@ -328,27 +533,104 @@ public final class ClRuntime implements AutoCloseable {
   public static final class Context implements AutoCloseable {
     private final Device device;
     private final long id;
+    private final List<CommandListener> listeners;
+    private final ContextMetrics metrics;
+    private volatile boolean profiling;
 
     private Context(Device device, long id) {
       this.device = device;
       this.id = id;
+      this.listeners = new CopyOnWriteArrayList<>();
+      this.metrics = new ContextMetrics(device.getName(), id);
+      metrics.register();
     }
 
     public long getId() {
       return id;
     }
 
+    /**
+     * Returns device this context is created for
+     * 
+     * @return context device
+     */
+    public Device getDevice() {
+      return device;
+    }
+
+    /**
+     * Returns live counters of this context, also available over JMX
+     * 
+     * @return context metrics
+     */
+    public ContextMetrics getMetrics() {
+      return metrics;
+    }
+
+    /**
+     * Enables or disables command queue profiling, i.e. CL_QUEUE_PROFILING_ENABLE for all command
+     * queues created afterwards, including default command queues of programs. Existing queues are
+     * not affected
+     * 
+     * @param profiling whether to enable profiling
+     */
+    public void setProfilingEnabled(boolean profiling) {
+      this.profiling = profiling;
+    }
+
+    public boolean isProfilingEnabled() {
+      return profiling;
+    }
+
+    /**
+     * Registers listener of commands enqueued into all command queues of this context
+     * 
+     * @param listener command listener
+     */
+    public void addCommandListener(CommandListener listener) {
+      listeners.add(Objects.requireNonNull(listener, "listener"));
+    }
+
+    public void removeCommandListener(CommandListener listener) {
+      listeners.remove(listener);
+    }
+
+    boolean isObserved() {
+      return !listeners.isEmpty();
+    }
+
+    void fireEnqueued(CommandInfo command) {
+      for (CommandListener listener : listeners) {
+        listener.enqueued(command);
+      }
+    }
+
     /**
      * Creates OpenCL command queue object
      * 
      * @return command queue object
      */
     private CommandQueue createCommandQueue() {
+      return createCommandQueue(new QueueProperty[0]);
+    }
+
+    /**
+     * Creates additional OpenCL command queue object in this context, e.g. to overlap transfers
+     * with kernel executions. Queue must be closed by the caller
+     * 
+     * @param properties command queue properties
+     * @return command queue object
+     */
+    public CommandQueue createCommandQueue(QueueProperty... properties) {
+      long bitfield = profiling ? QueueProperty.PROFILING.clFlags() : 0L;
+      for (QueueProperty property : properties) {
+        bitfield |= property.clFlags();
+      }
       try (MemoryStack stack = MemoryStack.stackPush()) {
         IntBuffer err = stack.mallocInt(1).put(CL_SUCCESS).flip();
-        long cqId = clCreateCommandQueue(id, device.getId(), 0, err);
+        long cqId = clCreateCommandQueue(id, device.getId(), bitfield, err);
         validateCL(err.get(0), "Can not create command queue");
-        return new CommandQueue(this, cqId);
+        return new CommandQueue(this, cqId, bitfield);
       }
     }
 
@@ -359,19 +641,40 @@ public final class ClRuntime implements AutoCloseable {
      * @return new OpenCL program
      */
     public Program createProgramWithSource(String source) {
+      return createProgramWithSource(source, "");
+    }
+
+    /**
+     * Creates OpenCL program and load shader to it
+     * 
+     * @param source - OpenCL C shader source
+     * @param options - OpenCL C compiler build options
+     * @return new OpenCL program
+     */
+    public Program createProgramWithSource(String source, String options) {
+      return program(buildProgram(source, options), source, null);
+    }
+
+    private long buildProgram(String source, String options) {
       long programId = 0;
       try (MemoryStack stack = MemoryStack.stackPush()) {
         IntBuffer err = stack.mallocInt(1);
         programId = clCreateProgramWithSource(this.id, source, err);
         validateCL(err.get(0), "Can not create OpenCL programm");
       }
-      int errCode = clBuildProgram(programId, this.device.getId(), "", null, 0);
+      final long start = System.nanoTime();
+      Object buildEvent = FlightRecorderEvents.beginProgramBuild();
+      int errCode = clBuildProgram(programId, this.device.getId(), options, null, 0);
+      metrics.built(System.nanoTime() - start);
+      FlightRecorderEvents.endProgramBuild(buildEvent, device.getName(), options, false,
+          CL_SUCCESS == errCode);
       switch (errCode) {
         case CL_SUCCESS:
           break;
         case CL_BUILD_PROGRAM_FAILURE:
-          throw new IllegalStateException("Failure to build the program executable"
-              + getProgramBuildInfo(CL_PROGRAM_BUILD_LOG));
+          String log = getProgramBuildInfo(programId, CL_PROGRAM_BUILD_LOG);
+          clReleaseProgram(programId);
+          throw new IllegalStateException("Failure to build the program executable" + log);
         case CL_OUT_OF_RESOURCES:
           throw new OutOfMemoryError("No resources left");
         case CL_OUT_OF_HOST_MEMORY:
@@ -383,7 +686,153 @@ public final class ClRuntime implements AutoCloseable {
         default:
           throw new CLRuntimeException(errCode);
       }
-      return new Program(createCommandQueue(), programId);
+      return programId;
+    }
+
+    /**
+     * Wraps built program, program owns a new command queue unless the shared one is given
+     */
+    private Program program(long programId, String source, CommandQueue queue) {
+      try {
+        return null == queue
+            ? new Program(this, createCommandQueue(), true, programId, digest(source))
+            : new Program(this, queue, false, programId, digest(source));
+      } catch (RuntimeException | Error exc) {
+        clReleaseProgram(programId);
+        throw exc;
+      }
+    }
+
+    /**
+     * Creates OpenCL program using binary cache. On a cache hit program is created from the cached
+     * device binary, otherwise or when the binary is rejected by the driver program is built from
+     * source and its binary is stored into the cache. Cache failures never fail the build.
+     * 
+     * @param source - OpenCL C shader source
+     * @param options - OpenCL C compiler build options
+     * @param cache - program binary cache
+     * @return new OpenCL program
+     */
+    public Program createProgramWithSource(String source, String options,
+        ProgramBinaryCache cache) {
+      return createProgramWithSource(source, options, cache, null);
+    }
+
+    /**
+     * Creates OpenCL program, optionally using binary cache, whose kernels are enqueued into the
+     * given command queue. Shared queue is not closed with the program, so programs built on demand
+     * don't allocate a native command queue each.
+     * 
+     * @param source - OpenCL C shader source
+     * @param options - OpenCL C compiler build options
+     * @param cache - program binary cache or null
+     * @param queue - command queue of this context shared by program kernels, or null to create
+     *        program own queue
+     * @return new OpenCL program
+     */
+    public Program createProgramWithSource(String source, String options,
+        ProgramBinaryCache cache, CommandQueue queue) {
+      if (null != queue && this != queue.getContext()) {
+        throw new IllegalArgumentException("Command queue belongs to another context");
+      }
+      if (null == cache) {
+        return program(buildProgram(source, options), source, queue);
+      }
+      final String key = ProgramBinaryCache.key(device, source, options);
+      final byte[] binary = cache.load(key);
+      if (null != binary) {
+        long programId = createProgramWithBinary(binary, options);
+        if (0L != programId) {
+          return program(programId, source, queue);
+        }
+        cache.invalidate(key);
+      }
+      final long programId = buildProgram(source, options);
+      byte[] built;
+      try {
+        built = getProgramBinary(programId);
+      } catch (CLRuntimeException exc) {
+        // program is usable, only caching is skipped
+        built = null;
+      }
+      Program result = program(programId, source, queue);
+      if (null != built) {
+        cache.store(key, built);
+      }
+      return result;
+    }
+
+    /**
+     * Creates and builds program from device binary
+     * 
+     * @return program id or 0 if binary is rejected
+     */
+    private long createProgramWithBinary(byte[] binary, String options) {
+      ByteBuffer nativeBinary = MemoryUtil.memAlloc(binary.length);
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        nativeBinary.put(binary).flip();
+        IntBuffer status = stack.mallocInt(1);
+        IntBuffer err = stack.mallocInt(1);
+        long programId = clCreateProgramWithBinary(this.id, stack.pointers(device.getId()),
+            nativeBinary, status, err);
+        if (CL_SUCCESS != err.get(0) || CL_SUCCESS != status.get(0)) {
+          if (0L != programId) {
+            clReleaseProgram(programId);
+          }
+          return 0L;
+        }
+        final long start = System.nanoTime();
+        Object buildEvent = FlightRecorderEvents.beginProgramBuild();
+        int errCode = clBuildProgram(programId, this.device.getId(), options, null, 0);
+        metrics.built(System.nanoTime() - start);
+        FlightRecorderEvents.endProgramBuild(buildEvent, device.getName(), options, true,
+            CL_SUCCESS == errCode);
+        if (CL_SUCCESS != errCode) {
+          clReleaseProgram(programId);
+          return 0L;
+        }
+        return programId;
+      } finally {
+        MemoryUtil.memFree(nativeBinary);
+      }
+    }
+
+    /**
+     * Allocates OpenCL memory buffer in this context, the buffer is not bound to any command queue
+     * and must be released by the caller
+     * 
+     * @param capacityBytes buffer size in bytes
+     * @param flags OpenCL memory flags
+     * @return new memory buffer
+     */
+    VideoMemBuffer createBuffer(int capacityBytes, int flags) {
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        IntBuffer err = stack.mallocInt(1);
+        long bufferId = clCreateBuffer(this.id, flags, capacityBytes, err);
+        if (CL_OUT_OF_HOST_MEMORY == err.get(0)) {
+          throw new OutOfMemoryError("Can not allocate memory");
+        }
+        validateCL(err.get(0), "Can not create OpenCL memory buffer");
+        return new VideoMemBuffer(metrics, bufferId, capacityBytes);
+      }
+    }
+
+    private byte[] getProgramBinary(long programId) {
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        PointerBuffer sizes = stack.mallocPointer(1);
+        validateCL(clGetProgramInfo(programId, CL_PROGRAM_BINARY_SIZES, sizes, null),
+            "Can not obtain program binary size");
+        ByteBuffer binary = MemoryUtil.memAlloc((int) sizes.get(0));
+        try {
+          validateCL(clGetProgramInfo(programId, CL_PROGRAM_BINARIES,
+              stack.pointers(binary), null), "Can not obtain program binary");
+          byte[] result = new byte[binary.remaining()];
+          binary.get(result);
+          return result;
+        } finally {
+          MemoryUtil.memFree(binary);
+        }
+      }
     }
 
     private static String loadProgramSource(InputStream source) {
@@ -391,7 +840,7 @@ public final class ClRuntime implements AutoCloseable {
         StringBuilder result = new StringBuilder();
         char[] buff = new char[512];
         for (int read = reader.read(buff); read > 0; read = reader.read(buff)) {
-          result.append(buff);
+          result.append(buff, 0, read);
         }
         return result.toString();
       } catch (IOException exc) {
@@ -403,20 +852,26 @@ public final class ClRuntime implements AutoCloseable {
       return createProgramWithSource(loadProgramSource(source));
     }
 
-    private String getProgramBuildInfo(int paramName) {
+    private String getProgramBuildInfo(long programId, int paramName) {
       try (MemoryStack stack = MemoryStack.stackPush()) {
         PointerBuffer pp = stack.mallocPointer(1);
-        validateCL(
-            clGetProgramBuildInfo(this.id, this.device.getId(), paramName, (ByteBuffer) null, pp));
+        validateCL(clGetProgramBuildInfo(programId, this.device.getId(), paramName,
+            (ByteBuffer) null, pp));
         int bytes = (int) pp.get(0);
-        ByteBuffer buffer = stack.malloc(bytes);
-        validateCL(clGetProgramBuildInfo(this.id, this.device.getId(), paramName, buffer, null));
-        return MemoryUtil.memASCII(buffer, bytes - 1);
+        ByteBuffer buffer = MemoryUtil.memAlloc(bytes);
+        try {
+          validateCL(
+              clGetProgramBuildInfo(programId, this.device.getId(), paramName, buffer, null));
+          return MemoryUtil.memASCII(buffer, bytes - 1);
+        } finally {
+          MemoryUtil.memFree(buffer);
+        }
       }
     }
 
     @Override
     public void close() throws RuntimeException {
+      metrics.unregister();
       validateCL(clReleaseContext(id));
     }
 
@@ -426,14 +881,45 @@ public final class ClRuntime implements AutoCloseable {
    * OpenCL program object helper
    */
   public static final class Program implements AutoCloseable {
+    private final Context context;
     private final CommandQueue cmdQueue;
+    private final boolean ownQueue;
     private final Set<Kernel> kernels;
+    private final ConcurrentMap<String, KernelPool> kernelPools;
     private final long id;
+    private final String sourceHash;
 
-    private Program(CommandQueue cmdQueue, long id) {
+    private Program(Context context, CommandQueue cmdQueue, boolean ownQueue, long id,
+        String sourceHash) {
+      this.context = context;
       this.cmdQueue = cmdQueue;
-      this.kernels = new TreeSet<>();
+      this.ownQueue = ownQueue;
+      this.kernels = new ConcurrentSkipListSet<>();
+      this.kernelPools = new ConcurrentHashMap<>();
       this.id = id;
+      this.sourceHash = sourceHash;
+    }
+
+    /**
+     * Returns context this program is created in
+     * 
+     * @return program context
+     */
+    public Context getContext() {
+      return context;
+    }
+
+    /**
+     * Returns SHA-256 hex digest of this program source
+     * 
+     * @return program source hash
+     */
+    public String getSourceHash() {
+      return sourceHash;
+    }
+
+    long getId() {
+      return id;
     }
 
     /**
@@ -479,18 +965,53 @@ public final class ClRuntime implements AutoCloseable {
               throw new IllegalStateException("OpenCL error. Code: " + err.get());
           }
         }
-        Kernel result = new Kernel(cmdQueue, kernelId);
+        Kernel result = new Kernel(this, cmdQueue, kernelId, name);
+        kernels.add(result);
+        return result;
+      }
+    }
+
+    /**
+     * Clones kernel with its arguments, requires OpenCL 2.1+
+     * 
+     * @param source kernel to clone
+     * @return cloned kernel or null when cloning is not supported by the device
+     */
+    Kernel cloneKernel(Kernel source) {
+      if (0L == context.getDevice().getCapabilities().clCloneKernel) {
+        return null;
+      }
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        IntBuffer err = stack.mallocInt(1);
+        long kernelId = clCloneKernel(source.getId(), err);
+        if (CL_SUCCESS != err.get(0) || 0L == kernelId) {
+          return null;
+        }
+        Kernel result = new Kernel(this, cmdQueue, kernelId, source.getName());
         kernels.add(result);
         return result;
       }
     }
 
+    /**
+     * Returns pool of thread confined kernel instances, so many threads can launch the same kernel
+     * concurrently
+     * 
+     * @param name kernel name as specified in shader
+     * @return kernel pool
+     */
+    public KernelPool getKernelPool(final String name) {
+      return kernelPools.computeIfAbsent(name, n -> new KernelPool(this, n));
+    }
+
     @Override
     public void close() throws RuntimeException {
       for (Kernel kernel : kernels) {
         clReleaseKernel(kernel.getId());
       }
-      cmdQueue.close();
+      if (ownQueue) {
+        cmdQueue.close();
+      }
       validateCL(clReleaseProgram(this.id));
     }
 
@@ -503,37 +1024,104 @@ public final class ClRuntime implements AutoCloseable {
 
     private final long id;
 
+    private final Program program;
+
     private final CommandQueue cmdQueue;
 
+    private final String name;
+
+    private final LongAdder launches;
+
     private int argIndex;
 
-    private Kernel(CommandQueue cmdQueue, long id) {
+    private Kernel(Program program, CommandQueue cmdQueue, long id, String name) {
+      this.program = program;
       this.cmdQueue = cmdQueue;
       this.id = id;
+      this.name = name;
+      this.launches = program.getContext().getMetrics().kernelLaunches(name);
     }
 
-    private static void validateArg(final int errorCode) {
-      switch (errorCode) {
-        case CL_SUCCESS:
-          break;
-        case CL_INVALID_ARG_INDEX:
-          throw new IllegalArgumentException("Invalid argument index");
-        case CL_INVALID_ARG_VALUE:
-          throw new IllegalArgumentException("Non NULL value expected");
-        case CL_INVALID_MEM_OBJECT:
-          throw new IllegalArgumentException("Memory object expected");
-        case CL_INVALID_SAMPLER:
-          throw new IllegalArgumentException("Sampler expected");
-        default:
-          throw new CLRuntimeException(errorCode);
-      }
+    /**
+     * Returns kernel function name as specified in program source
+     * 
+     * @return kernel name
+     */
+    public String getName() {
+      return name;
     }
 
-    private void addArg(int index, int val) {
-      try (MemoryStack stack = MemoryStack.stackPush()) {
-        validateArg(clSetKernelArg(this.getId(), index, stack.mallocInt(1).put(val).flip()));
-      }
-    }
+    /**
+     * Returns program this kernel is created from
+     * 
+     * @return kernel program
+     */
+    public Program getProgram() {
+      return program;
+    }
+
+    CommandQueue getCommandQueue() {
+      return cmdQueue;
+    }
+
+    void launched() {
+      launches.increment();
+    }
+
+    private long getWorkGroupInfo(int paramName) {
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        PointerBuffer value = stack.mallocPointer(1);
+        validateCL(clGetKernelWorkGroupInfo(id, program.getContext().getDevice().getId(),
+            paramName, value, null), "Can not obtain kernel work-group info");
+        return value.get(0);
+      }
+    }
+
+    /**
+     * Returns maximum work-group size that can be used to execute this kernel on the device
+     * 
+     * @return maximum kernel work-group size
+     */
+    public long getWorkGroupSize() {
+      return getWorkGroupInfo(CL_KERNEL_WORK_GROUP_SIZE);
+    }
+
+    /**
+     * Returns preferred multiple of work-group size for this kernel, falls back to 1 for OpenCL
+     * 1.0 devices
+     * 
+     * @return preferred work-group size multiple
+     */
+    public long getPreferredWorkGroupSizeMultiple() {
+      try {
+        return getWorkGroupInfo(CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE);
+      } catch (CLRuntimeException exc) {
+        return 1L;
+      }
+    }
+
+    static void validateArg(final int errorCode) {
+      switch (errorCode) {
+        case CL_SUCCESS:
+          break;
+        case CL_INVALID_ARG_INDEX:
+          throw new IllegalArgumentException("Invalid argument index");
+        case CL_INVALID_ARG_VALUE:
+          throw new IllegalArgumentException("Non NULL value expected");
+        case CL_INVALID_MEM_OBJECT:
+          throw new IllegalArgumentException("Memory object expected");
+        case CL_INVALID_SAMPLER:
+          throw new IllegalArgumentException("Sampler expected");
+        default:
+          throw new CLRuntimeException(errorCode);
+      }
+    }
+
+    private void addArg(int index, int val) {
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        validateArg(clSetKernelArg(this.getId(), index, stack.mallocInt(1).put(val).flip()));
+      }
+    }
 
 
     private void addArg(int index, VideoMemBuffer val) {
@@ -555,6 +1143,12 @@ public final class ClRuntime implements AutoCloseable {
       }
     }
 
+    private void addArg(int index, long val) {
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        validateArg(clSetKernelArg(this.getId(), index, stack.mallocLong(1).put(val).flip()));
+      }
+    }
+
     /**
      * Sequential add kernel argument
      * 
@@ -599,11 +1193,47 @@ public final class ClRuntime implements AutoCloseable {
       return this;
     }
 
+    /**
+     * Sequential add kernel argument
+     * 
+     * @param val argument value to bind
+     */
+    public final Kernel arg(long value) {
+      addArg(this.argIndex, value);
+      ++this.argIndex;
+      return this;
+    }
+
+    /**
+     * Returns number of this kernel arguments
+     * 
+     * @return kernel arguments count
+     */
+    public int getArgCount() {
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        IntBuffer value = stack.mallocInt(1);
+        validateCL(clGetKernelInfo(id, CL_KERNEL_NUM_ARGS, value, null),
+            "Can not obtain kernel info");
+        return value.get(0);
+      }
+    }
+
+    /**
+     * Creates allocation free launch of this kernel on the kernel command queue. Arguments should
+     * not be bound with {@link #arg(int)} methods while prepared launch is in use
+     * 
+     * @param range launch range
+     * @return new prepared launch, must be closed by the caller
+     */
+    public PreparedLaunch prepare(NDRange range) {
+      return new PreparedLaunch(this, cmdQueue, getArgCount(), range);
+    }
+
     public final void flush() {
       this.argIndex = 0;
     }
 
-    private void validateErrorCode(int errorCode) throws ExecutionException {
+    static void validateErrorCode(int errorCode) throws ExecutionException {
       switch (errorCode) {
         case CL_SUCCESS:
           break;
@@ -615,6 +1245,12 @@ public final class ClRuntime implements AutoCloseable {
           throw new ExecutionException(new IllegalStateException("Invalid kernel args"));
         case CL_INVALID_WORK_GROUP_SIZE:
           throw new ExecutionException(new IllegalStateException("Invalid work group size"));
+        case CL_INVALID_WORK_ITEM_SIZE:
+          throw new ExecutionException(new IllegalStateException("Invalid work item size"));
+        case CL_INVALID_GLOBAL_OFFSET:
+          throw new ExecutionException(new IllegalStateException("Invalid global offset"));
+        case CL_INVALID_EVENT_WAIT_LIST:
+          throw new ExecutionException(new IllegalArgumentException("Invalid event wait list"));
         default:
           throw new CLRuntimeException(errorCode);
       }
@@ -627,9 +1263,112 @@ public final class ClRuntime implements AutoCloseable {
      * @throws ExecutionException in case of OpenCL error
      */
     public void executeAsDataParallel(final long globalWorkSize) throws ExecutionException {
-      validateErrorCode(clEnqueueNDRangeKernel(cmdQueue.getId(), id, 1, (PointerBuffer) null,
-          MemoryStack.stackPointers(globalWorkSize), (PointerBuffer) null, (PointerBuffer) null,
-          (PointerBuffer) null));
+      execute(NDRange.of(globalWorkSize));
+    }
+
+    /**
+     * Executes this kernel on device over N-dimensional range
+     * 
+     * @param range global, local work sizes and offsets of the launch
+     * @throws ExecutionException in case of OpenCL error
+     */
+    public void execute(final NDRange range) throws ExecutionException {
+      if (cmdQueue.isObserved()) {
+        enqueue(range).close();
+        return;
+      }
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        validateErrorCode(clEnqueueNDRangeKernel(cmdQueue.getId(), id, range.getDimensions(),
+            range.offsets(stack), range.globalSizes(stack), range.localSizes(stack),
+            (PointerBuffer) null, (PointerBuffer) null));
+      }
+      cmdQueue.submitted(CommandType.KERNEL, 0L);
+      launches.increment();
+    }
+
+    /**
+     * Enqueues this kernel for execution over N-dimensional range without waiting for the result.
+     * Returned event should be closed by the caller when no longer needed
+     * 
+     * @param range global, local work sizes and offsets of the launch
+     * @param waitList events to be completed before this kernel execution starts
+     * @return event bound to this kernel execution
+     * @throws ExecutionException in case of OpenCL error
+     */
+    public Event enqueue(final NDRange range, Event... waitList) throws ExecutionException {
+      return enqueue(cmdQueue, range, waitList);
+    }
+
+    /**
+     * Enqueues this kernel for execution over N-dimensional range into another command queue of
+     * the program context. Returned event should be closed by the caller when no longer needed
+     * 
+     * @param queue command queue to execute kernel on
+     * @param range global, local work sizes and offsets of the launch
+     * @param waitList events to be completed before this kernel execution starts
+     * @return event bound to this kernel execution
+     * @throws ExecutionException in case of OpenCL error
+     */
+    public Event enqueue(final CommandQueue queue, final NDRange range, Event... waitList)
+        throws ExecutionException {
+      final long start = System.nanoTime();
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        PointerBuffer event = stack.mallocPointer(1);
+        validateErrorCode(clEnqueueNDRangeKernel(queue.getId(), id, range.getDimensions(),
+            range.offsets(stack), range.globalSizes(stack), range.localSizes(stack),
+            ClRuntime.waitList(stack, waitList), event));
+        launches.increment();
+        return queue.enqueued(CommandType.KERNEL, name, range.getWorkItems(), start,
+            new Event(event.get(0)));
+      }
+    }
+
+    /**
+     * Enqueues this kernel for data parallel execution without waiting for the result. Returned
+     * event should be closed by the caller when no longer needed
+     * 
+     * @param globalWorkSize data parallel global work size
+     * @param waitList events to be completed before this kernel execution starts
+     * @return event bound to this kernel execution
+     * @throws ExecutionException in case of OpenCL error
+     */
+    public Event enqueueDataParallel(final long globalWorkSize, Event... waitList)
+        throws ExecutionException {
+      return enqueue(NDRange.of(globalWorkSize), waitList);
+    }
+
+    /**
+     * Executes this kernel on device as data parallel asynchronously, i.e. submits kernel into
+     * command queue and returns immediately
+     * 
+     * @param globalWorkSize data parallel global work size
+     * @param waitList events to be completed before this kernel execution starts
+     * @return future completed when kernel execution is finished on device
+     * @throws ExecutionException in case of OpenCL error
+     */
+    public CompletableFuture<Void> executeAsDataParallelAsync(final long globalWorkSize,
+        Event... waitList) throws ExecutionException {
+      try (Event event = enqueueDataParallel(globalWorkSize, waitList)) {
+        cmdQueue.flush();
+        return event.toFuture().thenApply(e -> (Void) null);
+      }
+    }
+
+    /**
+     * Executes this kernel on device over N-dimensional range asynchronously, i.e. submits kernel
+     * into command queue and returns immediately
+     * 
+     * @param range global, local work sizes and offsets of the launch
+     * @param waitList events to be completed before this kernel execution starts
+     * @return future completed when kernel execution is finished on device
+     * @throws ExecutionException in case of OpenCL error
+     */
+    public CompletableFuture<Void> executeAsync(final NDRange range, Event... waitList)
+        throws ExecutionException {
+      try (Event event = enqueue(range, waitList)) {
+        cmdQueue.flush();
+        return event.toFuture().thenApply(e -> (Void) null);
+      }
     }
 
     long getId() {
@@ -664,22 +1403,114 @@ public final class ClRuntime implements AutoCloseable {
   /**
    * OpenCL command queue object helper
    */
-  public static final class CommandQueue {
+  public static final class CommandQueue implements AutoCloseable {
     private final Context context;
     private final long id;
+    private final long properties;
 
     private final Deque<VideoMemBuffer> memBuffers;
 
-    private CommandQueue(final Context context, long id) {
+    // commands enqueued since the queue was drained
+    private final AtomicLong pending;
+
+    private CommandQueue(final Context context, long id, long properties) {
       this.context = context;
       this.id = id;
+      this.properties = properties;
       this.memBuffers = new LinkedList<>();
+      this.pending = new AtomicLong();
     }
 
     long getId() {
       return id;
     }
 
+    /**
+     * Returns context this queue is created in
+     * 
+     * @return queue context
+     */
+    public Context getContext() {
+      return context;
+    }
+
+    /**
+     * Checks whether commands in this queue can be executed out of order, i.e. ordering must be
+     * defined with event wait lists
+     * 
+     * @return whether queue is out of order
+     */
+    public boolean isOutOfOrder() {
+      return 0L != (properties & CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE);
+    }
+
+    /**
+     * Checks whether command events of this queue carry profiling timestamps
+     * 
+     * @return whether queue profiling is enabled
+     */
+    public boolean isProfilingEnabled() {
+      return 0L != (properties & CL_QUEUE_PROFILING_ENABLE);
+    }
+
+    /**
+     * Checks whether enqueued commands are observed by context listeners or the flight recorder,
+     * i.e. commands should be enqueued with an event
+     */
+    boolean isObserved() {
+      return context.isObserved() || FlightRecorderEvents.isCommandEnabled();
+    }
+
+    /**
+     * Counts enqueued command in context metrics, notifies context command listeners and the
+     * flight recorder about it
+     * 
+     * @param size transferred bytes or kernel work items
+     * @return command event
+     */
+    Event enqueued(CommandType type, String name, long size, long enqueueTime, Event event) {
+      submitted(type, size);
+      final boolean recorded = FlightRecorderEvents.isCommandEnabled();
+      if (recorded || context.isObserved()) {
+        CommandInfo command = new CommandInfo(this, type, name, size, enqueueTime, event);
+        if (recorded) {
+          FlightRecorderEvents.commandEnqueued(command);
+        }
+        context.fireEnqueued(command);
+      }
+      return event;
+    }
+
+    /**
+     * Counts enqueued command in context metrics
+     */
+    void submitted(CommandType type, long bytes) {
+      pending.incrementAndGet();
+      ContextMetrics metrics = context.getMetrics();
+      metrics.queued(1L);
+      if (CommandType.WRITE == type) {
+        metrics.uploaded(bytes);
+      } else if (CommandType.READ == type) {
+        metrics.downloaded(bytes);
+      }
+    }
+
+    /**
+     * Resets pending commands count when all commands enqueued before are known to be complete
+     */
+    private void drained() {
+      context.getMetrics().queued(-pending.getAndSet(0L));
+    }
+
+    /**
+     * Called when blocking command returns, in order queue has completed all previous commands
+     */
+    private void blockingCompleted() {
+      if (!isOutOfOrder()) {
+        drained();
+      }
+    }
+
 
     private VideoMemBuffer hostPtrReadBuffer(long buffer, int size) {
       try (MemoryStack stack = MemoryStack.stackPush()) {
@@ -690,9 +1521,7 @@ public final class ClRuntime implements AutoCloseable {
           throw new OutOfMemoryError("Can not allocate memory");
         }
         validateCL(err.get(0), "Can not create OpenCL memory buffer");
-        VideoMemBuffer result = new VideoMemBuffer(bufferId, size);
-        this.memBuffers.push(result);
-        return result;
+        return owned(new VideoMemBuffer(context.getMetrics(), bufferId, size));
       }
     }
 
@@ -733,7 +1562,7 @@ public final class ClRuntime implements AutoCloseable {
      */
     public VideoMemBuffer hostPtrReadBuffer(LongBuffer buffer) {
       return hostPtrReadBuffer(MemoryUtil.memAddressSafe(buffer),
-          (buffer.remaining() * Integer.BYTES));
+          (buffer.remaining() * Long.BYTES));
     }
 
     /**
@@ -756,16 +1585,23 @@ public final class ClRuntime implements AutoCloseable {
     }
 
     private VideoMemBuffer createBuffer(int capacityBytes, int flags) {
-      try (MemoryStack stack = MemoryStack.stackPush()) {
-        IntBuffer err = stack.mallocInt(1);
-        long bufferId = clCreateBuffer(this.context.getId(), flags, capacityBytes, err);
-        if (CL_OUT_OF_HOST_MEMORY == err.get(0)) {
-          throw new OutOfMemoryError("Can not allocate memory");
-        }
-        validateCL(err.get(0), "Can not create OpenCL memory buffer");
-        VideoMemBuffer result = new VideoMemBuffer(bufferId, capacityBytes);
-        this.memBuffers.push(result);
-        return result;
+      return owned(context.createBuffer(capacityBytes, flags));
+    }
+
+    /**
+     * Registers buffer to be released with this queue, unless freed before
+     */
+    private VideoMemBuffer owned(VideoMemBuffer buffer) {
+      buffer.owner = this;
+      synchronized (memBuffers) {
+        memBuffers.push(buffer);
+      }
+      return buffer;
+    }
+
+    private void disown(VideoMemBuffer buffer) {
+      synchronized (memBuffers) {
+        memBuffers.remove(buffer);
       }
     }
 
@@ -777,10 +1613,88 @@ public final class ClRuntime implements AutoCloseable {
       return createBuffer(capacityBytes, CL_MEM_READ_WRITE);
     }
 
+    /**
+     * Creates OpenCL read-write memory buffer allocated by the driver in host accessible (pinned)
+     * memory. Such buffers should be accessed from host with
+     * {@link #map(VideoMemBuffer, MapAccess)}, which is zero-copy for CPU and integrated devices and
+     * DMA transfer for discrete devices
+     * 
+     * @param capacityBytes buffer size in bytes
+     * @return new staging memory buffer
+     */
+    public VideoMemBuffer createStagingBuffer(final int capacityBytes) {
+      return createBuffer(capacityBytes, CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR);
+    }
+
+    /**
+     * Maps whole memory buffer into host address space, blocks until mapping is complete
+     * 
+     * @param buffer memory buffer to map
+     * @param access host access to the mapped memory
+     * @return direct byte buffer view of the mapped memory
+     */
+    public ByteBuffer map(VideoMemBuffer buffer, MapAccess access) {
+      return map(buffer, access, 0, buffer.getCapacity());
+    }
+
+    /**
+     * Maps memory buffer region into host address space, blocks until mapping is complete
+     * 
+     * @param buffer memory buffer to map
+     * @param access host access to the mapped memory
+     * @param offset region offset in bytes
+     * @param length region length in bytes
+     * @param waitList events to be completed before mapping
+     * @return direct byte buffer view of the mapped memory
+     */
+    public ByteBuffer map(VideoMemBuffer buffer, MapAccess access, long offset, int length,
+        Event... waitList) {
+      final long start = System.nanoTime();
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        IntBuffer err = stack.mallocInt(1);
+        PointerBuffer event = isObserved() ? stack.mallocPointer(1) : null;
+        ByteBuffer result = clEnqueueMapBuffer(id, buffer.getId(), true, access.clFlags(), offset,
+            length, ClRuntime.waitList(stack, waitList), event, err, null);
+        if (CL_OUT_OF_HOST_MEMORY == err.get(0)) {
+          throw new OutOfMemoryError("Can not map memory");
+        }
+        validateCL(err.get(0), "Can not map OpenCL memory buffer");
+        if (null != event) {
+          enqueued(CommandType.MAP, CommandType.MAP.name(), length, start, new Event(event.get(0)))
+              .close();
+        } else {
+          submitted(CommandType.MAP, length);
+        }
+        blockingCompleted();
+        return result;
+      }
+    }
+
+    /**
+     * Enqueues un-mapping of the memory previously mapped by
+     * {@link #map(VideoMemBuffer, MapAccess)}. Mapped view must not be used after this call
+     * 
+     * @param buffer mapped memory buffer
+     * @param mapped mapped memory view
+     * @param waitList events to be completed before un-mapping
+     * @return event bound to un-map command
+     */
+    public Event unmap(VideoMemBuffer buffer, ByteBuffer mapped, Event... waitList) {
+      final long start = System.nanoTime();
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        PointerBuffer event = stack.mallocPointer(1);
+        validateCL(clEnqueueUnmapMemObject(id, buffer.getId(), mapped,
+            ClRuntime.waitList(stack, waitList), event), "Can not unmap OpenCL memory buffer");
+        return enqueued(CommandType.UNMAP, CommandType.UNMAP.name(), 0L, start,
+            new Event(event.get(0)));
+      }
+    }
+
     public void finish() {
       if (CL_SUCCESS != clFinish(id)) {
         throw new OutOfMemoryError("failure to allocate resources");
       }
+      drained();
     }
 
     public void flush() {
@@ -789,28 +1703,625 @@ public final class ClRuntime implements AutoCloseable {
       }
     }
 
-    void readVideoMemory(VideoMemBuffer src, ByteBuffer dst) {
-      validateCL(clEnqueueReadBuffer(id, src.getId(), true, 0, dst, null, null), "Invalid buffer");
+    private static <T extends Buffer> T direct(T buffer) {
+      if (!buffer.isDirect()) {
+        throw new IllegalArgumentException("Direct host buffer expected");
+      }
+      return buffer;
+    }
+
+    private static void checkRange(VideoMemBuffer buffer, long offset, long size) {
+      if (offset < 0 || size < 0 || offset + size > buffer.getCapacity()) {
+        throw new IllegalArgumentException(
+            String.format("Range [%d, %d) is out of buffer capacity %d", offset, offset + size,
+                buffer.getCapacity()));
+      }
+    }
+
+    private Event enqueueWrite(VideoMemBuffer dst, long offset, long address, long size,
+        Event[] waitList) {
+      checkRange(dst, offset, size);
+      final long start = System.nanoTime();
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        PointerBuffer waits = ClRuntime.waitList(stack, waitList);
+        PointerBuffer event = stack.mallocPointer(1);
+        validateCL(nclEnqueueWriteBuffer(id, dst.getId(), CL_FALSE, offset, size, address,
+            null == waits ? 0 : waits.remaining(), MemoryUtil.memAddressSafe(waits),
+            MemoryUtil.memAddress(event)), "Can not enqueue memory buffer write");
+        return enqueued(CommandType.WRITE, CommandType.WRITE.name(), size, start,
+            new Event(event.get(0)));
+      }
+    }
+
+    private Event enqueueRead(VideoMemBuffer src, long offset, long address, long size,
+        Event[] waitList) {
+      checkRange(src, offset, size);
+      final long start = System.nanoTime();
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        PointerBuffer waits = ClRuntime.waitList(stack, waitList);
+        PointerBuffer event = stack.mallocPointer(1);
+        validateCL(nclEnqueueReadBuffer(id, src.getId(), CL_FALSE, offset, size, address,
+            null == waits ? 0 : waits.remaining(), MemoryUtil.memAddressSafe(waits),
+            MemoryUtil.memAddress(event)), "Can not enqueue memory buffer read");
+        return enqueued(CommandType.READ, CommandType.READ.name(), size, start,
+            new Event(event.get(0)));
+      }
+    }
+
+    /**
+     * Enqueues non-blocking write of host memory into OpenCL memory buffer. Host memory must be a
+     * direct buffer, kept reachable and unchanged until the returned event is complete
+     * 
+     * @param dst memory buffer to write into
+     * @param offset offset in bytes in memory buffer
+     * @param src host memory to write, from position to limit
+     * @param waitList events to be completed before writing
+     * @return event bound to the write command
+     */
+    public Event enqueueWrite(VideoMemBuffer dst, long offset, ByteBuffer src, Event... waitList) {
+      return enqueueWrite(dst, offset, MemoryUtil.memAddress(direct(src)), src.remaining(),
+          waitList);
+    }
+
+    /**
+     * Enqueues non-blocking write of host memory into OpenCL memory buffer. Host memory must be a
+     * direct buffer, kept reachable and unchanged until the returned event is complete
+     * 
+     * @param dst memory buffer to write into
+     * @param offset offset in bytes in memory buffer
+     * @param src host memory to write, from position to limit
+     * @param waitList events to be completed before writing
+     * @return event bound to the write command
+     */
+    public Event enqueueWrite(VideoMemBuffer dst, long offset, ShortBuffer src, Event... waitList) {
+      return enqueueWrite(dst, offset, MemoryUtil.memAddress(direct(src)),
+          (long) src.remaining() * Short.BYTES, waitList);
+    }
+
+    /**
+     * Enqueues non-blocking write of host memory into OpenCL memory buffer. Host memory must be a
+     * direct buffer, kept reachable and unchanged until the returned event is complete
+     * 
+     * @param dst memory buffer to write into
+     * @param offset offset in bytes in memory buffer
+     * @param src host memory to write, from position to limit
+     * @param waitList events to be completed before writing
+     * @return event bound to the write command
+     */
+    public Event enqueueWrite(VideoMemBuffer dst, long offset, IntBuffer src, Event... waitList) {
+      return enqueueWrite(dst, offset, MemoryUtil.memAddress(direct(src)),
+          (long) src.remaining() * Integer.BYTES, waitList);
+    }
+
+    /**
+     * Enqueues non-blocking write of host memory into OpenCL memory buffer. Host memory must be a
+     * direct buffer, kept reachable and unchanged until the returned event is complete
+     * 
+     * @param dst memory buffer to write into
+     * @param offset offset in bytes in memory buffer
+     * @param src host memory to write, from position to limit
+     * @param waitList events to be completed before writing
+     * @return event bound to the write command
+     */
+    public Event enqueueWrite(VideoMemBuffer dst, long offset, LongBuffer src, Event... waitList) {
+      return enqueueWrite(dst, offset, MemoryUtil.memAddress(direct(src)),
+          (long) src.remaining() * Long.BYTES, waitList);
+    }
+
+    /**
+     * Enqueues non-blocking write of host memory into OpenCL memory buffer. Host memory must be a
+     * direct buffer, kept reachable and unchanged until the returned event is complete
+     * 
+     * @param dst memory buffer to write into
+     * @param offset offset in bytes in memory buffer
+     * @param src host memory to write, from position to limit
+     * @param waitList events to be completed before writing
+     * @return event bound to the write command
+     */
+    public Event enqueueWrite(VideoMemBuffer dst, long offset, FloatBuffer src, Event... waitList) {
+      return enqueueWrite(dst, offset, MemoryUtil.memAddress(direct(src)),
+          (long) src.remaining() * Float.BYTES, waitList);
+    }
+
+    /**
+     * Enqueues non-blocking write of host memory into OpenCL memory buffer. Host memory must be a
+     * direct buffer, kept reachable and unchanged until the returned event is complete
+     * 
+     * @param dst memory buffer to write into
+     * @param offset offset in bytes in memory buffer
+     * @param src host memory to write, from position to limit
+     * @param waitList events to be completed before writing
+     * @return event bound to the write command
+     */
+    public Event enqueueWrite(VideoMemBuffer dst, long offset, DoubleBuffer src,
+        Event... waitList) {
+      return enqueueWrite(dst, offset, MemoryUtil.memAddress(direct(src)),
+          (long) src.remaining() * Double.BYTES, waitList);
+    }
+
+    /**
+     * Enqueues non-blocking read of OpenCL memory buffer region into host memory. Host memory must
+     * be a direct buffer kept reachable until the returned event is complete, and can be used only
+     * then
+     * 
+     * @param src memory buffer to read from
+     * @param offset offset in bytes in memory buffer
+     * @param dst host memory to read into, from position to limit
+     * @param waitList events to be completed before reading
+     * @return event bound to the read command
+     */
+    public Event enqueueRead(VideoMemBuffer src, long offset, ByteBuffer dst, Event... waitList) {
+      return enqueueRead(src, offset, MemoryUtil.memAddress(direct(dst)), dst.remaining(),
+          waitList);
+    }
+
+    /**
+     * Enqueues non-blocking read of OpenCL memory buffer region into host memory. Host memory must
+     * be a direct buffer kept reachable until the returned event is complete, and can be used only
+     * then
+     * 
+     * @param src memory buffer to read from
+     * @param offset offset in bytes in memory buffer
+     * @param dst host memory to read into, from position to limit
+     * @param waitList events to be completed before reading
+     * @return event bound to the read command
+     */
+    public Event enqueueRead(VideoMemBuffer src, long offset, ShortBuffer dst, Event... waitList) {
+      return enqueueRead(src, offset, MemoryUtil.memAddress(direct(dst)),
+          (long) dst.remaining() * Short.BYTES, waitList);
+    }
+
+    /**
+     * Enqueues non-blocking read of OpenCL memory buffer region into host memory. Host memory must
+     * be a direct buffer kept reachable until the returned event is complete, and can be used only
+     * then
+     * 
+     * @param src memory buffer to read from
+     * @param offset offset in bytes in memory buffer
+     * @param dst host memory to read into, from position to limit
+     * @param waitList events to be completed before reading
+     * @return event bound to the read command
+     */
+    public Event enqueueRead(VideoMemBuffer src, long offset, IntBuffer dst, Event... waitList) {
+      return enqueueRead(src, offset, MemoryUtil.memAddress(direct(dst)),
+          (long) dst.remaining() * Integer.BYTES, waitList);
+    }
+
+    /**
+     * Enqueues non-blocking read of OpenCL memory buffer region into host memory. Host memory must
+     * be a direct buffer kept reachable until the returned event is complete, and can be used only
+     * then
+     * 
+     * @param src memory buffer to read from
+     * @param offset offset in bytes in memory buffer
+     * @param dst host memory to read into, from position to limit
+     * @param waitList events to be completed before reading
+     * @return event bound to the read command
+     */
+    public Event enqueueRead(VideoMemBuffer src, long offset, LongBuffer dst, Event... waitList) {
+      return enqueueRead(src, offset, MemoryUtil.memAddress(direct(dst)),
+          (long) dst.remaining() * Long.BYTES, waitList);
+    }
+
+    /**
+     * Enqueues non-blocking read of OpenCL memory buffer region into host memory. Host memory must
+     * be a direct buffer kept reachable until the returned event is complete, and can be used only
+     * then
+     * 
+     * @param src memory buffer to read from
+     * @param offset offset in bytes in memory buffer
+     * @param dst host memory to read into, from position to limit
+     * @param waitList events to be completed before reading
+     * @return event bound to the read command
+     */
+    public Event enqueueRead(VideoMemBuffer src, long offset, FloatBuffer dst, Event... waitList) {
+      return enqueueRead(src, offset, MemoryUtil.memAddress(direct(dst)),
+          (long) dst.remaining() * Float.BYTES, waitList);
+    }
+
+    /**
+     * Enqueues non-blocking read of OpenCL memory buffer region into host memory. Host memory must
+     * be a direct buffer kept reachable until the returned event is complete, and can be used only
+     * then
+     * 
+     * @param src memory buffer to read from
+     * @param offset offset in bytes in memory buffer
+     * @param dst host memory to read into, from position to limit
+     * @param waitList events to be completed before reading
+     * @return event bound to the read command
+     */
+    public Event enqueueRead(VideoMemBuffer src, long offset, DoubleBuffer dst, Event... waitList) {
+      return enqueueRead(src, offset, MemoryUtil.memAddress(direct(dst)),
+          (long) dst.remaining() * Double.BYTES, waitList);
+    }
+
+    /**
+     * Enqueues copy between OpenCL memory buffers, data never leaves the device
+     * 
+     * @param src memory buffer to copy from
+     * @param srcOffset offset in bytes in source buffer
+     * @param dst memory buffer to copy into
+     * @param dstOffset offset in bytes in destination buffer
+     * @param size number of bytes to copy
+     * @param waitList events to be completed before copying
+     * @return event bound to the copy command
+     */
+    public Event enqueueCopy(VideoMemBuffer src, long srcOffset, VideoMemBuffer dst,
+        long dstOffset, long size, Event... waitList) {
+      checkRange(src, srcOffset, size);
+      checkRange(dst, dstOffset, size);
+      final long start = System.nanoTime();
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        PointerBuffer event = stack.mallocPointer(1);
+        validateCL(clEnqueueCopyBuffer(id, src.getId(), dst.getId(), srcOffset, dstOffset, size,
+            ClRuntime.waitList(stack, waitList), event), "Can not enqueue memory buffer copy");
+        return enqueued(CommandType.COPY, CommandType.COPY.name(), size, start,
+            new Event(event.get(0)));
+      }
+    }
+
+    /**
+     * Enqueues filling OpenCL memory buffer region with a pattern. Requires OpenCL 1.2+
+     * 
+     * @param dst memory buffer to fill
+     * @param pattern pattern to fill with, from position to limit. Pattern size must be a power of
+     *        two not greater than 128 bytes
+     * @param offset offset in bytes in memory buffer, multiple of the pattern size
+     * @param size number of bytes to fill, multiple of the pattern size
+     * @param waitList events to be completed before filling
+     * @return event bound to the fill command
+     */
+    public Event enqueueFill(VideoMemBuffer dst, ByteBuffer pattern, long offset, long size,
+        Event... waitList) {
+      checkRange(dst, offset, size);
+      final long start = System.nanoTime();
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        PointerBuffer event = stack.mallocPointer(1);
+        validateCL(clEnqueueFillBuffer(id, dst.getId(), pattern, offset, size,
+            ClRuntime.waitList(stack, waitList), event), "Can not enqueue memory buffer fill");
+        return enqueued(CommandType.FILL, CommandType.FILL.name(), size, start,
+            new Event(event.get(0)));
+      }
+    }
+
+    /**
+     * Enqueues filling OpenCL memory buffer region with an integer value. Requires OpenCL 1.2+
+     * 
+     * @param dst memory buffer to fill
+     * @param value value to fill with
+     * @param offset offset in bytes in memory buffer, multiple of 4
+     * @param size number of bytes to fill, multiple of 4
+     * @param waitList events to be completed before filling
+     * @return event bound to the fill command
+     */
+    public Event enqueueFill(VideoMemBuffer dst, int value, long offset, long size,
+        Event... waitList) {
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        ByteBuffer pattern = stack.malloc(Integer.BYTES);
+        pattern.putInt(0, value);
+        return enqueueFill(dst, pattern, offset, size, waitList);
+      }
+    }
+
+    /**
+     * Enqueues filling OpenCL memory buffer region with a float value. Requires OpenCL 1.2+
+     * 
+     * @param dst memory buffer to fill
+     * @param value value to fill with
+     * @param offset offset in bytes in memory buffer, multiple of 4
+     * @param size number of bytes to fill, multiple of 4
+     * @param waitList events to be completed before filling
+     * @return event bound to the fill command
+     */
+    public Event enqueueFill(VideoMemBuffer dst, float value, long offset, long size,
+        Event... waitList) {
+      return enqueueFill(dst, Float.floatToRawIntBits(value), offset, size, waitList);
     }
 
-    void close() {
-      while (!this.memBuffers.isEmpty()) {
-        memBuffers.pop().free();
+    /**
+     * Reads OpenCL memory buffer into host memory, blocks until read is complete
+     * 
+     * @param src memory buffer to read from
+     * @param dst host memory to read into, from position to limit
+     */
+    public void readVideoMemory(VideoMemBuffer src, ByteBuffer dst) {
+      if (!isObserved()) {
+        validateCL(clEnqueueReadBuffer(id, src.getId(), true, 0, dst, null, null),
+            "Invalid buffer");
+        submitted(CommandType.READ, dst.remaining());
+      } else {
+        final long start = System.nanoTime();
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+          PointerBuffer event = stack.mallocPointer(1);
+          validateCL(clEnqueueReadBuffer(id, src.getId(), true, 0, dst, null, event),
+              "Invalid buffer");
+          enqueued(CommandType.READ, CommandType.READ.name(), dst.remaining(), start,
+              new Event(event.get(0))).close();
+        }
       }
+      blockingCompleted();
+    }
+
+    /**
+     * Releases all memory buffers created by this queue and the queue itself
+     */
+    @Override
+    public void close() throws RuntimeException {
+      VideoMemBuffer buffer;
+      do {
+        synchronized (memBuffers) {
+          buffer = memBuffers.poll();
+        }
+        if (null != buffer) {
+          buffer.free();
+        }
+      } while (null != buffer);
+      drained();
       validateCL(clReleaseCommandQueue(id));
     }
 
   }
 
+  /**
+   * OpenCL command queue properties
+   */
+  public enum QueueProperty {
+    /**
+     * Commands are executed out of order, dependencies are defined by event wait lists only
+     */
+    OUT_OF_ORDER(CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE),
+    /**
+     * Command events carry queued, submit, start and end device timestamps
+     */
+    PROFILING(CL_QUEUE_PROFILING_ENABLE);
+
+    private final long cl;
+
+    private QueueProperty(long cl) {
+      this.cl = cl;
+    }
+
+    /**
+     * Returns OpenCL command queue properties bitfield value to pass into OpenCL functions
+     * 
+     * @return OpenCL command queue property
+     */
+    public long clFlags() {
+      return cl;
+    }
+
+  }
+
+  /**
+   * Host access to mapped OpenCL memory
+   */
+  public enum MapAccess {
+    /**
+     * Host only reads mapped memory
+     */
+    READ(CL_MAP_READ),
+    /**
+     * Host only writes mapped memory
+     */
+    WRITE(CL_MAP_WRITE),
+    /**
+     * Host reads and writes mapped memory
+     */
+    READ_WRITE(CL_MAP_READ | CL_MAP_WRITE);
+
+    private final int cl;
+
+    private MapAccess(int cl) {
+      this.cl = cl;
+    }
+
+    /**
+     * Returns OpenCL map flags value to pass into OpenCL functions
+     * 
+     * @return OpenCL map flags
+     */
+    public int clFlags() {
+      return cl;
+    }
+
+  }
+
+  /**
+   * OpenCL event object helper. Event is signaled when the command it was returned by is complete
+   */
+  public static final class Event implements AutoCloseable {
+
+    private final long id;
+
+    private final AtomicBoolean released;
+
+    private CompletableFuture<Event> completion;
+
+    Event(final long id) {
+      this.id = id;
+      this.released = new AtomicBoolean();
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    /**
+     * Returns command execution status i.e. one of CL_QUEUED, CL_SUBMITTED, CL_RUNNING, CL_COMPLETE
+     * or negative error code when command was abnormally terminated
+     * 
+     * @return command execution status
+     */
+    public int getStatus() {
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        IntBuffer status = stack.mallocInt(1);
+        validateCL(clGetEventInfo(id, CL_EVENT_COMMAND_EXECUTION_STATUS, status, null),
+            "Can not obtain event status");
+        return status.get(0);
+      }
+    }
+
+    /**
+     * Checks whether command bound to this event is complete
+     * 
+     * @return whether command is complete
+     */
+    public boolean isComplete() {
+      return CL_COMPLETE == getStatus();
+    }
+
+    /**
+     * Blocks current thread until the command bound to this event is complete
+     */
+    public void waitFor() {
+      validateCL(clWaitForEvents(id), "Command execution failed");
+    }
+
+    private long getProfilingInfo(int paramName) {
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        LongBuffer value = stack.mallocLong(1);
+        validateCL(clGetEventProfilingInfo(id, paramName, value, null),
+            "Can not obtain event profiling info, command queue profiling is not enabled or command"
+                + " is not complete");
+        return value.get(0);
+      }
+    }
+
+    /**
+     * Returns device time when the command was enqueued by the host. Requires profiling enabled
+     * command queue
+     * 
+     * @return device time counter in nanoseconds
+     */
+    public long getQueuedTime() {
+      return getProfilingInfo(CL_PROFILING_COMMAND_QUEUED);
+    }
+
+    /**
+     * Returns device time when the command was submitted to the device. Requires profiling enabled
+     * command queue
+     * 
+     * @return device time counter in nanoseconds
+     */
+    public long getSubmitTime() {
+      return getProfilingInfo(CL_PROFILING_COMMAND_SUBMIT);
+    }
+
+    /**
+     * Returns device time when the command started execution. Requires profiling enabled command
+     * queue
+     * 
+     * @return device time counter in nanoseconds
+     */
+    public long getStartTime() {
+      return getProfilingInfo(CL_PROFILING_COMMAND_START);
+    }
+
+    /**
+     * Returns device time when the command finished execution. Requires profiling enabled command
+     * queue
+     * 
+     * @return device time counter in nanoseconds
+     */
+    public long getEndTime() {
+      return getProfilingInfo(CL_PROFILING_COMMAND_END);
+    }
+
+    /**
+     * Registers completion callback for this event. Returned future is completed from the OpenCL
+     * driver thread, so heavy dependent stages should use async completion stage methods
+     * 
+     * @return future completed when the command bound to this event is complete
+     */
+    public synchronized CompletableFuture<Event> toFuture() {
+      if (null == completion) {
+        completion = new CompletableFuture<>();
+        EventCompletion.register(this);
+      }
+      return completion;
+    }
+
+    /**
+     * Releases the event, subsequent calls have no effect
+     */
+    @Override
+    public void close() throws RuntimeException {
+      if (released.compareAndSet(false, true)) {
+        validateCL(clReleaseEvent(id));
+      }
+    }
+
+  }
+
+  /**
+   * Routes OpenCL event callbacks into futures with a single native callback, so no native callback
+   * object have to be allocated and released per event
+   */
+  private static final class EventCompletion {
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private static final ConcurrentMap<Long, Event> PENDING = new ConcurrentHashMap<>();
+
+    private static final CLEventCallback CALLBACK = CLEventCallback.create(EventCompletion::invoke);
+
+    private EventCompletion() {}
+
+    static void register(Event event) {
+      final Long key = SEQUENCE.incrementAndGet();
+      PENDING.put(key, event);
+      // keep event alive until callback, even when closed by caller
+      validateCL(clRetainEvent(event.getId()));
+      int errCode = clSetEventCallback(event.getId(), CL_COMPLETE, CALLBACK, key);
+      if (CL_SUCCESS != errCode) {
+        PENDING.remove(key);
+        clReleaseEvent(event.getId());
+        event.completion
+            .completeExceptionally(new CLRuntimeException(errCode, "Can not set event callback"));
+      }
+    }
+
+    private static void invoke(long eventId, int status, long key) {
+      Event event = PENDING.remove(key);
+      try {
+        if (null != event) {
+          if (status < 0) {
+            event.completion.completeExceptionally(
+                new CLRuntimeException(status, "Command was abnormally terminated"));
+          } else {
+            event.completion.complete(event);
+          }
+        }
+      } finally {
+        // released after dependent stages, so they can still query the event
+        clReleaseEvent(eventId);
+      }
+    }
+
+  }
+
   public static final class VideoMemBuffer {
 
     private final long id;
 
     private final int capacity;
 
-    VideoMemBuffer(final long id, final int capacity) {
+    private final ContextMetrics metrics;
+
+    private final AtomicBoolean freed;
+
+    // command queue releasing this buffer on close, if any
+    private CommandQueue owner;
+
+    VideoMemBuffer(final ContextMetrics metrics, final long id, final int capacity) {
+      this.metrics = metrics;
       this.id = id;
       this.capacity = capacity;
+      this.freed = new AtomicBoolean();
+      if (!isNull()) {
+        metrics.allocated(capacity);
+        FlightRecorderEvents.bufferAllocated(metrics.getDeviceName(), capacity);
+      }
     }
 
     public boolean isNull() {
@@ -825,9 +2336,17 @@ public final class ClRuntime implements AutoCloseable {
       return capacity;
     }
 
+    /**
+     * Releases the buffer, subsequent calls have no effect
+     */
     public void free() {
-      if (!isNull()) {
+      if (!isNull() && freed.compareAndSet(false, true)) {
         clReleaseMemObject(this.id);
+        metrics.freed(capacity);
+        FlightRecorderEvents.bufferReleased(metrics.getDeviceName(), capacity);
+        if (null != owner) {
+          owner.disown(this);
+        }
       }
     }
 
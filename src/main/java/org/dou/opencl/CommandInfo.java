@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+/**
+ * Enqueued OpenCL command description passed to {@link CommandListener}.
+ *
+ * Command event is owned by the enqueuing code and can be released at any time after the listener
+ * returns, so listeners should observe completion with {@link ClRuntime.Event#toFuture()} only,
+ * which keeps native event alive until the command is complete.
+ *
+ * @author Viktor Gubin
+ */
+public final class CommandInfo {
+
+  private final ClRuntime.CommandQueue queue;
+  private final CommandType type;
+  private final String name;
+  // transferred bytes or kernel work items
+  private final long size;
+  private final long enqueueTime;
+  private final ClRuntime.Event event;
+
+  CommandInfo(ClRuntime.CommandQueue queue, CommandType type, String name, long size,
+      long enqueueTime, ClRuntime.Event event) {
+    this.queue = queue;
+    this.type = type;
+    this.name = name;
+    this.size = size;
+    this.enqueueTime = enqueueTime;
+    this.event = event;
+  }
+
+  public ClRuntime.CommandQueue getQueue() {
+    return queue;
+  }
+
+  public CommandType getType() {
+    return type;
+  }
+
+  /**
+   * Returns command name, i.e. kernel name for kernel commands and command type name otherwise
+   *
+   * @return command name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns number of bytes transferred by the command
+   *
+   * @return transferred bytes or 0 for kernel commands
+   */
+  public long getBytes() {
+    return CommandType.KERNEL == type ? 0L : size;
+  }
+
+  /**
+   * Returns total number of global work items of kernel commands
+   *
+   * @return work items or 0 for memory commands
+   */
+  public long getWorkItems() {
+    return CommandType.KERNEL == type ? size : 0L;
+  }
+
+  /**
+   * Returns host {@link System#nanoTime()} captured before the command was enqueued
+   *
+   * @return host enqueue time in nanoseconds
+   */
+  public long getEnqueueTime() {
+    return enqueueTime;
+  }
+
+  public ClRuntime.Event getEvent() {
+    return event;
+  }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+/**
+ * Listener of commands enqueued into command queues of a context, e.g. for profiling, metrics or
+ * tracing. Listener is called on the enqueuing thread, so it must be fast and thread safe.
+ *
+ * @see ClRuntime.Context#addCommandListener(CommandListener)
+ * @author Viktor Gubin
+ */
+@FunctionalInterface
+public interface CommandListener {
+
+  /**
+   * Called right after the command is enqueued
+   *
+   * @param command enqueued command
+   */
+  void enqueued(CommandInfo command);
+
+}
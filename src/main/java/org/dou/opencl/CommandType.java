@@ -0,0 +1,66 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+/**
+ * OpenCL command types reported to {@link CommandListener}
+ *
+ * @author Viktor Gubin
+ */
+public enum CommandType {
+  /**
+   * Kernel N-dimensional range execution
+   */
+  KERNEL(false),
+  /**
+   * Host to device memory transfer
+   */
+  WRITE(true),
+  /**
+   * Device to host memory transfer
+   */
+  READ(true),
+  /**
+   * Device to device memory copy
+   */
+  COPY(true),
+  /**
+   * Device memory fill with a pattern
+   */
+  FILL(true),
+  /**
+   * Mapping device memory into host address space
+   */
+  MAP(true),
+  /**
+   * Un-mapping device memory from host address space
+   */
+  UNMAP(false);
+
+  private final boolean transfer;
+
+  private CommandType(boolean transfer) {
+    this.transfer = transfer;
+  }
+
+  /**
+   * Checks whether command moves memory
+   *
+   * @return whether command is a memory transfer
+   */
+  public boolean isTransfer() {
+    return transfer;
+  }
+
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Live counters of an OpenCL context, i.e. memory buffers, kernel launches, transfers, commands
+ * enqueued since queues were drained and program builds. Counters are striped, so updating them on
+ * command queue and kernel hot paths costs an uncontended add.
+ *
+ * Metrics are registered in the platform MBean server as
+ * <code>org.dou.opencl:type=Context,device=&lt;device name&gt;,id=&lt;context id&gt;</code> when the
+ * context is created, and unregistered when it is closed.
+ *
+ * @see ClRuntime.Context#getMetrics()
+ * @author Viktor Gubin
+ */
+public final class ContextMetrics implements ContextMetricsMXBean {
+
+  private final String deviceName;
+  private final ObjectName objectName;
+  private final LongAdder allocations;
+  private final LongAdder frees;
+  private final LongAdder allocatedBytes;
+  private final LongAdder freedBytes;
+  private final ConcurrentMap<String, LongAdder> kernelLaunches;
+  private final LongAdder uploaded;
+  private final LongAdder downloaded;
+  private final LongAdder queued;
+  private final LongAdder builds;
+  private final LongAdder buildNanos;
+  private final Rate allocationRate;
+  private final Rate freeRate;
+
+  ContextMetrics(String deviceName, long contextId) {
+    this.deviceName = deviceName;
+    this.objectName = objectName(deviceName, contextId);
+    this.allocations = new LongAdder();
+    this.frees = new LongAdder();
+    this.allocatedBytes = new LongAdder();
+    this.freedBytes = new LongAdder();
+    this.kernelLaunches = new ConcurrentHashMap<>();
+    this.uploaded = new LongAdder();
+    this.downloaded = new LongAdder();
+    this.queued = new LongAdder();
+    this.builds = new LongAdder();
+    this.buildNanos = new LongAdder();
+    this.allocationRate = new Rate();
+    this.freeRate = new Rate();
+  }
+
+  private static ObjectName objectName(String deviceName, long contextId) {
+    try {
+      return new ObjectName("org.dou.opencl:type=Context,device=" + ObjectName.quote(deviceName)
+          + ",id=" + Long.toHexString(contextId));
+    } catch (JMException exc) {
+      return null;
+    }
+  }
+
+  /**
+   * Registers metrics in the platform MBean server, monitoring is optional so failures are ignored
+   */
+  void register() {
+    if (null != objectName) {
+      try {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (!server.isRegistered(objectName)) {
+          server.registerMBean(this, objectName);
+        }
+      } catch (JMException | SecurityException exc) {
+        // not monitored
+      }
+    }
+  }
+
+  void unregister() {
+    if (null != objectName) {
+      try {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName)) {
+          server.unregisterMBean(objectName);
+        }
+      } catch (JMException | SecurityException exc) {
+        // not monitored
+      }
+    }
+  }
+
+  public ObjectName getObjectName() {
+    return objectName;
+  }
+
+  void allocated(long bytes) {
+    allocations.increment();
+    allocatedBytes.add(bytes);
+  }
+
+  void freed(long bytes) {
+    frees.increment();
+    freedBytes.add(bytes);
+  }
+
+  /**
+   * Returns launch counter of the kernel, so kernels can count launches without a map lookup
+   *
+   * @param kernelName kernel name
+   * @return launches counter
+   */
+  LongAdder kernelLaunches(String kernelName) {
+    return kernelLaunches.computeIfAbsent(kernelName, name -> new LongAdder());
+  }
+
+  void uploaded(long bytes) {
+    uploaded.add(bytes);
+  }
+
+  void downloaded(long bytes) {
+    downloaded.add(bytes);
+  }
+
+  void queued(long commands) {
+    queued.add(commands);
+  }
+
+  void built(long nanos) {
+    builds.increment();
+    buildNanos.add(nanos);
+  }
+
+  @Override
+  public String getDeviceName() {
+    return deviceName;
+  }
+
+  @Override
+  public long getBufferCount() {
+    return allocations.sum() - frees.sum();
+  }
+
+  @Override
+  public long getBufferBytes() {
+    return allocatedBytes.sum() - freedBytes.sum();
+  }
+
+  @Override
+  public long getAllocations() {
+    return allocations.sum();
+  }
+
+  @Override
+  public long getFrees() {
+    return frees.sum();
+  }
+
+  @Override
+  public double getAllocationRate() {
+    return allocationRate.update(allocations.sum());
+  }
+
+  @Override
+  public double getFreeRate() {
+    return freeRate.update(frees.sum());
+  }
+
+  @Override
+  public Map<String, Long> getKernelLaunches() {
+    Map<String, Long> result = new TreeMap<>();
+    kernelLaunches.forEach((name, launches) -> result.put(name, launches.sum()));
+    return result;
+  }
+
+  @Override
+  public long getTotalKernelLaunches() {
+    long result = 0;
+    for (LongAdder launches : kernelLaunches.values()) {
+      result += launches.sum();
+    }
+    return result;
+  }
+
+  @Override
+  public long getBytesUploaded() {
+    return uploaded.sum();
+  }
+
+  @Override
+  public long getBytesDownloaded() {
+    return downloaded.sum();
+  }
+
+  @Override
+  public long getEnqueuedSinceDrain() {
+    // queue and context counters are not updated atomically
+    return Math.max(0L, queued.sum());
+  }
+
+  @Override
+  public long getProgramBuilds() {
+    return builds.sum();
+  }
+
+  @Override
+  public double getProgramBuildTime() {
+    return buildNanos.sum() / 1E6;
+  }
+
+  @Override
+  public String toString() {
+    return "ContextMetrics [deviceName=" + deviceName + ", buffers=" + getBufferCount()
+        + ", bufferBytes=" + getBufferBytes() + ", kernelLaunches=" + getTotalKernelLaunches()
+        + ", uploaded=" + getBytesUploaded() + ", downloaded=" + getBytesDownloaded() + "]";
+  }
+
+  /**
+   * Event rate between two subsequent samples of a counter
+   */
+  private static final class Rate {
+    private long time = System.nanoTime();
+    private long count;
+
+    synchronized double update(long current) {
+      long now = System.nanoTime();
+      long elapsed = now - time;
+      double result = elapsed > 0 ? (current - count) * 1E9 / elapsed : 0D;
+      time = now;
+      count = current;
+      return result;
+    }
+  }
+
+}
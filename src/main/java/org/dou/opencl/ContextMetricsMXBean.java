@@ -0,0 +1,91 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import java.util.Map;
+
+/**
+ * JMX management interface of {@link ContextMetrics}
+ *
+ * @author Viktor Gubin
+ */
+public interface ContextMetricsMXBean {
+
+  String getDeviceName();
+
+  /**
+   * Returns number of live memory buffers of the context
+   *
+   * @return allocated and not released buffers
+   */
+  long getBufferCount();
+
+  /**
+   * Returns size of live memory buffers of the context
+   *
+   * @return allocated and not released bytes
+   */
+  long getBufferBytes();
+
+  long getAllocations();
+
+  long getFrees();
+
+  /**
+   * Returns buffer allocation rate since previous call
+   *
+   * @return allocations per second
+   */
+  double getAllocationRate();
+
+  /**
+   * Returns buffer release rate since previous call
+   *
+   * @return frees per second
+   */
+  double getFreeRate();
+
+  /**
+   * Returns number of kernel launches per kernel name
+   *
+   * @return kernel name to launches map
+   */
+  Map<String, Long> getKernelLaunches();
+
+  long getTotalKernelLaunches();
+
+  long getBytesUploaded();
+
+  long getBytesDownloaded();
+
+  /**
+   * Returns approximate number of commands enqueued since each context command queue was last
+   * drained by finish, a blocking command or close. Completion of non blocking commands is not
+   * tracked, so for event driven pipelines which never drain their queues this is an upper bound
+   * of the queue depth growing with the number of enqueued commands
+   *
+   * @return approximate commands enqueued since the last drain
+   */
+  long getEnqueuedSinceDrain();
+
+  long getProgramBuilds();
+
+  /**
+   * Returns total time spent in clBuildProgram
+   *
+   * @return build time in milliseconds
+   */
+  double getProgramBuildTime();
+
+}
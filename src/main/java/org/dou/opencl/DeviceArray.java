@@ -0,0 +1,484 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * One dimensional array in device memory with elementwise operations. Each operation enqueues a
+ * generated kernel and returns a new array, operand arrays are not changed. Arrays hold device
+ * memory and must be closed.
+ *
+ * Binary operations require operands of the same type and length, comparisons return
+ * {@link ElementType#INT} masks of 0 and 1 usable with {@link #select(DeviceArray, DeviceArray)}.
+ * Chains of operations should use {@link #lazy()} expressions, which need no intermediate arrays.
+ *
+ * @see DeviceArrays
+ * @author Viktor Gubin
+ */
+public final class DeviceArray implements AutoCloseable {
+
+  private final DeviceArrays owner;
+  private final ElementType type;
+  private final int length;
+  private final ClRuntime.VideoMemBuffer buffer;
+
+  DeviceArray(DeviceArrays owner, ElementType type, int length, ClRuntime.VideoMemBuffer buffer) {
+    this.owner = owner;
+    this.type = type;
+    this.length = length;
+    this.buffer = buffer;
+  }
+
+  DeviceArrays getOwner() {
+    return owner;
+  }
+
+  public ElementType getType() {
+    return type;
+  }
+
+  public int length() {
+    return length;
+  }
+
+  /**
+   * Returns device memory of this array, e.g. to pass it into a custom kernel
+   *
+   * @return array memory buffer
+   */
+  public ClRuntime.VideoMemBuffer getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Returns lazy expression of this array, operations on it are fused into a single kernel
+   *
+   * @return expression leaf reading this array
+   */
+  public ArrayExpr lazy() {
+    return ArrayExpr.of(this);
+  }
+
+  /**
+   * Applies unary operation to each element
+   *
+   * @param op operation
+   * @return new array
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public DeviceArray map(UnaryOp op) throws ExecutionException {
+    return lazy().map(op).evaluate();
+  }
+
+  public DeviceArray neg() throws ExecutionException {
+    return map(UnaryOp.NEG);
+  }
+
+  public DeviceArray abs() throws ExecutionException {
+    return map(UnaryOp.ABS);
+  }
+
+  public DeviceArray exp() throws ExecutionException {
+    return map(UnaryOp.EXP);
+  }
+
+  public DeviceArray log() throws ExecutionException {
+    return map(UnaryOp.LOG);
+  }
+
+  public DeviceArray sqrt() throws ExecutionException {
+    return map(UnaryOp.SQRT);
+  }
+
+  /**
+   * Applies binary operation to pairs of elements of this and the other array
+   *
+   * @param op operation
+   * @param other right hand operand
+   * @return new array
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public DeviceArray zip(BinaryOp op, DeviceArray other) throws ExecutionException {
+    return lazy().zip(op, other.lazy()).evaluate();
+  }
+
+  /**
+   * Applies binary operation to each element and the scalar
+   *
+   * @param op operation
+   * @param scalar right hand operand, converted into the array element type
+   * @return new array
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public DeviceArray zip(BinaryOp op, Number scalar) throws ExecutionException {
+    return lazy().zip(op, scalar).evaluate();
+  }
+
+  public DeviceArray add(DeviceArray other) throws ExecutionException {
+    return zip(BinaryOp.ADD, other);
+  }
+
+  public DeviceArray add(Number scalar) throws ExecutionException {
+    return zip(BinaryOp.ADD, scalar);
+  }
+
+  public DeviceArray sub(DeviceArray other) throws ExecutionException {
+    return zip(BinaryOp.SUB, other);
+  }
+
+  public DeviceArray sub(Number scalar) throws ExecutionException {
+    return zip(BinaryOp.SUB, scalar);
+  }
+
+  public DeviceArray mul(DeviceArray other) throws ExecutionException {
+    return zip(BinaryOp.MUL, other);
+  }
+
+  public DeviceArray mul(Number scalar) throws ExecutionException {
+    return zip(BinaryOp.MUL, scalar);
+  }
+
+  public DeviceArray div(DeviceArray other) throws ExecutionException {
+    return zip(BinaryOp.DIV, other);
+  }
+
+  public DeviceArray div(Number scalar) throws ExecutionException {
+    return zip(BinaryOp.DIV, scalar);
+  }
+
+  public DeviceArray min(DeviceArray other) throws ExecutionException {
+    return zip(BinaryOp.MIN, other);
+  }
+
+  public DeviceArray min(Number scalar) throws ExecutionException {
+    return zip(BinaryOp.MIN, scalar);
+  }
+
+  public DeviceArray max(DeviceArray other) throws ExecutionException {
+    return zip(BinaryOp.MAX, other);
+  }
+
+  public DeviceArray max(Number scalar) throws ExecutionException {
+    return zip(BinaryOp.MAX, scalar);
+  }
+
+  public DeviceArray lt(DeviceArray other) throws ExecutionException {
+    return zip(BinaryOp.LT, other);
+  }
+
+  public DeviceArray lt(Number scalar) throws ExecutionException {
+    return zip(BinaryOp.LT, scalar);
+  }
+
+  public DeviceArray le(DeviceArray other) throws ExecutionException {
+    return zip(BinaryOp.LE, other);
+  }
+
+  public DeviceArray le(Number scalar) throws ExecutionException {
+    return zip(BinaryOp.LE, scalar);
+  }
+
+  public DeviceArray gt(DeviceArray other) throws ExecutionException {
+    return zip(BinaryOp.GT, other);
+  }
+
+  public DeviceArray gt(Number scalar) throws ExecutionException {
+    return zip(BinaryOp.GT, scalar);
+  }
+
+  public DeviceArray ge(DeviceArray other) throws ExecutionException {
+    return zip(BinaryOp.GE, other);
+  }
+
+  public DeviceArray ge(Number scalar) throws ExecutionException {
+    return zip(BinaryOp.GE, scalar);
+  }
+
+  public DeviceArray eq(DeviceArray other) throws ExecutionException {
+    return zip(BinaryOp.EQ, other);
+  }
+
+  public DeviceArray eq(Number scalar) throws ExecutionException {
+    return zip(BinaryOp.EQ, scalar);
+  }
+
+  public DeviceArray ne(DeviceArray other) throws ExecutionException {
+    return zip(BinaryOp.NE, other);
+  }
+
+  public DeviceArray ne(Number scalar) throws ExecutionException {
+    return zip(BinaryOp.NE, scalar);
+  }
+
+  /**
+   * Fused multiply-add, i.e. <code>this * factor + addend</code> elementwise
+   *
+   * @param factor multiplier array
+   * @param addend addend array
+   * @return new array
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public DeviceArray fma(DeviceArray factor, DeviceArray addend) throws ExecutionException {
+    return lazy().fma(factor.lazy(), addend.lazy()).evaluate();
+  }
+
+  /**
+   * Selects elements of the arrays by this mask, i.e. <code>mask != 0 ? ifTrue : ifFalse</code>
+   * elementwise
+   *
+   * @param ifTrue elements selected by non zero mask
+   * @param ifFalse elements selected by zero mask
+   * @return new array
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public DeviceArray select(DeviceArray ifTrue, DeviceArray ifFalse) throws ExecutionException {
+    return lazy().select(ifTrue.lazy(), ifFalse.lazy()).evaluate();
+  }
+
+  /**
+   * Converts elements into another type
+   *
+   * @param target target element type
+   * @return new array
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public DeviceArray convert(ElementType target) throws ExecutionException {
+    return lazy().convert(target).evaluate();
+  }
+
+  /**
+   * Sums elements on the device, only the sum is read back
+   *
+   * @return sum as float, double or long for integer types
+   * @throws ExecutionException in case of OpenCL error
+   * @see Reductions
+   */
+  public Number sum() throws ExecutionException {
+    return owner.getReductions().sum(this);
+  }
+
+  /**
+   * Sums elements on the device, only the sum is read back
+   *
+   * @param compensated whether to use compensated summation, ignored for integer types
+   * @return sum as float, double or long for integer types
+   * @throws ExecutionException in case of OpenCL error
+   * @see Reductions
+   */
+  public Number sum(boolean compensated) throws ExecutionException {
+    return owner.getReductions().sum(this, compensated);
+  }
+
+  public Number min() throws ExecutionException {
+    return owner.getReductions().min(this);
+  }
+
+  public Number max() throws ExecutionException {
+    return owner.getReductions().max(this);
+  }
+
+  public int argMin() throws ExecutionException {
+    return owner.getReductions().argMin(this);
+  }
+
+  public int argMax() throws ExecutionException {
+    return owner.getReductions().argMax(this);
+  }
+
+  private void checkRead(ElementType expected) {
+    if (type != expected) {
+      throw new IllegalStateException("Array of " + type + " can't be read as " + expected);
+    }
+  }
+
+  /**
+   * Copies array into the host, waits for all preceding operations
+   *
+   * @return array elements
+   */
+  public float[] toFloatArray() {
+    checkRead(ElementType.FLOAT);
+    ByteBuffer host = owner.download(this);
+    try {
+      float[] result = new float[length];
+      host.asFloatBuffer().get(result);
+      return result;
+    } finally {
+      MemoryUtil.memFree(host);
+    }
+  }
+
+  /**
+   * Copies array into the host, waits for all preceding operations
+   *
+   * @return array elements
+   */
+  public double[] toDoubleArray() {
+    checkRead(ElementType.DOUBLE);
+    ByteBuffer host = owner.download(this);
+    try {
+      double[] result = new double[length];
+      host.asDoubleBuffer().get(result);
+      return result;
+    } finally {
+      MemoryUtil.memFree(host);
+    }
+  }
+
+  /**
+   * Copies array into the host, waits for all preceding operations
+   *
+   * @return array elements
+   */
+  public int[] toIntArray() {
+    checkRead(ElementType.INT);
+    ByteBuffer host = owner.download(this);
+    try {
+      int[] result = new int[length];
+      host.asIntBuffer().get(result);
+      return result;
+    } finally {
+      MemoryUtil.memFree(host);
+    }
+  }
+
+  /**
+   * Copies array into the host, waits for all preceding operations
+   *
+   * @return array elements
+   */
+  public long[] toLongArray() {
+    checkRead(ElementType.LONG);
+    ByteBuffer host = owner.download(this);
+    try {
+      long[] result = new long[length];
+      host.asLongBuffer().get(result);
+      return result;
+    } finally {
+      MemoryUtil.memFree(host);
+    }
+  }
+
+  /**
+   * Releases array device memory
+   */
+  @Override
+  public void close() {
+    buffer.free();
+  }
+
+  /**
+   * Elementwise unary operations
+   */
+  public enum UnaryOp {
+    NEG,
+    ABS,
+    /**
+     * Floating point types only
+     */
+    EXP,
+    /**
+     * Floating point types only
+     */
+    LOG,
+    /**
+     * Floating point types only
+     */
+    SQRT;
+
+    /**
+     * Returns OpenCL C expression of the operation
+     *
+     * @param type operand type
+     * @param x operand expression
+     * @return operation expression
+     */
+    String expression(ElementType type, String x) {
+      switch (this) {
+        case NEG:
+          return "-(" + x + ")";
+        case ABS:
+          // integer abs returns unsigned type
+          return type.isFloatingPoint() ? "fabs(" + x + ")"
+              : "(" + type.clName() + ") abs(" + x + ")";
+        default:
+          if (!type.isFloatingPoint()) {
+            throw new IllegalArgumentException(name() + " requires floating point array");
+          }
+          return name().toLowerCase(Locale.ROOT) + "(" + x + ")";
+      }
+    }
+  }
+
+  /**
+   * Elementwise binary operations
+   */
+  public enum BinaryOp {
+    ADD("+"),
+    SUB("-"),
+    MUL("*"),
+    DIV("/"),
+    MIN(null),
+    MAX(null),
+    LT("<"),
+    LE("<="),
+    GT(">"),
+    GE(">="),
+    EQ("=="),
+    NE("!=");
+
+    private final String operator;
+
+    private BinaryOp(String operator) {
+      this.operator = operator;
+    }
+
+    /**
+     * Checks whether operation is a comparison with 0 or 1 int result
+     *
+     * @return whether operation is a comparison
+     */
+    public boolean isComparison() {
+      return ordinal() >= LT.ordinal();
+    }
+
+    ElementType resultType(ElementType type) {
+      return isComparison() ? ElementType.INT : type;
+    }
+
+    /**
+     * Returns OpenCL C expression of the operation
+     *
+     * @param type operands type
+     * @param x left operand expression
+     * @param y right operand expression
+     * @return operation expression
+     */
+    String expression(ElementType type, String x, String y) {
+      if (null == operator) {
+        String function = name().toLowerCase(Locale.ROOT);
+        return (type.isFloatingPoint() ? "f" + function : function) + "(" + x + ", " + y + ")";
+      }
+      if (isComparison()) {
+        return "((" + x + ") " + operator + " (" + y + ") ? 1 : 0)";
+      }
+      return "(" + x + ") " + operator + " (" + y + ")";
+    }
+  }
+
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.lwjgl.opencl.CL10.CL_MEM_READ_WRITE;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntFunction;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Factory and kernel cache of {@link DeviceArray}s of one context, i.e. one device.
+ *
+ * Array operations are generated OpenCL C kernels, built once per distinct kernel source and
+ * cached for the lifetime of this object, optionally persisted with a {@link ProgramBinaryCache}.
+ * All operations are enqueued into a single in order command queue, so they are executed in the
+ * order they were called and no events are needed between them. Results are copied to the host
+ * by the <code>to*Array</code> methods of the array, which wait for all preceding operations.
+ *
+ * <pre>
+ * try (DeviceArrays gpu = new DeviceArrays(context);
+ *     DeviceArray a = gpu.of(new float[] {1F, 3F, 5F, 7F});
+ *     DeviceArray b = gpu.of(new float[] {2F, 4F, 6F, 8F});
+ *     DeviceArray c = a.mul(b)) {
+ *   float[] result = c.toFloatArray();
+ * }
+ * </pre>
+ *
+ * @author Viktor Gubin
+ */
+public final class DeviceArrays implements AutoCloseable {
+
+  static final String ELEMENTWISE = "elementwise";
+
+  private final ClRuntime.Context context;
+  private final ClRuntime.CommandQueue queue;
+  private final ProgramBinaryCache binaryCache;
+  private final ConcurrentMap<String, ClRuntime.Program> programs;
+  private final Reductions reductions;
+  private final Scans scans;
+  private final RadixSort radixSort;
+  private final Gemm gemm;
+
+  /**
+   * Creates arrays factory
+   *
+   * @param context OpenCL context of the device to allocate arrays on
+   */
+  public DeviceArrays(ClRuntime.Context context) {
+    this(context, null);
+  }
+
+  /**
+   * Creates arrays factory which keeps compiled kernels in the binary cache
+   *
+   * @param context OpenCL context of the device to allocate arrays on
+   * @param binaryCache program binary cache or null
+   */
+  public DeviceArrays(ClRuntime.Context context, ProgramBinaryCache binaryCache) {
+    this.context = context;
+    this.queue = context.createCommandQueue();
+    this.binaryCache = binaryCache;
+    this.programs = new ConcurrentHashMap<>();
+    this.reductions = new Reductions(this);
+    this.scans = new Scans(this);
+    this.radixSort = new RadixSort(this);
+    this.gemm = new Gemm(this);
+  }
+
+  public ClRuntime.Context getContext() {
+    return context;
+  }
+
+  /**
+   * Returns command queue all array operations are enqueued into
+   *
+   * @return in order command queue
+   */
+  public ClRuntime.CommandQueue getCommandQueue() {
+    return queue;
+  }
+
+  /**
+   * Returns device side reductions of arrays and buffers of this context
+   *
+   * @return reductions sharing kernel cache and command queue with the arrays
+   */
+  public Reductions getReductions() {
+    return reductions;
+  }
+
+  /**
+   * Returns device side prefix sums and compaction of buffers of this context
+   *
+   * @return scans sharing kernel cache and command queue with the arrays
+   */
+  public Scans getScans() {
+    return scans;
+  }
+
+  /**
+   * Returns device side radix sort of buffers of this context
+   *
+   * @return sort sharing kernel cache and command queue with the arrays
+   */
+  public RadixSort getRadixSort() {
+    return radixSort;
+  }
+
+  /**
+   * Returns dense matrix multiply of buffers of this context
+   *
+   * @return matrix multiply sharing kernel cache and command queue with the arrays
+   */
+  public Gemm getGemm() {
+    return gemm;
+  }
+
+  /**
+   * Returns number of distinct kernels built so far
+   *
+   * @return number of cached programs
+   */
+  public int getCachedPrograms() {
+    return programs.size();
+  }
+
+  /**
+   * Returns program built from the source, builds it on first use
+   *
+   * @param source OpenCL C source
+   * @return cached program
+   */
+  ClRuntime.Program program(String source) {
+    ClRuntime.Program result = programs.get(source);
+    if (null == result) {
+      // built outside of the map, so a build doesn't block lookups of other sources, kernels are
+      // enqueued into the arrays queue, so programs don't need their own
+      ClRuntime.Program built = context.createProgramWithSource(source, "", binaryCache, queue);
+      result = programs.putIfAbsent(source, built);
+      if (null == result) {
+        result = built;
+      } else {
+        // lost the race to a concurrent build of the same source
+        built.close();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Chooses work-group size for kernels compiled with a fixed work-group size. Starts from the
+   * largest power of two allowed by the device and its local memory, and halves it while any of
+   * the kernels built for it can't be launched with it, e.g. due to register usage
+   *
+   * @param source program source for the work-group size
+   * @param localBytes local memory used per work item
+   * @param maxGroupSize upper bound of work-group size
+   * @param kernels names of the kernels launched with the work-group size
+   * @return work-group size, program for it is cached
+   */
+  int groupSize(IntFunction<String> source, int localBytes, int maxGroupSize,
+      String... kernels) {
+    DeviceProperties properties = context.getDevice().getProperties();
+    long limit = Math.min(maxGroupSize, properties.getMaxWorkGroupSize());
+    limit = Math.min(limit, properties.getLocalMemSize() / localBytes);
+    int result = Integer.highestOneBit((int) Math.max(1L, limit));
+    while (result > 1) {
+      ClRuntime.Program program = program(source.apply(result));
+      long kernelLimit = Long.MAX_VALUE;
+      for (String name : kernels) {
+        KernelPool pool = program.getKernelPool(name);
+        ClRuntime.Kernel kernel = pool.acquire();
+        try {
+          kernelLimit = Math.min(kernelLimit, kernel.getWorkGroupSize());
+        } finally {
+          pool.release(kernel);
+        }
+      }
+      if (result <= kernelLimit) {
+        break;
+      }
+      result = Integer.highestOneBit((int) Math.max(1L, kernelLimit));
+    }
+    return result;
+  }
+
+  /**
+   * Allocates uninitialized array
+   *
+   * @param type element type
+   * @param length number of elements
+   * @return new array
+   */
+  public DeviceArray allocate(ElementType type, int length) {
+    if (length <= 0 || length > Integer.MAX_VALUE / type.getBytes()) {
+      throw new IllegalArgumentException("Invalid array length " + length);
+    }
+    return new DeviceArray(this, type, length,
+        context.createBuffer(length * type.getBytes(), CL_MEM_READ_WRITE));
+  }
+
+  /**
+   * Creates array filled with the value
+   *
+   * @param type element type
+   * @param length number of elements
+   * @param value value to fill with
+   * @return new array
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public DeviceArray fill(ElementType type, int length, Number value) throws ExecutionException {
+    return elementwise(length, type, "", "s0", new DeviceArray[0], new ElementType[] {type},
+        new Number[] {type.convert(value)});
+  }
+
+  public DeviceArray of(float[] values) {
+    DeviceArray result = allocate(ElementType.FLOAT, values.length);
+    FloatBuffer host = MemoryUtil.memAllocFloat(values.length);
+    try {
+      host.put(values).flip();
+      upload(queue.enqueueWrite(result.getBuffer(), 0, host));
+    } finally {
+      MemoryUtil.memFree(host);
+    }
+    return result;
+  }
+
+  public DeviceArray of(double[] values) {
+    DeviceArray result = allocate(ElementType.DOUBLE, values.length);
+    DoubleBuffer host = MemoryUtil.memAllocDouble(values.length);
+    try {
+      host.put(values).flip();
+      upload(queue.enqueueWrite(result.getBuffer(), 0, host));
+    } finally {
+      MemoryUtil.memFree(host);
+    }
+    return result;
+  }
+
+  public DeviceArray of(int[] values) {
+    DeviceArray result = allocate(ElementType.INT, values.length);
+    IntBuffer host = MemoryUtil.memAllocInt(values.length);
+    try {
+      host.put(values).flip();
+      upload(queue.enqueueWrite(result.getBuffer(), 0, host));
+    } finally {
+      MemoryUtil.memFree(host);
+    }
+    return result;
+  }
+
+  public DeviceArray of(long[] values) {
+    DeviceArray result = allocate(ElementType.LONG, values.length);
+    LongBuffer host = MemoryUtil.memAllocLong(values.length);
+    try {
+      host.put(values).flip();
+      upload(queue.enqueueWrite(result.getBuffer(), 0, host));
+    } finally {
+      MemoryUtil.memFree(host);
+    }
+    return result;
+  }
+
+  /**
+   * Waits for host memory write, so host memory can be released
+   */
+  private static void upload(ClRuntime.Event write) {
+    try {
+      write.waitFor();
+    } finally {
+      write.close();
+    }
+  }
+
+  /**
+   * Copies array into host memory, waits for all preceding operations
+   *
+   * @param array array to read
+   * @return host memory, must be released with {@link MemoryUtil#memFree(java.nio.Buffer)}
+   */
+  ByteBuffer download(DeviceArray array) {
+    ByteBuffer result = MemoryUtil.memAlloc(array.length() * array.getType().getBytes());
+    try (ClRuntime.Event read = queue.enqueueRead(array.getBuffer(), 0, result)) {
+      read.waitFor();
+    } catch (RuntimeException exc) {
+      MemoryUtil.memFree(result);
+      throw exc;
+    }
+    return result;
+  }
+
+  /**
+   * Generates elementwise kernel source. Kernel arguments are input arrays, scalars and the
+   * output array, statements and expression refer input elements as <code>a0, a1...</code> and
+   * scalars as <code>s0, s1...</code>
+   *
+   * @param inputs input array element types
+   * @param scalars scalar types
+   * @param output output element type
+   * @param statements OpenCL C statements computing intermediate values, may be empty
+   * @param expression OpenCL C expression of a single output element
+   * @return kernel source
+   */
+  static String elementwiseSource(ElementType[] inputs, ElementType[] scalars,
+      ElementType output, String statements, String expression) {
+    StringBuilder source = new StringBuilder();
+    boolean fp64 = ElementType.DOUBLE == output;
+    for (ElementType type : inputs) {
+      fp64 |= ElementType.DOUBLE == type;
+    }
+    for (ElementType type : scalars) {
+      fp64 |= ElementType.DOUBLE == type;
+    }
+    if (fp64) {
+      source.append("#pragma OPENCL EXTENSION cl_khr_fp64 : enable \n");
+    }
+    source.append("kernel void ").append(ELEMENTWISE).append('(');
+    for (int i = 0; i < inputs.length; i++) {
+      source.append("global const ").append(inputs[i].clName()).append(" *in").append(i)
+          .append(", ");
+    }
+    for (int i = 0; i < scalars.length; i++) {
+      source.append("const ").append(scalars[i].clName()).append(" s").append(i).append(", ");
+    }
+    source.append("global ").append(output.clName()).append(" *out) { \n")
+        .append(" const size_t i = get_global_id(0); \n");
+    for (int i = 0; i < inputs.length; i++) {
+      source.append(" const ").append(inputs[i].clName()).append(" a").append(i)
+          .append(" = in").append(i).append("[i]; \n");
+    }
+    return source.append(statements).append(" out[i] = (").append(output.clName()).append(") (")
+        .append(expression).append("); \n} \n").toString();
+  }
+
+  /**
+   * Enqueues elementwise kernel over new output array
+   *
+   * @return output array
+   * @throws ExecutionException in case of OpenCL error
+   */
+  DeviceArray elementwise(int length, ElementType output, String statements, String expression,
+      DeviceArray[] inputs, ElementType[] scalarTypes, Number[] scalars)
+      throws ExecutionException {
+    ElementType[] inputTypes = new ElementType[inputs.length];
+    for (int i = 0; i < inputs.length; i++) {
+      if (inputs[i].getOwner() != this) {
+        throw new IllegalArgumentException("Array belongs to another context");
+      }
+      if (inputs[i].length() != length) {
+        throw new IllegalArgumentException(
+            "Array length mismatch " + inputs[i].length() + " != " + length);
+      }
+      inputTypes[i] = inputs[i].getType();
+    }
+    String source = elementwiseSource(inputTypes, scalarTypes, output, statements, expression);
+    final DeviceArray result = allocate(output, length);
+    try {
+      program(source).getKernelPool(ELEMENTWISE).execute(kernel -> {
+        for (DeviceArray input : inputs) {
+          kernel.arg(input.getBuffer());
+        }
+        for (int i = 0; i < scalars.length; i++) {
+          scalarTypes[i].bind(kernel, scalars[i]);
+        }
+        kernel.arg(result.getBuffer());
+        kernel.enqueue(queue, NDRange.of(length)).close();
+      });
+    } catch (ExecutionException | RuntimeException exc) {
+      result.close();
+      throw exc;
+    }
+    return result;
+  }
+
+  /**
+   * Blocks until all enqueued array operations are complete
+   */
+  public void finish() {
+    queue.finish();
+  }
+
+  /**
+   * Releases cached kernels and the command queue, arrays must be closed before
+   */
+  @Override
+  public void close() {
+    reductions.close();
+    scans.close();
+    programs.values().forEach(ClRuntime.Program::close);
+    programs.clear();
+    queue.close();
+  }
+
+}
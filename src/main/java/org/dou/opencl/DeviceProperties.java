@@ -0,0 +1,221 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.lwjgl.opencl.CL10.*;
+import static org.lwjgl.opencl.CL11.CL_DEVICE_PREFERRED_VECTOR_WIDTH_HALF;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * OpenCL device capabilities snapshot. All values are queried once on construction, so the
+ * snapshot can be used on hot paths without native calls.
+ *
+ * @author Viktor Gubin
+ */
+public final class DeviceProperties {
+
+  private final String name;
+  private final String vendor;
+  private final String version;
+  private final String driverVersion;
+  private final int type;
+  private final int computeUnits;
+  private final int maxClockFrequency;
+  private final long globalMemSize;
+  private final long localMemSize;
+  private final long maxConstantBufferSize;
+  private final long maxMemAllocSize;
+  private final long maxWorkGroupSize;
+  private final long[] maxWorkItemSizes;
+  private final int vectorWidthChar;
+  private final int vectorWidthShort;
+  private final int vectorWidthInt;
+  private final int vectorWidthLong;
+  private final int vectorWidthFloat;
+  private final int vectorWidthDouble;
+  private final int vectorWidthHalf;
+  private final boolean hostUnifiedMemory;
+  private final Set<String> extensions;
+
+  DeviceProperties(ClRuntime.Device device) {
+    this.name = device.getName();
+    this.vendor = device.getInfoStringUTF8(CL_DEVICE_VENDOR);
+    this.version = device.getInfoStringUTF8(CL_DEVICE_VERSION);
+    this.driverVersion = device.getDriverVersion();
+    this.type = device.getType();
+    this.computeUnits = device.getInfoInt(CL_DEVICE_MAX_COMPUTE_UNITS);
+    this.maxClockFrequency = device.getInfoInt(CL_DEVICE_MAX_CLOCK_FREQUENCY);
+    this.globalMemSize = device.getInfoLong(CL_DEVICE_GLOBAL_MEM_SIZE);
+    this.localMemSize = device.getInfoLong(CL_DEVICE_LOCAL_MEM_SIZE);
+    this.maxConstantBufferSize = device.getInfoLong(CL_DEVICE_MAX_CONSTANT_BUFFER_SIZE);
+    this.maxMemAllocSize = device.getInfoLong(CL_DEVICE_MAX_MEM_ALLOC_SIZE);
+    this.maxWorkGroupSize = device.getMaxWorkGroupSize();
+    this.maxWorkItemSizes = device.getMaxWorkItemSizes();
+    this.vectorWidthChar = device.getInfoInt(CL_DEVICE_PREFERRED_VECTOR_WIDTH_CHAR);
+    this.vectorWidthShort = device.getInfoInt(CL_DEVICE_PREFERRED_VECTOR_WIDTH_SHORT);
+    this.vectorWidthInt = device.getInfoInt(CL_DEVICE_PREFERRED_VECTOR_WIDTH_INT);
+    this.vectorWidthLong = device.getInfoInt(CL_DEVICE_PREFERRED_VECTOR_WIDTH_LONG);
+    this.vectorWidthFloat = device.getInfoInt(CL_DEVICE_PREFERRED_VECTOR_WIDTH_FLOAT);
+    this.vectorWidthDouble = device.getInfoInt(CL_DEVICE_PREFERRED_VECTOR_WIDTH_DOUBLE);
+    int half;
+    try {
+      half = device.getInfoInt(CL_DEVICE_PREFERRED_VECTOR_WIDTH_HALF);
+    } catch (CLRuntimeException exc) {
+      // OpenCL 1.0 device
+      half = 0;
+    }
+    this.vectorWidthHalf = half;
+    this.hostUnifiedMemory = device.isHostUnifiedMemory();
+    Set<String> ext = new TreeSet<>(
+        Arrays.asList(device.getInfoStringUTF8(CL_DEVICE_EXTENSIONS).trim().split("\\s+")));
+    ext.remove("");
+    this.extensions = Collections.unmodifiableSet(ext);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getVendor() {
+    return vendor;
+  }
+
+  /**
+   * Returns OpenCL version string supported by the device, e.g. "OpenCL 1.2 CUDA"
+   *
+   * @return device OpenCL version
+   */
+  public String getVersion() {
+    return version;
+  }
+
+  public String getDriverVersion() {
+    return driverVersion;
+  }
+
+  /**
+   * Returns device type bitfield i.e. CL_DEVICE_TYPE_GPU, CL_DEVICE_TYPE_CPU etc.
+   *
+   * @return device type
+   */
+  public int getType() {
+    return type;
+  }
+
+  public int getComputeUnits() {
+    return computeUnits;
+  }
+
+  /**
+   * Returns maximum configured clock frequency of the device
+   *
+   * @return clock frequency in MHz
+   */
+  public int getMaxClockFrequency() {
+    return maxClockFrequency;
+  }
+
+  public long getGlobalMemSize() {
+    return globalMemSize;
+  }
+
+  public long getLocalMemSize() {
+    return localMemSize;
+  }
+
+  public long getMaxConstantBufferSize() {
+    return maxConstantBufferSize;
+  }
+
+  public long getMaxMemAllocSize() {
+    return maxMemAllocSize;
+  }
+
+  public long getMaxWorkGroupSize() {
+    return maxWorkGroupSize;
+  }
+
+  public long[] getMaxWorkItemSizes() {
+    return maxWorkItemSizes.clone();
+  }
+
+  public int getVectorWidthChar() {
+    return vectorWidthChar;
+  }
+
+  public int getVectorWidthShort() {
+    return vectorWidthShort;
+  }
+
+  public int getVectorWidthInt() {
+    return vectorWidthInt;
+  }
+
+  public int getVectorWidthLong() {
+    return vectorWidthLong;
+  }
+
+  public int getVectorWidthFloat() {
+    return vectorWidthFloat;
+  }
+
+  public int getVectorWidthDouble() {
+    return vectorWidthDouble;
+  }
+
+  public int getVectorWidthHalf() {
+    return vectorWidthHalf;
+  }
+
+  public boolean isHostUnifiedMemory() {
+    return hostUnifiedMemory;
+  }
+
+  /**
+   * Checks double precision floating point support
+   *
+   * @return whether device supports double type
+   */
+  public boolean isDoubleSupported() {
+    return extensions.contains("cl_khr_fp64") || extensions.contains("cl_amd_fp64");
+  }
+
+  /**
+   * Checks half precision floating point arithmetic support
+   *
+   * @return whether device supports half type arithmetic
+   */
+  public boolean isHalfSupported() {
+    return extensions.contains("cl_khr_fp16");
+  }
+
+  public Set<String> getExtensions() {
+    return extensions;
+  }
+
+  public boolean hasExtension(String extension) {
+    return extensions.contains(extension);
+  }
+
+  @Override
+  public String toString() {
+    return "DeviceProperties [name=" + name + ", vendor=" + vendor + ", version=" + version
+        + ", computeUnits=" + computeUnits + ", maxClockFrequency=" + maxClockFrequency
+        + ", globalMemSize=" + globalMemSize + ", localMemSize=" + localMemSize + "]";
+  }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.lwjgl.opencl.CL10.CL_DEVICE_TYPE_ACCELERATOR;
+import static org.lwjgl.opencl.CL10.CL_DEVICE_TYPE_GPU;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Device selection policy, ranks devices by a metric, the higher metric the better device.
+ *
+ * @author Viktor Gubin
+ */
+public final class DeviceSelector {
+
+  // number of SIMD lanes per compute unit, a rough estimate since OpenCL doesn't report it
+  private static final int GPU_LANES = 64;
+  private static final int ACCELERATOR_LANES = 16;
+
+  private static final String CALIBRATION_KERNEL =
+      "kernel void calibrate(global float *out, const float a, const float b) { \n"
+          + " float x = (float) get_global_id(0); \n"
+          + " float y = x + 1.0f; \n"
+          + " for (int i = 0; i < 256; i++) { \n"
+          + "  x = mad(x, a, b); y = mad(y, a, b); \n"
+          + "  x = mad(x, b, a); y = mad(y, b, a); \n"
+          + " } \n"
+          + " out[get_global_id(0)] = x + y; \n"
+          + "} \n";
+
+  private static final int CALIBRATION_ITEMS = 1 << 20;
+  // 2 flops per mad, 4 mad per iteration, 256 iterations
+  private static final double CALIBRATION_FLOPS = 2D * 4 * 256 * CALIBRATION_ITEMS;
+  private static final int CALIBRATION_REPEATS = 3;
+
+  private final ToDoubleFunction<ClRuntime.Device> metric;
+
+  private DeviceSelector(ToDoubleFunction<ClRuntime.Device> metric) {
+    this.metric = metric;
+  }
+
+  /**
+   * Returns selector ranking devices by {@link #score(DeviceProperties)}
+   *
+   * @return new selector
+   */
+  public static DeviceSelector byScore() {
+    return new DeviceSelector(device -> score(device.getProperties()));
+  }
+
+  /**
+   * Returns selector ranking devices by {@link #benchmark(ClRuntime.Device)}, each device is
+   * benchmarked only once per selector
+   *
+   * @return new selector
+   */
+  public static DeviceSelector byBenchmark() {
+    final Map<ClRuntime.Device, Double> measured = new HashMap<>();
+    return new DeviceSelector(device -> {
+      synchronized (measured) {
+        return measured.computeIfAbsent(device, DeviceSelector::benchmark);
+      }
+    });
+  }
+
+  /**
+   * Estimates device peak single precision throughput from its properties, i.e. compute units,
+   * clock frequency and SIMD width
+   *
+   * @param properties device properties
+   * @return device score
+   */
+  public static double score(DeviceProperties properties) {
+    int lanes;
+    if (0 != (properties.getType() & CL_DEVICE_TYPE_GPU)) {
+      lanes = GPU_LANES;
+    } else if (0 != (properties.getType() & CL_DEVICE_TYPE_ACCELERATOR)) {
+      lanes = ACCELERATOR_LANES;
+    } else {
+      lanes = Math.max(1, properties.getVectorWidthFloat());
+    }
+    return (double) properties.getComputeUnits() * properties.getMaxClockFrequency() * lanes;
+  }
+
+  /**
+   * Measures device single precision throughput with a short multiply-add kernel
+   *
+   * @param device device to measure
+   * @return measured GFLOP/s or 0 when device can't execute calibration kernel
+   */
+  public static double benchmark(ClRuntime.Device device) {
+    try (ClRuntime.Context context = device.createContext();
+        ClRuntime.Program program = context.createProgramWithSource(CALIBRATION_KERNEL)) {
+      ClRuntime.CommandQueue queue = program.getCommandQueue();
+      ClRuntime.VideoMemBuffer out = queue.createWriteBuffer(CALIBRATION_ITEMS * Float.BYTES);
+      ClRuntime.Kernel kernel = program.createKernel("calibrate");
+      kernel.arg(out).arg(0.999F).arg(0.001F);
+      NDRange range = NDRange.of(CALIBRATION_ITEMS);
+      kernel.execute(range);
+      queue.finish();
+      long best = Long.MAX_VALUE;
+      for (int i = 0; i < CALIBRATION_REPEATS; i++) {
+        long start = System.nanoTime();
+        kernel.execute(range);
+        queue.finish();
+        best = Math.min(best, System.nanoTime() - start);
+      }
+      return CALIBRATION_FLOPS / best;
+    } catch (ExecutionException | RuntimeException exc) {
+      return 0D;
+    }
+  }
+
+  /**
+   * Ranks devices from the best to the worst
+   *
+   * @param devices devices to rank
+   * @return ranked devices
+   */
+  public List<ClRuntime.Device> rank(Collection<ClRuntime.Device> devices) {
+    final Map<ClRuntime.Device, Double> metrics = new HashMap<>();
+    for (ClRuntime.Device device : devices) {
+      metrics.put(device, metric.applyAsDouble(device));
+    }
+    List<ClRuntime.Device> result = new ArrayList<>(devices);
+    result.sort(Comparator.comparingDouble((ClRuntime.Device d) -> metrics.get(d)).reversed());
+    return result;
+  }
+
+  /**
+   * Selects the best device
+   *
+   * @param devices devices to select from
+   * @return the best device
+   */
+  public ClRuntime.Device select(Collection<ClRuntime.Device> devices) {
+    if (devices.isEmpty()) {
+      throw new IllegalArgumentException("No OpenCL devices to select from");
+    }
+    return rank(devices).get(0);
+  }
+
+  /**
+   * Selects the best device of all compute platforms
+   *
+   * @param runtime OpenCL runtime
+   * @return the best device
+   */
+  public ClRuntime.Device select(ClRuntime runtime) {
+    NavigableSet<ClRuntime.Device> devices = new TreeSet<>();
+    for (ClRuntime.Platform platform : runtime.getComputePlatforms()) {
+      devices.addAll(platform.getAllDevices());
+    }
+    return select(devices);
+  }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+/**
+ * Element types of {@link DeviceArray}
+ *
+ * @author Viktor Gubin
+ */
+public enum ElementType {
+  INT("int", Integer.BYTES, false),
+  LONG("long", Long.BYTES, false),
+  FLOAT("float", Float.BYTES, true),
+  DOUBLE("double", Double.BYTES, true);
+
+  private final String clName;
+  private final int bytes;
+  private final boolean floatingPoint;
+
+  private ElementType(String clName, int bytes, boolean floatingPoint) {
+    this.clName = clName;
+    this.bytes = bytes;
+    this.floatingPoint = floatingPoint;
+  }
+
+  /**
+   * Returns OpenCL C type name
+   *
+   * @return OpenCL C type
+   */
+  public String clName() {
+    return clName;
+  }
+
+  public int getBytes() {
+    return bytes;
+  }
+
+  public boolean isFloatingPoint() {
+    return floatingPoint;
+  }
+
+  /**
+   * Returns size in bytes of the elements, computed without int overflow
+   *
+   * @param elements number of elements
+   * @return size in bytes
+   * @throws IllegalArgumentException when the size exceeds the maximum buffer capacity
+   */
+  int bytes(long elements) {
+    long result = elements * bytes;
+    if (elements < 0 || result > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+          "Buffer of " + elements + " " + clName + " elements exceeds maximum capacity");
+    }
+    return (int) result;
+  }
+
+  /**
+   * Converts scalar into a value of this type, integer types reject fractional values
+   *
+   * @param value scalar value
+   * @return converted value
+   */
+  Number convert(Number value) {
+    if (!floatingPoint && (value instanceof Float || value instanceof Double)
+        && value.doubleValue() != Math.rint(value.doubleValue())) {
+      throw new IllegalArgumentException("Fractional scalar " + value + " for " + clName
+          + " array");
+    }
+    switch (this) {
+      case INT:
+        return value.intValue();
+      case LONG:
+        return value.longValue();
+      case FLOAT:
+        return value.floatValue();
+      default:
+        return value.doubleValue();
+    }
+  }
+
+  /**
+   * Binds scalar of this type as sequential kernel argument
+   *
+   * @param kernel kernel to bind argument to
+   * @param value scalar value
+   */
+  void bind(ClRuntime.Kernel kernel, Number value) {
+    switch (this) {
+      case INT:
+        kernel.arg(value.intValue());
+        break;
+      case LONG:
+        kernel.arg(value.longValue());
+        break;
+      case FLOAT:
+        kernel.arg(value.floatValue());
+        break;
+      default:
+        kernel.arg(value.doubleValue());
+        break;
+    }
+  }
+
+}
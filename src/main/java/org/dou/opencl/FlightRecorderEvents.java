@@ -0,0 +1,64 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+/**
+ * Java Flight Recorder events facade. This Java 8 version does nothing, the library jar is a
+ * multi-release jar and on Java 11+ this class is replaced by the version from
+ * <code>src/main/java11</code>, which emits <code>jdk.jfr</code> events for program builds,
+ * memory buffers, transfers and kernel launches.
+ *
+ * @author Viktor Gubin
+ */
+final class FlightRecorderEvents {
+
+  private FlightRecorderEvents() {}
+
+  /**
+   * Checks whether transfer or kernel launch events are recorded
+   *
+   * @return whether commands should be reported with {@link #commandEnqueued(CommandInfo)}
+   */
+  static boolean isCommandEnabled() {
+    return false;
+  }
+
+  static void commandEnqueued(CommandInfo command) {
+    // no flight recorder
+  }
+
+  /**
+   * Starts program build event
+   *
+   * @return event to pass into {@link #endProgramBuild(Object, String, String, boolean, boolean)}
+   *         or null when not recorded
+   */
+  static Object beginProgramBuild() {
+    return null;
+  }
+
+  static void endProgramBuild(Object event, String device, String options, boolean fromBinary,
+      boolean success) {
+    // no flight recorder
+  }
+
+  static void bufferAllocated(String device, long bytes) {
+    // no flight recorder
+  }
+
+  static void bufferReleased(String device, long bytes) {
+    // no flight recorder
+  }
+
+}
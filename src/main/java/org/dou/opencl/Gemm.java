@@ -0,0 +1,580 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.lwjgl.opencl.CL10.CL_DEVICE_TYPE_CPU;
+import static org.lwjgl.opencl.CL10.CL_MEM_READ_WRITE;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Dense general matrix multiply <code>C = alpha * op(A) * op(B) + beta * C</code> of float or
+ * double matrices, where <code>op(X)</code> is the matrix or its transpose, in the BLAS
+ * <code>xGEMM</code> conventions.
+ *
+ * Each work-group computes a tile of C. Tiles of A and B are staged through local memory over the
+ * shared dimension, and each work item accumulates a small block of C in registers, so every
+ * element loaded from global memory is used by many work items and every element of the local
+ * tiles by several multiply-adds. Matrices with dimensions multiple of the tile are loaded with
+ * vector loads and without bounds checks.
+ *
+ * Tile sizes are compile time constants of the kernel. By default they are chosen from the device
+ * properties, {@link #tune(ElementType, int, int, int)} times all tilings fitting the device and
+ * keeps the fastest one, and {@link #setTiling(ElementType, Tiling)} overrides the choice.
+ *
+ * Column major matrices are multiplied as transposed row major, i.e. <code>C' = op(B)' *
+ * op(A)'</code>, so both layouts share the same kernels. Multiplications are enqueued into the
+ * command queue of the {@link DeviceArrays} and don't wait for completion.
+ *
+ * @see DeviceArrays#getGemm()
+ * @author Viktor Gubin
+ */
+public final class Gemm {
+
+  static final String GEMM = "gemm";
+
+  private static final int TUNING_REPEATS = 3;
+
+  private final DeviceArrays arrays;
+  private final Map<ElementType, Tiling> tilings;
+  private final ConcurrentMap<String, ClRuntime.Program> programs;
+
+  Gemm(DeviceArrays arrays) {
+    this.arrays = arrays;
+    this.tilings = new ConcurrentHashMap<>();
+    this.programs = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Matrix storage order
+   */
+  public enum Layout {
+    ROW_MAJOR, COLUMN_MAJOR
+  }
+
+  /**
+   * Kernel tiling, i.e. a <code>tileM x tileN</code> tile of C per work-group computed over
+   * <code>tileK</code> deep slices of A and B, with a <code>workM x workN</code> block of C per
+   * work item, and vector width of global loads
+   */
+  public static final class Tiling {
+
+    public static final Tiling LARGE = new Tiling(64, 64, 16, 4, 4, 4);
+    public static final Tiling MEDIUM = new Tiling(32, 32, 16, 4, 4, 4);
+    public static final Tiling SMALL = new Tiling(16, 16, 16, 2, 2, 2);
+    public static final Tiling MINIMAL = new Tiling(8, 8, 8, 2, 2, 1);
+
+    // from the largest to the smallest
+    static final List<Tiling> CANDIDATES = Arrays.asList(LARGE, MEDIUM, SMALL, MINIMAL);
+
+    private final int tileM;
+    private final int tileN;
+    private final int tileK;
+    private final int workM;
+    private final int workN;
+    private final int vectorWidth;
+
+    /**
+     * Creates tiling
+     *
+     * @param tileM rows of C tile per work-group
+     * @param tileN columns of C tile per work-group
+     * @param tileK depth of A and B tiles in local memory
+     * @param workM rows of C block per work item, divides tileM
+     * @param workN columns of C block per work item, divides tileN
+     * @param vectorWidth vector load width 1, 2, 4, 8 or 16, divides all tile sizes
+     */
+    public Tiling(int tileM, int tileN, int tileK, int workM, int workN, int vectorWidth) {
+      if (tileM <= 0 || tileN <= 0 || tileK <= 0 || workM <= 0 || workN <= 0
+          || 0 != tileM % workM || 0 != tileN % workN) {
+        throw new IllegalArgumentException("Invalid tile sizes");
+      }
+      if (Integer.bitCount(vectorWidth) != 1 || vectorWidth > 16 || 0 != tileM % vectorWidth
+          || 0 != tileN % vectorWidth || 0 != tileK % vectorWidth) {
+        throw new IllegalArgumentException("Invalid vector width " + vectorWidth);
+      }
+      this.tileM = tileM;
+      this.tileN = tileN;
+      this.tileK = tileK;
+      this.workM = workM;
+      this.workN = workN;
+      this.vectorWidth = vectorWidth;
+    }
+
+    public int getTileM() {
+      return tileM;
+    }
+
+    public int getTileN() {
+      return tileN;
+    }
+
+    public int getTileK() {
+      return tileK;
+    }
+
+    public int getWorkM() {
+      return workM;
+    }
+
+    public int getWorkN() {
+      return workN;
+    }
+
+    public int getVectorWidth() {
+      return vectorWidth;
+    }
+
+    /**
+     * Returns number of work items per work-group
+     *
+     * @return work-group size
+     */
+    public int getGroupSize() {
+      return (tileM / workM) * (tileN / workN);
+    }
+
+    /**
+     * Returns local memory used by A and B tiles, rows are padded by one element to avoid bank
+     * conflicts of transposing stores
+     *
+     * @param type element type
+     * @return local memory size in bytes
+     */
+    public long getLocalBytes(ElementType type) {
+      return (long) tileK * (tileM + 1 + tileN + 1) * type.getBytes();
+    }
+
+    /**
+     * Checks whether device can launch kernels with this tiling
+     *
+     * @param properties device properties
+     * @param type element type
+     * @return whether tiling fits the device
+     */
+    public boolean fits(DeviceProperties properties, ElementType type) {
+      long[] maxItems = properties.getMaxWorkItemSizes();
+      return getGroupSize() <= properties.getMaxWorkGroupSize()
+          && tileN / workN <= maxItems[0] && tileM / workM <= maxItems[1]
+          && getLocalBytes(type) <= properties.getLocalMemSize();
+    }
+
+    String key() {
+      return tileM + "x" + tileN + "x" + tileK + "/" + workM + "x" + workN + "/" + vectorWidth;
+    }
+
+    @Override
+    public int hashCode() {
+      return key().hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return this == obj || (obj instanceof Tiling && key().equals(((Tiling) obj).key()));
+    }
+
+    @Override
+    public String toString() {
+      return "Tiling [tile=" + tileM + "x" + tileN + "x" + tileK + ", work=" + workM + "x" + workN
+          + ", vectorWidth=" + vectorWidth + "]";
+    }
+  }
+
+  /**
+   * Overrides tiling chosen from device properties or by tuning
+   *
+   * @param type float or double
+   * @param tiling tiling to use for all matrix sizes
+   */
+  public void setTiling(ElementType type, Tiling tiling) {
+    checkType(type);
+    if (!tiling.fits(arrays.getContext().getDevice().getProperties(), type)) {
+      throw new IllegalArgumentException(tiling + " doesn't fit the device");
+    }
+    tilings.put(type, tiling);
+  }
+
+  /**
+   * Returns tiling used for the matrix sizes, i.e. tuned or overridden tiling, or the largest
+   * tiling fitting the device and not larger than both matrix dimensions
+   *
+   * @param type float or double
+   * @param m rows of C
+   * @param n columns of C
+   * @return tiling
+   */
+  public Tiling getTiling(ElementType type, int m, int n) {
+    Tiling result = tilings.get(type);
+    if (null != result) {
+      return result;
+    }
+    DeviceProperties properties = arrays.getContext().getDevice().getProperties();
+    // CPU work items are loop iterations, so fewer work items with less local memory are better
+    int first = 0 != (properties.getType() & CL_DEVICE_TYPE_CPU) ? 1 : 0;
+    for (int i = first; i < Tiling.CANDIDATES.size(); i++) {
+      Tiling candidate = Tiling.CANDIDATES.get(i);
+      boolean oversized = candidate.tileM > m && candidate.tileN > n;
+      if (candidate.fits(properties, type)
+          && (!oversized || i == Tiling.CANDIDATES.size() - 1)) {
+        return candidate;
+      }
+    }
+    return Tiling.MINIMAL;
+  }
+
+  /**
+   * Times all tilings fitting the device on the matrix sizes and uses the fastest one for all
+   * later multiplications of the type
+   *
+   * @param type float or double
+   * @param m rows of C
+   * @param n columns of C
+   * @param k shared dimension
+   * @return the fastest tiling
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public Tiling tune(ElementType type, int m, int n, int k) throws ExecutionException {
+    checkType(type);
+    ClRuntime.Context context = arrays.getContext();
+    DeviceProperties properties = context.getDevice().getProperties();
+    ClRuntime.CommandQueue queue = arrays.getCommandQueue();
+    ClRuntime.VideoMemBuffer a = context.createBuffer(type.bytes((long) m * k), CL_MEM_READ_WRITE);
+    ClRuntime.VideoMemBuffer b = null;
+    ClRuntime.VideoMemBuffer c = null;
+    try {
+      b = context.createBuffer(type.bytes((long) k * n), CL_MEM_READ_WRITE);
+      c = context.createBuffer(type.bytes((long) m * n), CL_MEM_READ_WRITE);
+      // zeros, so timing is not affected by denormals or NaNs of uninitialized memory
+      for (ClRuntime.VideoMemBuffer buffer : new ClRuntime.VideoMemBuffer[] {a, b, c}) {
+        queue.enqueueFill(buffer, 0, 0, buffer.getCapacity()).close();
+      }
+      Tiling best = null;
+      long bestTime = Long.MAX_VALUE;
+      for (Tiling candidate : Tiling.CANDIDATES) {
+        if (!candidate.fits(properties, type)) {
+          continue;
+        }
+        long elapsed = Long.MAX_VALUE;
+        try {
+          for (int i = 0; i <= TUNING_REPEATS; i++) {
+            long start = System.nanoTime();
+            enqueue(type, candidate, false, false, m, n, k, 1D, a, k, 0, b, n, 0, 0D, c, n, 0, 1);
+            queue.finish();
+            // the first run is a warm up
+            if (i > 0) {
+              elapsed = Math.min(elapsed, System.nanoTime() - start);
+            }
+          }
+        } catch (ExecutionException | CLRuntimeException exc) {
+          // tiling is not supported for this kernel, e.g. out of registers
+          continue;
+        }
+        if (elapsed < bestTime) {
+          best = candidate;
+          bestTime = elapsed;
+        }
+      }
+      if (null == best) {
+        throw new ExecutionException(new IllegalStateException("No tiling fits the device"));
+      }
+      tilings.put(type, best);
+      return best;
+    } finally {
+      a.free();
+      if (null != b) {
+        b.free();
+      }
+      if (null != c) {
+        c.free();
+      }
+    }
+  }
+
+  /**
+   * Enqueues <code>C = alpha * op(A) * op(B) + beta * C</code>, C is not read when beta is 0
+   *
+   * @param type float or double
+   * @param layout storage order of all matrices
+   * @param transA whether op(A) is A transposed
+   * @param transB whether op(B) is B transposed
+   * @param m rows of op(A) and C
+   * @param n columns of op(B) and C
+   * @param k columns of op(A) and rows of op(B)
+   * @param alpha scale of the product
+   * @param a matrix A
+   * @param lda leading dimension of A
+   * @param b matrix B
+   * @param ldb leading dimension of B
+   * @param beta scale of C
+   * @param c matrix C
+   * @param ldc leading dimension of C
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public void gemm(ElementType type, Layout layout, boolean transA, boolean transB, int m, int n,
+      int k, double alpha, ClRuntime.VideoMemBuffer a, int lda, ClRuntime.VideoMemBuffer b,
+      int ldb, double beta, ClRuntime.VideoMemBuffer c, int ldc) throws ExecutionException {
+    gemmBatched(type, layout, transA, transB, m, n, k, alpha, a, lda, 0, b, ldb, 0, beta, c, ldc,
+        0, 1);
+  }
+
+  /**
+   * Enqueues <code>C[i] = alpha * op(A[i]) * op(B[i]) + beta * C[i]</code> for a batch of
+   * matrices stored with constant strides, all multiplications are done by a single kernel launch
+   *
+   * @param type float or double
+   * @param layout storage order of all matrices
+   * @param transA whether op(A) is A transposed
+   * @param transB whether op(B) is B transposed
+   * @param m rows of op(A) and C
+   * @param n columns of op(B) and C
+   * @param k columns of op(A) and rows of op(B)
+   * @param alpha scale of the product
+   * @param a matrices A
+   * @param lda leading dimension of A
+   * @param strideA elements between consecutive A matrices
+   * @param b matrices B
+   * @param ldb leading dimension of B
+   * @param strideB elements between consecutive B matrices
+   * @param beta scale of C
+   * @param c matrices C
+   * @param ldc leading dimension of C
+   * @param strideC elements between consecutive C matrices
+   * @param batchCount number of multiplications
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public void gemmBatched(ElementType type, Layout layout, boolean transA, boolean transB, int m,
+      int n, int k, double alpha, ClRuntime.VideoMemBuffer a, int lda, int strideA,
+      ClRuntime.VideoMemBuffer b, int ldb, int strideB, double beta, ClRuntime.VideoMemBuffer c,
+      int ldc, int strideC, int batchCount) throws ExecutionException {
+    checkType(type);
+    if (m < 0 || n < 0 || k < 0 || batchCount < 0 || strideA < 0 || strideB < 0 || strideC < 0) {
+      throw new IllegalArgumentException("Negative matrix size or stride");
+    }
+    if (0 == m || 0 == n || 0 == batchCount) {
+      return;
+    }
+    if (Layout.COLUMN_MAJOR == layout) {
+      // C' = op(B)' * op(A)', and a column major matrix is its row major transpose
+      enqueue(type, getTiling(type, n, m), transB, transA, n, m, k, alpha, b, ldb, strideB, a,
+          lda, strideA, beta, c, ldc, strideC, batchCount);
+    } else {
+      enqueue(type, getTiling(type, m, n), transA, transB, m, n, k, alpha, a, lda, strideA, b,
+          ldb, strideB, beta, c, ldc, strideC, batchCount);
+    }
+  }
+
+  /**
+   * Multiplies row major matrices
+   */
+  private void enqueue(ElementType type, Tiling tiling, boolean transA, boolean transB, int m,
+      int n, int k, double alpha, ClRuntime.VideoMemBuffer a, int lda, int strideA,
+      ClRuntime.VideoMemBuffer b, int ldb, int strideB, double beta, ClRuntime.VideoMemBuffer c,
+      int ldc, int strideC, int batchCount) throws ExecutionException {
+    if (k > 0) {
+      checkMatrix("A", type, a, transA ? k : m, transA ? m : k, lda, strideA, batchCount);
+      checkMatrix("B", type, b, transB ? n : k, transB ? k : n, ldb, strideB, batchCount);
+    }
+    checkMatrix("C", type, c, m, n, ldc, strideC, batchCount);
+    final boolean aligned = 0 == m % tiling.tileM && 0 == n % tiling.tileN
+        && 0 == k % tiling.tileK;
+    final ClRuntime.Program program = program(type, tiling, transA, transB, aligned);
+    final NDRange range = NDRange.of(
+        (long) (n + tiling.tileN - 1) / tiling.tileN * (tiling.tileN / tiling.workN),
+        (long) (m + tiling.tileM - 1) / tiling.tileM * (tiling.tileM / tiling.workM), batchCount)
+        .withLocalSize(tiling.tileN / tiling.workN, tiling.tileM / tiling.workM, 1);
+    final ClRuntime.CommandQueue queue = arrays.getCommandQueue();
+    program.getKernelPool(GEMM).execute(kernel -> {
+      kernel.arg(m).arg(n).arg(k);
+      type.bind(kernel, alpha);
+      kernel.arg(a).arg(lda).arg(strideA).arg(b).arg(ldb).arg(strideB);
+      type.bind(kernel, beta);
+      kernel.arg(c).arg(ldc).arg(strideC);
+      kernel.enqueue(queue, range).close();
+    });
+  }
+
+  private ClRuntime.Program program(ElementType type, Tiling tiling, boolean transA,
+      boolean transB, boolean aligned) {
+    String key = type + ":" + tiling.key() + ":" + transA + ":" + transB + ":" + aligned;
+    ClRuntime.Program result = programs.get(key);
+    if (null == result) {
+      // built outside of the map, so a build doesn't block other variants
+      ClRuntime.Program built = arrays.program(source(type, tiling, transA, transB, aligned));
+      result = programs.putIfAbsent(key, built);
+      if (null == result) {
+        result = built;
+      }
+    }
+    return result;
+  }
+
+  private void checkType(ElementType type) {
+    if (!type.isFloatingPoint()) {
+      throw new IllegalArgumentException("Float or double matrices expected");
+    }
+    if (ElementType.DOUBLE == type
+        && !arrays.getContext().getDevice().getProperties().isDoubleSupported()) {
+      throw new IllegalArgumentException("Device doesn't support double precision");
+    }
+  }
+
+  private static void checkMatrix(String name, ElementType type, ClRuntime.VideoMemBuffer buffer,
+      int rows, int columns, int ld, int stride, int batchCount) {
+    if (ld < columns) {
+      throw new IllegalArgumentException(
+          "Leading dimension of " + name + " " + ld + " is less than " + columns);
+    }
+    long elements = (long) (batchCount - 1) * stride + (long) (rows - 1) * ld + columns;
+    if (elements * type.getBytes() > buffer.getCapacity()) {
+      throw new IllegalArgumentException("Buffer of " + name + " is too small");
+    }
+  }
+
+  /**
+   * Generates row major matrix multiply kernel
+   *
+   * @param type float or double
+   * @param tiling kernel tiling
+   * @param transA whether A is transposed
+   * @param transB whether B is transposed
+   * @param aligned whether matrix sizes are multiples of the tile, enables vector loads without
+   *        bounds checks
+   * @return program source
+   */
+  static String source(ElementType type, Tiling tiling, boolean transA, boolean transB,
+      boolean aligned) {
+    final String t = type.clName();
+    final int vw = aligned ? tiling.vectorWidth : 1;
+    StringBuilder source = new StringBuilder();
+    if (ElementType.DOUBLE == type) {
+      source.append("#pragma OPENCL EXTENSION cl_khr_fp64 : enable \n");
+    }
+    source.append("#define TSM ").append(tiling.tileM).append(" \n")
+        .append("#define TSN ").append(tiling.tileN).append(" \n")
+        .append("#define TSK ").append(tiling.tileK).append(" \n")
+        .append("#define WPTM ").append(tiling.workM).append(" \n")
+        .append("#define WPTN ").append(tiling.workN).append(" \n")
+        .append("#define RTSM (TSM / WPTM) \n")
+        .append("#define RTSN (TSN / WPTN) \n")
+        .append("kernel void ").append(GEMM)
+        .append("(const int m, const int n, const int k, const ").append(t)
+        .append(" alpha, global const ").append(t)
+        .append(" *a, const int lda, const int strideA, global const ").append(t)
+        .append(" *b, const int ldb, const int strideB, const ").append(t).append(" beta, global ")
+        .append(t).append(" *c, const int ldc, const int strideC) { \n")
+        .append(" local ").append(t).append(" As[TSK][TSM + 1]; \n")
+        .append(" local ").append(t).append(" Bs[TSK][TSN + 1]; \n")
+        .append(" const int tidn = get_local_id(0); \n")
+        .append(" const int tidm = get_local_id(1); \n")
+        .append(" const int tid = tidm * RTSN + tidn; \n")
+        .append(" const int offN = TSN * get_group_id(0); \n")
+        .append(" const int offM = TSM * get_group_id(1); \n")
+        .append(" const size_t batch = get_global_id(2); \n")
+        .append(" a += batch * strideA; \n")
+        .append(" b += batch * strideB; \n")
+        .append(" c += batch * strideC; \n")
+        .append(' ').append(t).append(" acc[WPTM][WPTN]; \n")
+        .append(" for (int wm = 0; wm < WPTM; wm++) { \n")
+        .append("  for (int wn = 0; wn < WPTN; wn++) { \n")
+        .append("   acc[wm][wn] = 0; \n")
+        .append("  } \n")
+        .append(" } \n")
+        .append(" for (int t = 0; t < k; t += TSK) { \n");
+    // A element (i, p) is a[i * lda + p], or a[p * lda + i] when transposed
+    if (transA) {
+      loadTile(source, type, vw, aligned, "a", "lda", "TSK", "TSM", "t", "offM", "k", "m",
+          "As[%1$s][%2$s]");
+    } else {
+      loadTile(source, type, vw, aligned, "a", "lda", "TSM", "TSK", "offM", "t", "m", "k",
+          "As[%2$s][%1$s]");
+    }
+    // B element (p, j) is b[p * ldb + j], or b[j * ldb + p] when transposed
+    if (transB) {
+      loadTile(source, type, vw, aligned, "b", "ldb", "TSN", "TSK", "offN", "t", "n", "k",
+          "Bs[%2$s][%1$s]");
+    } else {
+      loadTile(source, type, vw, aligned, "b", "ldb", "TSK", "TSN", "t", "offN", "k", "n",
+          "Bs[%1$s][%2$s]");
+    }
+    source.append("  barrier(CLK_LOCAL_MEM_FENCE); \n")
+        .append("  for (int p = 0; p < TSK; p++) { \n")
+        .append("   ").append(t).append(" bReg[WPTN]; \n")
+        .append("   for (int wn = 0; wn < WPTN; wn++) { \n")
+        .append("    bReg[wn] = Bs[p][tidn + wn * RTSN]; \n")
+        .append("   } \n")
+        .append("   for (int wm = 0; wm < WPTM; wm++) { \n")
+        .append("    const ").append(t).append(" aReg = As[p][tidm + wm * RTSM]; \n")
+        .append("    for (int wn = 0; wn < WPTN; wn++) { \n")
+        .append("     acc[wm][wn] += aReg * bReg[wn]; \n")
+        .append("    } \n")
+        .append("   } \n")
+        .append("  } \n")
+        .append("  barrier(CLK_LOCAL_MEM_FENCE); \n")
+        .append(" } \n")
+        .append(" for (int wm = 0; wm < WPTM; wm++) { \n")
+        .append("  const int i = offM + tidm + wm * RTSM; \n")
+        .append("  for (int wn = 0; wn < WPTN; wn++) { \n")
+        .append("   const int j = offN + tidn + wn * RTSN; \n")
+        .append(aligned ? "   { \n" : "   if (i < m && j < n) { \n")
+        .append("    global ").append(t).append(" *dst = c + (size_t) i * ldc + j; \n")
+        // C is not read when beta is zero, as in BLAS
+        .append("    *dst = 0 == beta ? alpha * acc[wm][wn] : alpha * acc[wm][wn] + beta * *dst;")
+        .append(" \n")
+        .append("   } \n")
+        .append("  } \n")
+        .append(" } \n")
+        .append("} \n");
+    return source.toString();
+  }
+
+  /**
+   * Appends loop loading a tile of the matrix into local memory. Tile has the rows by columns
+   * extent in the memory order of the matrix, each work item loads vectors along the rows
+   *
+   * @param store local element format with row and column of the element in the tile
+   */
+  private static void loadTile(StringBuilder source, ElementType type, int vw, boolean aligned,
+      String matrix, String ld, String rows, String columns, String rowOffset,
+      String columnOffset, String rowLimit, String columnLimit, String store) {
+    source.append("  for (int l = tid; l < ").append(rows).append(" * (").append(columns)
+        .append(" / ").append(vw).append("); l += RTSM * RTSN) { \n")
+        .append("   const int x = l / (").append(columns).append(" / ").append(vw).append("); \n")
+        .append("   const int y = l % (").append(columns).append(" / ").append(vw).append(") * ")
+        .append(vw).append("; \n")
+        .append("   const int gx = ").append(rowOffset).append(" + x; \n")
+        .append("   const int gy = ").append(columnOffset).append(" + y; \n");
+    String address = matrix + " + (size_t) gx * " + ld + " + gy";
+    if (vw > 1) {
+      source.append("   const ").append(type.clName()).append(vw).append(" v = vload").append(vw)
+          .append("(0, ").append(address).append("); \n");
+      for (int i = 0; i < vw; i++) {
+        source.append("   ").append(String.format(store, "x", "y + " + i)).append(" = v.s")
+            .append(Integer.toHexString(i).toUpperCase()).append("; \n");
+      }
+    } else if (aligned) {
+      source.append("   ").append(String.format(store, "x", "y")).append(" = *(").append(address)
+          .append("); \n");
+    } else {
+      source.append("   ").append(String.format(store, "x", "y")).append(" = gx < ")
+          .append(rowLimit).append(" && gy < ").append(columnLimit).append(" ? *(")
+          .append(address).append(") : 0; \n");
+    }
+    source.append("  } \n");
+  }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Pool of kernel instances of the same kernel function. Kernel carries mutable argument state, so
+ * an instance taken from the pool is confined to the taking thread until it is returned.
+ *
+ * New instances are cloned with <code>clCloneKernel</code> when the device supports it, or created
+ * with <code>clCreateKernel</code> otherwise. Instances are released with the program.
+ *
+ * @see ClRuntime.Program#getKernelPool(String)
+ * @author Viktor Gubin
+ */
+public final class KernelPool {
+
+  private final ClRuntime.Program program;
+  private final String name;
+  private final Deque<ClRuntime.Kernel> idle;
+  // never handed out, so it is safe to clone concurrently
+  private final ClRuntime.Kernel prototype;
+  private volatile boolean cloneSupported;
+
+  KernelPool(ClRuntime.Program program, String name) {
+    this.program = program;
+    this.name = name;
+    this.idle = new ConcurrentLinkedDeque<>();
+    this.prototype = program.createKernel(name);
+    this.cloneSupported = true;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Takes kernel instance from the pool or creates new one
+   *
+   * @return kernel instance confined to the calling thread until released
+   */
+  public ClRuntime.Kernel acquire() {
+    ClRuntime.Kernel result = idle.pollFirst();
+    if (null == result) {
+      if (cloneSupported) {
+        result = program.cloneKernel(prototype);
+        cloneSupported = null != result;
+      }
+      if (null == result) {
+        result = program.createKernel(name);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns kernel instance into the pool, sequential argument index is reset
+   *
+   * @param kernel kernel taken from this pool
+   */
+  public void release(ClRuntime.Kernel kernel) {
+    if (kernel.getProgram() != program || !name.equals(kernel.getName())) {
+      throw new IllegalArgumentException("Kernel is not from this pool");
+    }
+    kernel.flush();
+    idle.offerFirst(kernel);
+  }
+
+  /**
+   * Takes kernel instance, executes action with it and returns it into the pool
+   *
+   * @param action action to execute with the kernel
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public void execute(KernelAction action) throws ExecutionException {
+    ClRuntime.Kernel kernel = acquire();
+    try {
+      action.execute(kernel);
+    } finally {
+      release(kernel);
+    }
+  }
+
+  /**
+   * Action with a thread confined kernel
+   */
+  @FunctionalInterface
+  public interface KernelAction {
+
+    void execute(ClRuntime.Kernel kernel) throws ExecutionException;
+
+  }
+
+}
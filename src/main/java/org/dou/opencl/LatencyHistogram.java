@@ -0,0 +1,134 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import java.util.Arrays;
+
+/**
+ * Latency histogram with power of two nanosecond buckets, i.e. values are recorded with up to 2x
+ * precision in constant memory. Percentiles are approximated by bucket upper bounds.
+ *
+ * Histogram is thread safe.
+ *
+ * @author Viktor Gubin
+ */
+public final class LatencyHistogram {
+
+  private static final int BUCKETS = Long.SIZE;
+
+  private final long[] buckets;
+  private long count;
+  private long sum;
+  private long min;
+  private long max;
+
+  public LatencyHistogram() {
+    this.buckets = new long[BUCKETS];
+    this.min = Long.MAX_VALUE;
+  }
+
+  /**
+   * Records latency value, negative values are recorded as 0
+   *
+   * @param nanos latency in nanoseconds
+   */
+  public synchronized void record(long nanos) {
+    long value = Math.max(0L, nanos);
+    buckets[BUCKETS - Long.numberOfLeadingZeros(value)]++;
+    count++;
+    sum += value;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  /**
+   * Returns sum of all recorded values
+   *
+   * @return total latency in nanoseconds
+   */
+  public synchronized long getTotal() {
+    return sum;
+  }
+
+  public synchronized long getMin() {
+    return 0L == count ? 0L : min;
+  }
+
+  public synchronized long getMax() {
+    return max;
+  }
+
+  public synchronized double getMean() {
+    return 0L == count ? 0D : (double) sum / count;
+  }
+
+  /**
+   * Returns approximate percentile, i.e. upper bound of the bucket containing it
+   *
+   * @param percentile percentile in range (0, 100]
+   * @return latency in nanoseconds, or 0 when nothing is recorded
+   */
+  public synchronized long getPercentile(double percentile) {
+    if (percentile <= 0D || percentile > 100D) {
+      throw new IllegalArgumentException("Percentile must be in range (0, 100]");
+    }
+    if (0L == count) {
+      return 0L;
+    }
+    long rank = (long) Math.ceil(count * percentile / 100D);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets[i];
+      if (seen >= rank) {
+        long upper = 0 == i ? 0L : (i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1);
+        return Math.max(min, Math.min(max, upper));
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Returns consistent copy of this histogram
+   *
+   * @return histogram copy
+   */
+  public synchronized LatencyHistogram copy() {
+    LatencyHistogram result = new LatencyHistogram();
+    System.arraycopy(buckets, 0, result.buckets, 0, BUCKETS);
+    result.count = count;
+    result.sum = sum;
+    result.min = min;
+    result.max = max;
+    return result;
+  }
+
+  public synchronized void reset() {
+    Arrays.fill(buckets, 0L);
+    count = 0;
+    sum = 0;
+    min = Long.MAX_VALUE;
+    max = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("count=%d, mean=%.1fus, p50=%.1fus, p99=%.1fus, max=%.1fus", count,
+        getMean() / 1E3, getPercentile(50) / 1E3, getPercentile(99) / 1E3, max / 1E3);
+  }
+
+}
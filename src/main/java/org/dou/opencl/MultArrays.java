@@ -44,13 +44,14 @@ public class MultArrays {
         printSequence("Left hand statement: ", lhs, System.out);
         printSequence("Right hand statement: ", rhs, System.out);
 
-        int gws = LEFT_ARRAY.length * Float.BYTES;
+        // one work item per array element
+        int gws = LEFT_ARRAY.length;
 
         ClRuntime.CommandQueue cq = program.getCommandQueue();
 
         final ClRuntime.VideoMemBuffer first = cq.hostPtrReadBuffer(lhs);
         final ClRuntime.VideoMemBuffer second = cq.hostPtrReadBuffer(rhs);
-        final ClRuntime.VideoMemBuffer answer = cq.createReadWriteBuffer((int) gws);
+        final ClRuntime.VideoMemBuffer answer = cq.createReadWriteBuffer(gws * Float.BYTES);
 
         cq.flush();
 
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Splits one logical data parallel launch over a 1-D range of work items across several devices.
+ *
+ * Range is initially partitioned between devices proportionally to their measured throughput. Each
+ * device processes chunks from the front of its own partition, and when it runs out of work it
+ * steals the back half of the largest remaining partition. Throughput is measured per executed
+ * chunk and kept between runs, so later runs start with a better partition.
+ *
+ * Chunk results are merged by the {@link ChunkTask}, which writes output of each chunk into the
+ * host result at the chunk offset.
+ *
+ * @author Viktor Gubin
+ */
+public final class MultiDeviceScheduler implements AutoCloseable {
+
+  private static final int CHUNKS_PER_DEVICE = 16;
+  private static final double SMOOTHING = 0.3;
+
+  private final List<Worker> workers;
+  private final List<ClRuntime.Context> ownedContexts;
+  private final ExecutorService executor;
+
+  /**
+   * Creates scheduler over programs built from the same source for different devices
+   *
+   * @param programs one program per device
+   */
+  public MultiDeviceScheduler(List<ClRuntime.Program> programs) {
+    this(programs, Collections.emptyList());
+  }
+
+  private MultiDeviceScheduler(List<ClRuntime.Program> programs,
+      List<ClRuntime.Context> ownedContexts) {
+    if (programs.isEmpty()) {
+      throw new IllegalArgumentException("At least one program expected");
+    }
+    this.workers = new ArrayList<>(programs.size());
+    for (ClRuntime.Program program : programs) {
+      workers.add(new Worker(program));
+    }
+    this.ownedContexts = ownedContexts;
+    this.executor = Executors.newFixedThreadPool(programs.size(), r -> {
+      Thread result = new Thread(r, "opencl-device-worker");
+      result.setDaemon(true);
+      return result;
+    });
+  }
+
+  /**
+   * Creates scheduler over all devices of the platform, builds the program for each device.
+   * Programs and contexts are released when the scheduler is closed
+   *
+   * @param platform OpenCL platform
+   * @param source OpenCL C program source
+   * @return new scheduler
+   */
+  public static MultiDeviceScheduler forPlatform(ClRuntime.Platform platform, String source) {
+    List<ClRuntime.Context> contexts = new ArrayList<>();
+    List<ClRuntime.Program> programs = new ArrayList<>();
+    try {
+      for (ClRuntime.Device device : platform.getAllDevices()) {
+        ClRuntime.Context context = device.createContext();
+        contexts.add(context);
+        programs.add(context.createProgramWithSource(source));
+      }
+    } catch (RuntimeException exc) {
+      programs.forEach(ClRuntime.Program::close);
+      contexts.forEach(ClRuntime.Context::close);
+      throw exc;
+    }
+    return new MultiDeviceScheduler(programs, contexts);
+  }
+
+  /**
+   * Returns measured device throughput in work items per second
+   *
+   * @param program device program
+   * @return measured throughput or 0 when the device was not used yet
+   */
+  public double getThroughput(ClRuntime.Program program) {
+    for (Worker worker : workers) {
+      if (worker.program == program) {
+        return worker.throughput * 1E9;
+      }
+    }
+    throw new IllegalArgumentException("Program is not scheduled");
+  }
+
+  /**
+   * Executes task over work items range distributed across all devices, blocks until all work
+   * items are processed
+   *
+   * @param workItems total number of work items
+   * @param minChunk minimal number of work items per chunk
+   * @param task chunk task
+   * @throws ExecutionException when task fails on any device
+   */
+  public void run(long workItems, long minChunk, ChunkTask task) throws ExecutionException {
+    partition(workItems, minChunk);
+    final AtomicBoolean failed = new AtomicBoolean();
+    List<Future<?>> futures = new ArrayList<>(workers.size());
+    for (Worker worker : workers) {
+      futures.add(executor.submit(() -> {
+        worker.process(task, failed);
+        return null;
+      }));
+    }
+    ExecutionException error = null;
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException exc) {
+        Thread.currentThread().interrupt();
+        failed.set(true);
+        error = new ExecutionException(exc);
+      } catch (ExecutionException exc) {
+        if (null == error) {
+          error = exc.getCause() instanceof ExecutionException
+              ? (ExecutionException) exc.getCause()
+              : exc;
+        }
+      }
+    }
+    if (null != error) {
+      throw error;
+    }
+  }
+
+  private void partition(long workItems, long minChunk) {
+    double total = 0;
+    for (Worker worker : workers) {
+      total += worker.weight();
+    }
+    long begin = 0;
+    for (int i = 0; i < workers.size(); i++) {
+      Worker worker = workers.get(i);
+      long end = i == workers.size() - 1 ? workItems
+          : Math.min(workItems, begin + (long) (workItems * worker.weight() / total));
+      worker.reset(begin, end, Math.max(minChunk, (end - begin) / CHUNKS_PER_DEVICE));
+      begin = end;
+    }
+  }
+
+  /**
+   * Takes the back half of the largest remaining partition
+   *
+   * @return stolen range as begin, end pair or null when there is nothing left
+   */
+  private long[] steal(Worker thief) {
+    Worker victim = null;
+    long remaining = 0;
+    for (Worker worker : workers) {
+      long left = worker.remaining();
+      if (worker != thief && left > remaining) {
+        victim = worker;
+        remaining = left;
+      }
+    }
+    return null == victim ? null : victim.splitBack(thief.grain);
+  }
+
+  /**
+   * Releases worker threads, and programs and contexts created by
+   * {@link #forPlatform(ClRuntime.Platform, String)}
+   */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    if (!ownedContexts.isEmpty()) {
+      for (Worker worker : workers) {
+        worker.program.close();
+      }
+      ownedContexts.forEach(ClRuntime.Context::close);
+    }
+  }
+
+  private final class Worker {
+    private final ClRuntime.Program program;
+    // work items per nanosecond, 0 when unknown
+    private volatile double throughput;
+    private long next;
+    private long end;
+    private long grain;
+
+    Worker(ClRuntime.Program program) {
+      this.program = program;
+    }
+
+    double weight() {
+      double known = 0;
+      for (Worker worker : workers) {
+        known = Math.max(known, worker.throughput);
+      }
+      // devices without measurements yet get an equal share with the fastest known device
+      return throughput > 0 ? throughput : (known > 0 ? known : 1D);
+    }
+
+    synchronized void reset(long begin, long end, long grain) {
+      this.next = begin;
+      this.end = end;
+      this.grain = Math.max(1L, grain);
+    }
+
+    synchronized long remaining() {
+      return end - next;
+    }
+
+    synchronized long[] takeFront() {
+      if (next >= end) {
+        return null;
+      }
+      long begin = next;
+      next = Math.min(end, next + grain);
+      return new long[] {begin, next};
+    }
+
+    synchronized long[] splitBack(long minGrain) {
+      long left = end - next;
+      if (left <= 0) {
+        return null;
+      }
+      long stolen = left <= minGrain ? left : left / 2;
+      end -= stolen;
+      return new long[] {end, end + stolen};
+    }
+
+    void process(ChunkTask task, AtomicBoolean failed) throws ExecutionException {
+      try {
+        while (!failed.get()) {
+          long[] range = takeFront();
+          if (null == range) {
+            range = steal(this);
+            if (null == range) {
+              return;
+            }
+            synchronized (this) {
+              next = range[0];
+              end = range[1];
+            }
+            continue;
+          }
+          long start = System.nanoTime();
+          task.execute(program, range[0], range[1] - range[0]);
+          long elapsed = Math.max(1L, System.nanoTime() - start);
+          double measured = (range[1] - range[0]) / (double) elapsed;
+          throughput = throughput > 0 ? (1 - SMOOTHING) * throughput + SMOOTHING * measured
+              : measured;
+        }
+      } catch (ExecutionException | RuntimeException exc) {
+        failed.set(true);
+        throw exc;
+      }
+    }
+  }
+
+  /**
+   * Data parallel task over a chunk of work items
+   */
+  public interface ChunkTask {
+
+    /**
+     * Processes work items chunk on the device and stores the chunk result into host result at
+     * the chunk offset, should return when the result is on the host. Called concurrently for
+     * different devices
+     *
+     * @param program program of the device to execute on
+     * @param offset first work item index of the chunk, e.g. global offset for the NDRange
+     * @param length number of work items in the chunk
+     * @throws ExecutionException in case of OpenCL error
+     */
+    void execute(ClRuntime.Program program, long offset, long length) throws ExecutionException;
+
+  }
+
+}
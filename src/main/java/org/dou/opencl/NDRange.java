@@ -0,0 +1,295 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import java.util.Arrays;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * OpenCL kernel launch N-dimensional range descriptor. Supports 1, 2 or 3 dimensions, global work
+ * offsets and local (work-group) sizes.
+ *
+ * When local size is specified, global size is padded up to a multiple of the local size in each
+ * dimension, so kernel must check work item global id against the requested size.
+ *
+ * @author Viktor Gubin
+ */
+public final class NDRange {
+
+  private static final int MAX_DIMENSIONS = 3;
+
+  private final long[] requested;
+  private final long[] global;
+  private final long[] local;
+  private final long[] offset;
+
+  private NDRange(long[] requested, long[] local, long[] offset) {
+    this.requested = requested;
+    this.local = local;
+    this.offset = offset;
+    this.global = new long[requested.length];
+    for (int i = 0; i < requested.length; i++) {
+      this.global[i] = null == local ? requested[i] : roundUp(requested[i], local[i]);
+    }
+  }
+
+  /**
+   * Creates 1-D range with implementation defined local size
+   *
+   * @param x global work size
+   * @return new range
+   */
+  public static NDRange of(long x) {
+    return builder().global(x).build();
+  }
+
+  /**
+   * Creates 2-D range with implementation defined local size
+   *
+   * @param x global work size in first dimension
+   * @param y global work size in second dimension
+   * @return new range
+   */
+  public static NDRange of(long x, long y) {
+    return builder().global(x, y).build();
+  }
+
+  /**
+   * Creates 3-D range with implementation defined local size
+   *
+   * @param x global work size in first dimension
+   * @param y global work size in second dimension
+   * @param z global work size in third dimension
+   * @return new range
+   */
+  public static NDRange of(long x, long y, long z) {
+    return builder().global(x, y, z).build();
+  }
+
+  /**
+   * Returns builder for constructing range with offsets and local sizes
+   *
+   * @return new builder
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Rounds size up to the nearest multiple
+   *
+   * @param size size to round
+   * @param multiple multiple to round to
+   * @return rounded size
+   */
+  public static long roundUp(long size, long multiple) {
+    long remainder = size % multiple;
+    return 0 == remainder ? size : size + multiple - remainder;
+  }
+
+  /**
+   * Creates copy of this range with another local size, global size is padded from the requested
+   * size
+   *
+   * @param localSize local work size for each dimension, or null for implementation defined
+   * @return new range
+   */
+  public NDRange withLocalSize(long... localSize) {
+    return builder().global(requested).local(localSize).offset(offset).build();
+  }
+
+  /**
+   * Returns number of work dimensions
+   *
+   * @return number of work dimensions
+   */
+  public int getDimensions() {
+    return global.length;
+  }
+
+  /**
+   * Returns global work size, padded to multiple of the local size
+   *
+   * @param dimension dimension index
+   * @return global work size in dimension
+   */
+  public long getGlobalSize(int dimension) {
+    return global[dimension];
+  }
+
+  /**
+   * Returns global work size as it was requested, i.e. before padding
+   *
+   * @param dimension dimension index
+   * @return requested global work size in dimension
+   */
+  public long getRequestedSize(int dimension) {
+    return requested[dimension];
+  }
+
+  /**
+   * Returns local work size
+   *
+   * @param dimension dimension index
+   * @return local work size in dimension or 0 when it is implementation defined
+   */
+  public long getLocalSize(int dimension) {
+    return null == local ? 0L : local[dimension];
+  }
+
+  /**
+   * Returns global work offset
+   *
+   * @param dimension dimension index
+   * @return global work offset in dimension
+   */
+  public long getOffset(int dimension) {
+    return null == offset ? 0L : offset[dimension];
+  }
+
+  public boolean hasLocalSize() {
+    return null != local;
+  }
+
+  /**
+   * Returns total number of work items to be launched, including padding
+   *
+   * @return total number of work items
+   */
+  public long getWorkItems() {
+    long result = 1L;
+    for (long size : global) {
+      result *= size;
+    }
+    return result;
+  }
+
+  PointerBuffer globalSizes(MemoryStack stack) {
+    return stack.pointers(global);
+  }
+
+  PointerBuffer localSizes(MemoryStack stack) {
+    return null == local ? null : stack.pointers(local);
+  }
+
+  PointerBuffer offsets(MemoryStack stack) {
+    return null == offset ? null : stack.pointers(offset);
+  }
+
+  @Override
+  public int hashCode() {
+    final int prime = 31;
+    int result = 1;
+    result = prime * result + Arrays.hashCode(requested);
+    result = prime * result + Arrays.hashCode(local);
+    result = prime * result + Arrays.hashCode(offset);
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (getClass() != obj.getClass())
+      return false;
+    NDRange other = (NDRange) obj;
+    return Arrays.equals(requested, other.requested) && Arrays.equals(local, other.local)
+        && Arrays.equals(offset, other.offset);
+  }
+
+  @Override
+  public String toString() {
+    return "NDRange [global=" + Arrays.toString(global) + ", local=" + Arrays.toString(local)
+        + ", offset=" + Arrays.toString(offset) + "]";
+  }
+
+  public static class Builder {
+
+    private long[] global;
+    private long[] local;
+    private long[] offset;
+
+    Builder() {}
+
+    /**
+     * Sets global work size
+     *
+     * @param sizes global work size for each dimension
+     * @return this builder
+     */
+    public Builder global(long... sizes) {
+      this.global = sizes.clone();
+      return this;
+    }
+
+    /**
+     * Sets local work size i.e. work-group shape
+     *
+     * @param sizes local work size for each dimension, or null for implementation defined
+     * @return this builder
+     */
+    public Builder local(long... sizes) {
+      this.local = null == sizes ? null : sizes.clone();
+      return this;
+    }
+
+    /**
+     * Sets global work offset
+     *
+     * @param offsets global work offset for each dimension, or null for no offset
+     * @return this builder
+     */
+    public Builder offset(long... offsets) {
+      this.offset = null == offsets ? null : offsets.clone();
+      return this;
+    }
+
+    public NDRange build() {
+      if (null == global || 0 == global.length || global.length > MAX_DIMENSIONS) {
+        throw new IllegalStateException("1, 2 or 3 dimensional global work size expected");
+      }
+      for (long size : global) {
+        if (size <= 0) {
+          throw new IllegalStateException("Global work size must be positive");
+        }
+      }
+      if (null != local) {
+        if (local.length != global.length) {
+          throw new IllegalStateException("Local work size dimensions don't match global");
+        }
+        for (long size : local) {
+          if (size <= 0) {
+            throw new IllegalStateException("Local work size must be positive");
+          }
+        }
+      }
+      if (null != offset) {
+        if (offset.length != global.length) {
+          throw new IllegalStateException("Global offset dimensions don't match global");
+        }
+        for (long off : offset) {
+          if (off < 0) {
+            throw new IllegalStateException("Global offset can not be negative");
+          }
+        }
+      }
+      return new NDRange(global, local, offset);
+    }
+
+  }
+
+}
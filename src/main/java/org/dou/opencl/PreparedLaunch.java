@@ -0,0 +1,235 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.lwjgl.opencl.CL10.nclEnqueueNDRangeKernel;
+import static org.lwjgl.opencl.CL10.nclSetKernelArg;
+import static org.lwjgl.system.MemoryUtil.NULL;
+import static org.lwjgl.system.Pointer.POINTER_SIZE;
+import java.util.concurrent.ExecutionException;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Allocation free kernel launch for tight loops. Arguments are bound by index, and
+ * <code>clSetKernelArg</code> is called only for arguments whose value changed since the previous
+ * bind. Work sizes are kept in preallocated native memory, so launching makes no Java allocations
+ * and a single JNI call.
+ *
+ * Prepared launch is not thread safe.
+ *
+ * @see ClRuntime.Kernel#prepare(NDRange)
+ * @author Viktor Gubin
+ */
+public final class PreparedLaunch implements AutoCloseable {
+
+  private static final int MAX_DIMENSIONS = 3;
+  // offsets, global sizes, local sizes, event and argument value scratch
+  private static final int OFFSETS = 0;
+  private static final int GLOBAL = MAX_DIMENSIONS * POINTER_SIZE;
+  private static final int LOCAL = 2 * MAX_DIMENSIONS * POINTER_SIZE;
+  private static final int EVENT = 3 * MAX_DIMENSIONS * POINTER_SIZE;
+  private static final int SCRATCH = EVENT + POINTER_SIZE;
+  private static final int NATIVE_SIZE = SCRATCH + Long.BYTES;
+
+  private final ClRuntime.Kernel kernel;
+  private final ClRuntime.CommandQueue queue;
+  private final long address;
+  private final long[] boundBits;
+  private final int[] boundSize;
+  private int dimensions;
+  private boolean hasLocal;
+  private boolean hasOffset;
+
+  PreparedLaunch(ClRuntime.Kernel kernel, ClRuntime.CommandQueue queue, int argCount,
+      NDRange range) {
+    this.kernel = kernel;
+    this.queue = queue;
+    this.boundBits = new long[argCount];
+    this.boundSize = new int[argCount];
+    this.address = MemoryUtil.nmemCalloc(1, NATIVE_SIZE);
+    if (NULL == address) {
+      throw new OutOfMemoryError("Can not allocate launch sizes");
+    }
+    range(range);
+  }
+
+  /**
+   * Changes launch range
+   *
+   * @param range new launch range
+   * @return this launch
+   */
+  public PreparedLaunch range(NDRange range) {
+    this.dimensions = range.getDimensions();
+    this.hasLocal = range.hasLocalSize();
+    this.hasOffset = false;
+    for (int i = 0; i < dimensions; i++) {
+      MemoryUtil.memPutAddress(address + GLOBAL + i * POINTER_SIZE, range.getGlobalSize(i));
+      MemoryUtil.memPutAddress(address + LOCAL + i * POINTER_SIZE, range.getLocalSize(i));
+      MemoryUtil.memPutAddress(address + OFFSETS + i * POINTER_SIZE, range.getOffset(i));
+      hasOffset |= 0L != range.getOffset(i);
+    }
+    return this;
+  }
+
+  /**
+   * Changes 1-D global work size without allocations, local size is kept and the global size is
+   * padded up to a multiple of it like {@link NDRange#withLocalSize(long...)} does, so kernel must
+   * guard against the padded tail
+   *
+   * @param x global work size
+   * @return this launch
+   */
+  public PreparedLaunch global(long x) {
+    if (1 != dimensions) {
+      throw new IllegalStateException("1-D launch expected");
+    }
+    long size = hasLocal ? NDRange.roundUp(x, MemoryUtil.memGetAddress(address + LOCAL)) : x;
+    MemoryUtil.memPutAddress(address + GLOBAL, size);
+    return this;
+  }
+
+  /**
+   * Changes 1-D global work offset without allocations
+   *
+   * @param x global work offset
+   * @return this launch
+   */
+  public PreparedLaunch offset(long x) {
+    if (1 != dimensions) {
+      throw new IllegalStateException("1-D launch expected");
+    }
+    MemoryUtil.memPutAddress(address + OFFSETS, x);
+    hasOffset = true;
+    return this;
+  }
+
+  private void bind(int index, long bits, int size) {
+    if (index < 0 || index >= boundSize.length) {
+      throw new IllegalArgumentException("Invalid argument index");
+    }
+    if (boundSize[index] == size && boundBits[index] == bits) {
+      return;
+    }
+    long scratch = address + SCRATCH;
+    switch (size) {
+      case Integer.BYTES:
+        MemoryUtil.memPutInt(scratch, (int) bits);
+        break;
+      case Long.BYTES:
+        MemoryUtil.memPutLong(scratch, bits);
+        break;
+      default:
+        MemoryUtil.memPutAddress(scratch, bits);
+        break;
+    }
+    ClRuntime.Kernel.validateArg(nclSetKernelArg(kernel.getId(), index, size, scratch));
+    boundBits[index] = bits;
+    boundSize[index] = size;
+  }
+
+  /**
+   * Binds kernel argument, skips native call when the value is not changed
+   *
+   * @param index argument index
+   * @param value argument value
+   * @return this launch
+   */
+  public PreparedLaunch set(int index, int value) {
+    bind(index, value, Integer.BYTES);
+    return this;
+  }
+
+  /**
+   * Binds kernel argument, skips native call when the value is not changed
+   *
+   * @param index argument index
+   * @param value argument value
+   * @return this launch
+   */
+  public PreparedLaunch set(int index, long value) {
+    bind(index, value, Long.BYTES);
+    return this;
+  }
+
+  /**
+   * Binds kernel argument, skips native call when the value is not changed
+   *
+   * @param index argument index
+   * @param value argument value
+   * @return this launch
+   */
+  public PreparedLaunch set(int index, float value) {
+    bind(index, Float.floatToRawIntBits(value), Float.BYTES);
+    return this;
+  }
+
+  /**
+   * Binds kernel argument, skips native call when the value is not changed
+   *
+   * @param index argument index
+   * @param value argument value
+   * @return this launch
+   */
+  public PreparedLaunch set(int index, double value) {
+    bind(index, Double.doubleToRawLongBits(value), Double.BYTES);
+    return this;
+  }
+
+  /**
+   * Binds kernel memory object argument, skips native call when the buffer is not changed
+   *
+   * @param index argument index
+   * @param value argument value
+   * @return this launch
+   */
+  public PreparedLaunch set(int index, ClRuntime.VideoMemBuffer value) {
+    bind(index, value.getId(), POINTER_SIZE);
+    return this;
+  }
+
+  /**
+   * Enqueues kernel execution, without an event unless commands are observed by context command
+   * listeners or the flight recorder
+   *
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public void launch() throws ExecutionException {
+    final boolean observed = queue.isObserved();
+    final long start = observed ? System.nanoTime() : 0L;
+    ClRuntime.Kernel.validateErrorCode(nclEnqueueNDRangeKernel(queue.getId(), kernel.getId(),
+        dimensions, hasOffset ? address + OFFSETS : NULL, address + GLOBAL,
+        hasLocal ? address + LOCAL : NULL, 0, NULL, observed ? address + EVENT : NULL));
+    if (observed) {
+      long workItems = 1L;
+      for (int i = 0; i < dimensions; i++) {
+        workItems *= MemoryUtil.memGetAddress(address + GLOBAL + i * POINTER_SIZE);
+      }
+      queue.enqueued(CommandType.KERNEL, kernel.getName(), workItems, start,
+          new ClRuntime.Event(MemoryUtil.memGetAddress(address + EVENT))).close();
+    } else {
+      queue.submitted(CommandType.KERNEL, 0L);
+    }
+    kernel.launched();
+  }
+
+  /**
+   * Releases launch native memory
+   */
+  @Override
+  public void close() {
+    MemoryUtil.nmemFree(address);
+  }
+
+}
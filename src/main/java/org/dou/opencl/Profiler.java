@@ -0,0 +1,233 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Command profiler based on OpenCL queue profiling. Records device queued, submit, start and end
+ * timestamps of every kernel execution and memory transfer enqueued into profiling enabled queues
+ * of the context.
+ *
+ * Kernel execution time (end - start) is recorded per kernel name, transfer time and bytes are
+ * recorded per command type, and queueing delay (start - queued) is recorded for all commands, so
+ * a slowdown can be attributed to the bus, the queue or the kernel itself.
+ *
+ * Profiling must be enabled before programs and command queues are created, e.g.
+ *
+ * <pre>
+ * try (Context context = device.createContext(); Profiler profiler = Profiler.enable(context)) {
+ *   Program program = context.createProgramWithSource(source);
+ *   ...
+ *   System.out.println(profiler.report());
+ * }
+ * </pre>
+ *
+ * @author Viktor Gubin
+ */
+public final class Profiler implements CommandListener, AutoCloseable {
+
+  private final ClRuntime.Context context;
+  private final ConcurrentMap<String, LatencyHistogram> kernels;
+  private final Map<CommandType, Transfer> transfers;
+  private final LatencyHistogram queueing;
+  private final LongAdder unprofiled;
+
+  private Profiler(ClRuntime.Context context) {
+    this.context = context;
+    this.kernels = new ConcurrentHashMap<>();
+    this.transfers = new EnumMap<>(CommandType.class);
+    for (CommandType type : CommandType.values()) {
+      transfers.put(type, new Transfer());
+    }
+    this.queueing = new LatencyHistogram();
+    this.unprofiled = new LongAdder();
+  }
+
+  /**
+   * Enables profiling for command queues created in the context afterwards and starts recording
+   * their commands
+   *
+   * @param context OpenCL context
+   * @return new profiler, should be closed to stop recording
+   */
+  public static Profiler enable(ClRuntime.Context context) {
+    Profiler result = new Profiler(context);
+    context.setProfilingEnabled(true);
+    context.addCommandListener(result);
+    return result;
+  }
+
+  @Override
+  public void enqueued(CommandInfo command) {
+    if (!command.getQueue().isProfilingEnabled()) {
+      unprofiled.increment();
+      return;
+    }
+    command.getEvent().toFuture().thenAccept(event -> record(command, event));
+  }
+
+  private void record(CommandInfo command, ClRuntime.Event event) {
+    final long queued;
+    final long start;
+    final long end;
+    try {
+      queued = event.getQueuedTime();
+      start = event.getStartTime();
+      end = event.getEndTime();
+    } catch (CLRuntimeException exc) {
+      unprofiled.increment();
+      return;
+    }
+    queueing.record(start - queued);
+    if (CommandType.KERNEL == command.getType()) {
+      kernels.computeIfAbsent(command.getName(), name -> new LatencyHistogram())
+          .record(end - start);
+    } else {
+      Transfer transfer = transfers.get(command.getType());
+      transfer.latency.record(end - start);
+      transfer.bytes.add(command.getBytes());
+    }
+  }
+
+  /**
+   * Returns execution time histograms per kernel name
+   *
+   * @return kernel name to histogram copy map
+   */
+  public Map<String, LatencyHistogram> getKernelLatencies() {
+    Map<String, LatencyHistogram> result = new TreeMap<>();
+    kernels.forEach((name, histogram) -> result.put(name, histogram.copy()));
+    return Collections.unmodifiableMap(result);
+  }
+
+  /**
+   * Returns execution time histogram of the kernel
+   *
+   * @param kernel kernel name
+   * @return histogram copy, empty when kernel was not executed
+   */
+  public LatencyHistogram getKernelLatency(String kernel) {
+    LatencyHistogram result = kernels.get(kernel);
+    return null == result ? new LatencyHistogram() : result.copy();
+  }
+
+  /**
+   * Returns histogram of time commands spent in the queue, i.e. from enqueue to start of execution
+   *
+   * @return histogram copy
+   */
+  public LatencyHistogram getQueueingDelay() {
+    return queueing.copy();
+  }
+
+  /**
+   * Returns device time histogram of memory commands of the type
+   *
+   * @param type memory command type
+   * @return histogram copy
+   */
+  public LatencyHistogram getTransferLatency(CommandType type) {
+    return transfers.get(type).latency.copy();
+  }
+
+  /**
+   * Returns number of bytes moved by memory commands of the type
+   *
+   * @param type memory command type
+   * @return transferred bytes
+   */
+  public long getTransferredBytes(CommandType type) {
+    return transfers.get(type).bytes.sum();
+  }
+
+  /**
+   * Returns effective bandwidth of memory commands of the type, i.e. transferred bytes divided by
+   * device time spent on transferring
+   *
+   * @param type memory command type
+   * @return bytes per second or 0 when nothing was transferred
+   */
+  public double getBytesPerSecond(CommandType type) {
+    long nanos = transfers.get(type).latency.getTotal();
+    return 0L == nanos ? 0D : getTransferredBytes(type) * 1E9 / nanos;
+  }
+
+  /**
+   * Returns number of commands that could not be profiled, e.g. enqueued into command queues
+   * created before profiling was enabled
+   *
+   * @return number of commands without timestamps
+   */
+  public long getUnprofiledCount() {
+    return unprofiled.sum();
+  }
+
+  /**
+   * Discards all recorded measurements
+   */
+  public void reset() {
+    kernels.clear();
+    for (Transfer transfer : transfers.values()) {
+      transfer.latency.reset();
+      transfer.bytes.reset();
+    }
+    queueing.reset();
+    unprofiled.reset();
+  }
+
+  /**
+   * Formats human readable profiling report
+   *
+   * @return profiling report
+   */
+  public String report() {
+    StringBuilder result = new StringBuilder();
+    result.append("queueing: ").append(queueing).append('\n');
+    getKernelLatencies().forEach((name, histogram) -> result.append("kernel ").append(name)
+        .append(": ").append(histogram).append('\n'));
+    for (CommandType type : CommandType.values()) {
+      LatencyHistogram latency = transfers.get(type).latency;
+      if (0L != latency.getCount()) {
+        result.append(type.name().toLowerCase()).append(": ").append(latency)
+            .append(String.format(", %.2f MB/s", getBytesPerSecond(type) / 1E6)).append('\n');
+      }
+    }
+    long missed = unprofiled.sum();
+    if (0L != missed) {
+      result.append("unprofiled commands: ").append(missed).append('\n');
+    }
+    return result.toString();
+  }
+
+  /**
+   * Stops recording, profiling of the context stays enabled for already created command queues
+   */
+  @Override
+  public void close() {
+    context.removeCommandListener(this);
+  }
+
+  private static final class Transfer {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder bytes = new LongAdder();
+  }
+
+}
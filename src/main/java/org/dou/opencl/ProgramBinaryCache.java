@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.stream.Stream;
+
+/**
+ * On-disk OpenCL program binary cache. Stores device binaries returned by
+ * <code>CL_PROGRAM_BINARIES</code> in a directory, one file per source, build options, device and
+ * driver version combination. The cache only speeds builds up, an entry which can not be read is
+ * treated as a miss and failures to write or remove entries are ignored.
+ *
+ * @see ClRuntime.Context#createProgramWithSource(String, String, ProgramBinaryCache)
+ * @author Viktor Gubin
+ */
+public final class ProgramBinaryCache {
+
+  private static final String EXTENSION = ".clbin";
+
+  private final Path directory;
+
+  /**
+   * Creates cache stored in user home directory
+   */
+  public ProgramBinaryCache() {
+    this(Paths.get(System.getProperty("user.home"), ".javagpu", "binaries"));
+  }
+
+  /**
+   * Creates cache
+   *
+   * @param directory cache directory, created on first store
+   */
+  public ProgramBinaryCache(Path directory) {
+    this.directory = directory;
+  }
+
+  static String key(ClRuntime.Device device, String source, String options) {
+    return ClRuntime.digest(source, options, device.getName(), device.getDriverVersion());
+  }
+
+  private Path file(String key) {
+    return directory.resolve(key + EXTENSION);
+  }
+
+  byte[] load(String key) {
+    try {
+      return Files.readAllBytes(file(key));
+    } catch (IOException exc) {
+      return null;
+    }
+  }
+
+  void store(String key, byte[] binary) {
+    Path tmp = null;
+    try {
+      Files.createDirectories(directory);
+      tmp = Files.createTempFile(directory, key, ".tmp");
+      Files.write(tmp, binary);
+      Files.move(tmp, file(key), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException exc) {
+      if (null != tmp) {
+        invalidate(tmp);
+      }
+    }
+  }
+
+  void invalidate(String key) {
+    invalidate(file(key));
+  }
+
+  private static void invalidate(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException exc) {
+      // stale entry is rejected by the driver and rebuilt from source
+    }
+  }
+
+  /**
+   * Removes all cached program binaries
+   */
+  public void clear() {
+    if (!Files.isDirectory(directory)) {
+      return;
+    }
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        if (file.getFileName().toString().endsWith(EXTENSION)) {
+          Files.deleteIfExists(file);
+        }
+      }
+    } catch (IOException exc) {
+      throw new IllegalStateException("Can not clear program binary cache " + directory, exc);
+    }
+  }
+
+}
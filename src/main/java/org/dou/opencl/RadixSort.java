@@ -0,0 +1,323 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.lwjgl.opencl.CL10.CL_MEM_READ_WRITE;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Device side least significant digit radix sort of int, long, float and double keys, optionally
+ * carrying values of any element type along with the keys.
+ *
+ * Each pass sorts by a 4 bit digit of the key. Work-groups count digits of their tile of keys into
+ * a local memory histogram, histograms of all groups are scanned with {@link Scans} into global
+ * digit offsets, and each work-group scatters its tile to the offsets. Work items of a group take
+ * consecutive runs of the tile and their per digit counts are scanned in local memory, so every
+ * pass, and the whole sort, is stable.
+ *
+ * Signed and floating point keys are mapped to unsigned integers of the same order, so floating
+ * point keys are ordered as by {@link java.util.Arrays#sort(float[])}, i.e. -0.0 before 0.0 and
+ * NaN last.
+ *
+ * Sort is enqueued into the command queue of the {@link DeviceArrays} and doesn't wait for
+ * completion. Keys and values are sorted in place, temporary buffers of the same size are
+ * allocated for the duration of the sort.
+ *
+ * @see DeviceArrays#getRadixSort()
+ * @author Viktor Gubin
+ */
+public final class RadixSort {
+
+  static final String HISTOGRAM = "histogram";
+  static final String SCATTER = "scatter";
+
+  static final int RADIX_BITS = 4;
+  static final int RADIX = 1 << RADIX_BITS;
+  // keys per work item of the scatter pass
+  static final int ITEMS = 16;
+
+  private static final int MAX_GROUP_SIZE = 256;
+
+  private final DeviceArrays arrays;
+  private final ConcurrentMap<String, Integer> groupSizes;
+
+  RadixSort(DeviceArrays arrays) {
+    this.arrays = arrays;
+    this.groupSizes = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Enqueues sort of keys in ascending order
+   *
+   * @param keys keys buffer
+   * @param keyType key type
+   * @param length number of keys
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public void sort(ClRuntime.VideoMemBuffer keys, ElementType keyType, int length)
+      throws ExecutionException {
+    sort(keys, keyType, null, null, length);
+  }
+
+  /**
+   * Enqueues sort of key-value pairs by keys in ascending order, values of equal keys keep their
+   * order
+   *
+   * @param keys keys buffer
+   * @param keyType key type
+   * @param values values buffer or null
+   * @param valueType value type or null
+   * @param length number of pairs
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public void sort(ClRuntime.VideoMemBuffer keys, ElementType keyType,
+      ClRuntime.VideoMemBuffer values, ElementType valueType, int length)
+      throws ExecutionException {
+    checkLength(keys, keyType, length);
+    final ElementType payload = null == values ? null : valueType;
+    if (null != values) {
+      if (null == valueType) {
+        throw new IllegalArgumentException("Value type expected");
+      }
+      checkLength(values, valueType, length);
+    }
+    final int groupSize = groupSize(keyType, payload);
+    final ClRuntime.Program program = arrays.program(source(keyType, payload, groupSize));
+    final int groups = (int) ((length + (long) groupSize * ITEMS - 1) / ((long) groupSize * ITEMS));
+    final ClRuntime.CommandQueue queue = arrays.getCommandQueue();
+    final ClRuntime.Context context = arrays.getContext();
+    final NDRange range = NDRange.of((long) groups * groupSize).withLocalSize(groupSize);
+    ClRuntime.VideoMemBuffer histogram = null;
+    ClRuntime.VideoMemBuffer keysTemp = null;
+    ClRuntime.VideoMemBuffer valuesTemp = null;
+    try {
+      histogram = context.createBuffer(RADIX * groups * Integer.BYTES, CL_MEM_READ_WRITE);
+      keysTemp = context.createBuffer(keyType.bytes(length), CL_MEM_READ_WRITE);
+      if (null != values) {
+        valuesTemp = context.createBuffer(valueType.bytes(length), CL_MEM_READ_WRITE);
+      }
+      ClRuntime.VideoMemBuffer keysIn = keys;
+      ClRuntime.VideoMemBuffer keysOut = keysTemp;
+      ClRuntime.VideoMemBuffer valuesIn = values;
+      ClRuntime.VideoMemBuffer valuesOut = valuesTemp;
+      // key sizes are even multiples of the digit, so the last pass writes into the input buffers
+      for (int shift = 0; shift < keyType.getBytes() * Byte.SIZE; shift += RADIX_BITS) {
+        final int digitShift = shift;
+        final ClRuntime.VideoMemBuffer src = keysIn;
+        final ClRuntime.VideoMemBuffer dst = keysOut;
+        final ClRuntime.VideoMemBuffer srcValues = valuesIn;
+        final ClRuntime.VideoMemBuffer dstValues = valuesOut;
+        final ClRuntime.VideoMemBuffer offsets = histogram;
+        program.getKernelPool(HISTOGRAM).execute(kernel -> {
+          kernel.arg(src).arg(length).arg(digitShift).arg(offsets);
+          kernel.enqueue(queue, range).close();
+        });
+        arrays.getScans().exclusiveScan(offsets, ElementType.INT, RADIX * groups, offsets);
+        program.getKernelPool(SCATTER).execute(kernel -> {
+          kernel.arg(src);
+          if (null != srcValues) {
+            kernel.arg(srcValues);
+          }
+          kernel.arg(length).arg(digitShift).arg(offsets).arg(dst);
+          if (null != dstValues) {
+            kernel.arg(dstValues);
+          }
+          kernel.enqueue(queue, range).close();
+        });
+        keysIn = dst;
+        keysOut = src;
+        valuesIn = dstValues;
+        valuesOut = srcValues;
+      }
+    } finally {
+      // release is deferred by OpenCL until enqueued commands using the buffers are complete
+      if (null != histogram) {
+        histogram.free();
+      }
+      if (null != keysTemp) {
+        keysTemp.free();
+      }
+      if (null != valuesTemp) {
+        valuesTemp.free();
+      }
+    }
+  }
+
+  /**
+   * Enqueues in place sort of the array
+   *
+   * @param keys array to sort
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public void sort(DeviceArray keys) throws ExecutionException {
+    sort(checkOwner(keys).getBuffer(), keys.getType(), null, null, keys.length());
+  }
+
+  /**
+   * Enqueues in place sort of the values array by the keys array
+   *
+   * @param keys keys array, sorted in place
+   * @param values values array of the same length, permuted in place
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public void sort(DeviceArray keys, DeviceArray values) throws ExecutionException {
+    if (keys.length() != values.length()) {
+      throw new IllegalArgumentException(
+          "Array length mismatch " + keys.length() + " != " + values.length());
+    }
+    sort(checkOwner(keys).getBuffer(), keys.getType(), checkOwner(values).getBuffer(),
+        values.getType(), keys.length());
+  }
+
+  private DeviceArray checkOwner(DeviceArray array) {
+    if (array.getOwner() != arrays) {
+      throw new IllegalArgumentException("Array belongs to another context");
+    }
+    return array;
+  }
+
+  private static void checkLength(ClRuntime.VideoMemBuffer buffer, ElementType type, int length) {
+    if (length <= 0 || (long) length * type.getBytes() > buffer.getCapacity()) {
+      throw new IllegalArgumentException("Invalid sort length " + length);
+    }
+  }
+
+  private int groupSize(ElementType keyType, ElementType valueType) {
+    String key = keyType + ":" + valueType;
+    Integer result = groupSizes.get(key);
+    if (null == result) {
+      // per digit counts of each work item are scanned in local memory, probed outside of the
+      // map, so a build doesn't block other key types
+      int probed = arrays.groupSize(size -> source(keyType, valueType, size),
+          RADIX * Integer.BYTES, MAX_GROUP_SIZE, HISTOGRAM, SCATTER);
+      result = groupSizes.putIfAbsent(key, probed);
+      if (null == result) {
+        result = probed;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Generates sort program source
+   *
+   * @param keyType key type
+   * @param valueType value type or null for keys only sort
+   * @param groupSize work-group size
+   * @return program source
+   */
+  static String source(ElementType keyType, ElementType valueType, int groupSize) {
+    final String k = keyType.clName();
+    final boolean wide = Long.BYTES == keyType.getBytes();
+    final String bits = wide ? "ulong" : "uint";
+    StringBuilder source = new StringBuilder();
+    if (ElementType.DOUBLE == keyType || ElementType.DOUBLE == valueType) {
+      source.append("#pragma OPENCL EXTENSION cl_khr_fp64 : enable \n");
+    }
+    source.append("#define WG ").append(groupSize).append(" \n")
+        .append("#define ITEMS ").append(ITEMS).append(" \n")
+        .append("#define RADIX ").append(RADIX).append(" \n");
+    // order preserving mapping of the key to unsigned integer
+    source.append("inline ").append(bits).append(" order(const ").append(k).append(" x) { \n")
+        .append(" const ").append(bits).append(" b = ");
+    if (keyType.isFloatingPoint()) {
+      // all NaN payloads and signs collapse into the positive quiet NaN ordered after infinity
+      source.append("isnan(x) ? ").append(wide ? "0x7ff8000000000000ul" : "0x7fc00000u")
+          .append(" : ");
+    }
+    source.append("as_").append(bits).append("(x); \n");
+    String sign = wide ? "0x8000000000000000ul" : "0x80000000u";
+    if (keyType.isFloatingPoint()) {
+      source.append(" return b ^ (0 != (b >> ").append(wide ? 63 : 31).append(") ? ")
+          .append(wide ? "0xfffffffffffffffful" : "0xffffffffu").append(" : ").append(sign)
+          .append("); \n");
+    } else {
+      source.append(" return b ^ ").append(sign).append("; \n");
+    }
+    source.append("} \n")
+        .append("inline int digit(const ").append(k).append(" x, const int shift) { \n")
+        .append(" return (int) ((order(x) >> shift) & (RADIX - 1)); \n")
+        .append("} \n");
+    source.append("kernel void ").append(HISTOGRAM).append("(global const ").append(k)
+        .append(" *keys, const int n, const int shift, global int *histogram) { \n")
+        .append(" local int counts[RADIX]; \n")
+        .append(" const int lid = get_local_id(0); \n")
+        .append(" for (int d = lid; d < RADIX; d += WG) { \n")
+        .append("  counts[d] = 0; \n")
+        .append(" } \n")
+        .append(" barrier(CLK_LOCAL_MEM_FENCE); \n")
+        .append(" const size_t begin = get_group_id(0) * (size_t) (WG * ITEMS); \n")
+        .append(" const size_t end = min(begin + WG * ITEMS, (size_t) n); \n")
+        .append(" for (size_t i = begin + lid; i < end; i += WG) { \n")
+        .append("  atomic_inc(&counts[digit(keys[i], shift)]); \n")
+        .append(" } \n")
+        .append(" barrier(CLK_LOCAL_MEM_FENCE); \n")
+        .append(" for (int d = lid; d < RADIX; d += WG) { \n")
+        .append("  histogram[d * get_num_groups(0) + get_group_id(0)] = counts[d]; \n")
+        .append(" } \n")
+        .append("} \n");
+    source.append("kernel void ").append(SCATTER).append("(global const ").append(k)
+        .append(" *keys, ");
+    if (null != valueType) {
+      source.append("global const ").append(valueType.clName()).append(" *values, ");
+    }
+    source.append("const int n, const int shift, global const int *offsets, global ").append(k)
+        .append(" *keysOut");
+    if (null != valueType) {
+      source.append(", global ").append(valueType.clName()).append(" *valuesOut");
+    }
+    source.append(") { \n")
+        .append(" local int counts[RADIX * WG]; \n")
+        .append(" int own[RADIX]; \n")
+        .append(" const int lid = get_local_id(0); \n")
+        .append(" const size_t begin = min(get_group_id(0) * (size_t) (WG * ITEMS)")
+        .append(" + (size_t) lid * ITEMS, (size_t) n); \n")
+        .append(" const size_t end = min(begin + ITEMS, (size_t) n); \n")
+        .append(" for (int d = 0; d < RADIX; d++) { \n")
+        .append("  own[d] = 0; \n")
+        .append(" } \n")
+        .append(" for (size_t i = begin; i < end; i++) { \n")
+        .append("  own[digit(keys[i], shift)]++; \n")
+        .append(" } \n")
+        .append(" for (int d = 0; d < RADIX; d++) { \n")
+        .append("  counts[d * WG + lid] = own[d]; \n")
+        .append(" } \n")
+        .append(" barrier(CLK_LOCAL_MEM_FENCE); \n")
+        // counts of each digit are scanned in work item order starting at the group offset
+        .append(" for (int d = lid; d < RADIX; d += WG) { \n")
+        .append("  int sum = offsets[d * get_num_groups(0) + get_group_id(0)]; \n")
+        .append("  for (int j = 0; j < WG; j++) { \n")
+        .append("   const int c = counts[d * WG + j]; \n")
+        .append("   counts[d * WG + j] = sum; \n")
+        .append("   sum += c; \n")
+        .append("  } \n")
+        .append(" } \n")
+        .append(" barrier(CLK_LOCAL_MEM_FENCE); \n")
+        .append(" for (int d = 0; d < RADIX; d++) { \n")
+        .append("  own[d] = counts[d * WG + lid]; \n")
+        .append(" } \n")
+        .append(" for (size_t i = begin; i < end; i++) { \n")
+        .append("  const ").append(k).append(" key = keys[i]; \n")
+        .append("  const int position = own[digit(key, shift)]++; \n")
+        .append("  keysOut[position] = key; \n");
+    if (null != valueType) {
+      source.append("  valuesOut[position] = values[i]; \n");
+    }
+    source.append(" } \n").append("} \n");
+    return source.toString();
+  }
+
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Device side reductions of a buffer to a single value, so only the value is read back to the
+ * host instead of the whole buffer.
+ *
+ * Reduction runs in two passes. The first pass launches at most as many work-groups as there are
+ * work items in a group, each work item accumulates a strided slice of the buffer, then the
+ * work-group combines its work items with a tree reduction in local memory and writes a single
+ * partial result. The second pass combines partial results with a single work-group.
+ * Work-group size is the largest power of two allowed by the device, the kernel and the local
+ * memory size, up to 256.
+ *
+ * Floating point sums can be compensated, each work item and each tree level keeps a running
+ * error term with the Kahan-Babuska (Neumaier) summation, so the result does not depend much on
+ * the buffer length. Integer sums are accumulated as long. Minimum and maximum of floating point
+ * values ignore NaNs.
+ *
+ * Reductions are enqueued into the command queue of the {@link DeviceArrays}, so they see results
+ * of all array operations called before.
+ *
+ * @see DeviceArrays#getReductions()
+ * @author Viktor Gubin
+ */
+public final class Reductions implements AutoCloseable {
+
+  static final String FIRST_PASS = "reduce";
+  static final String SECOND_PASS = "combine";
+
+  private static final int MAX_GROUP_SIZE = 256;
+  // partial results are at most MAX_GROUP_SIZE values with indices
+  private static final long MAX_IDLE_BYTES = 64L * 1024;
+
+  private final DeviceArrays arrays;
+  private final BufferPool scratch;
+  private final ConcurrentMap<String, Plan> plans;
+
+  Reductions(DeviceArrays arrays) {
+    this.arrays = arrays;
+    this.scratch = new BufferPool(arrays.getContext(), MAX_IDLE_BYTES);
+    this.plans = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Sums buffer elements, float and double sums are not compensated
+   *
+   * @param buffer device buffer
+   * @param type buffer element type
+   * @param length number of elements to reduce
+   * @return sum as float, double or long for integer types
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public Number sum(ClRuntime.VideoMemBuffer buffer, ElementType type, int length)
+      throws ExecutionException {
+    return sum(buffer, type, length, false);
+  }
+
+  /**
+   * Sums buffer elements
+   *
+   * @param buffer device buffer
+   * @param type buffer element type
+   * @param length number of elements to reduce
+   * @param compensated whether to use compensated summation, ignored for integer types
+   * @return sum as float, double or long for integer types
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public Number sum(ClRuntime.VideoMemBuffer buffer, ElementType type, int length,
+      boolean compensated) throws ExecutionException {
+    return value(plan(Op.SUM, type, false, compensated && type.isFloatingPoint()), buffer, length);
+  }
+
+  /**
+   * Finds minimum of buffer elements
+   *
+   * @param buffer device buffer
+   * @param type buffer element type
+   * @param length number of elements to reduce
+   * @return minimum element, or positive infinity when all floating point elements are NaN
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public Number min(ClRuntime.VideoMemBuffer buffer, ElementType type, int length)
+      throws ExecutionException {
+    return value(plan(Op.MIN, type, false, false), buffer, length);
+  }
+
+  /**
+   * Finds maximum of buffer elements
+   *
+   * @param buffer device buffer
+   * @param type buffer element type
+   * @param length number of elements to reduce
+   * @return maximum element, or negative infinity when all floating point elements are NaN
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public Number max(ClRuntime.VideoMemBuffer buffer, ElementType type, int length)
+      throws ExecutionException {
+    return value(plan(Op.MAX, type, false, false), buffer, length);
+  }
+
+  /**
+   * Finds index of the minimum element, the smallest index when there are several
+   *
+   * @param buffer device buffer
+   * @param type buffer element type
+   * @param length number of elements to reduce
+   * @return index of the minimum element or -1 when all elements are NaN
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public int argMin(ClRuntime.VideoMemBuffer buffer, ElementType type, int length)
+      throws ExecutionException {
+    return index(plan(Op.MIN, type, true, false), buffer, length);
+  }
+
+  /**
+   * Finds index of the maximum element, the smallest index when there are several
+   *
+   * @param buffer device buffer
+   * @param type buffer element type
+   * @param length number of elements to reduce
+   * @return index of the maximum element or -1 when all elements are NaN
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public int argMax(ClRuntime.VideoMemBuffer buffer, ElementType type, int length)
+      throws ExecutionException {
+    return index(plan(Op.MAX, type, true, false), buffer, length);
+  }
+
+  public Number sum(DeviceArray array) throws ExecutionException {
+    return sum(checkOwner(array).getBuffer(), array.getType(), array.length(), false);
+  }
+
+  public Number sum(DeviceArray array, boolean compensated) throws ExecutionException {
+    return sum(checkOwner(array).getBuffer(), array.getType(), array.length(), compensated);
+  }
+
+  public Number min(DeviceArray array) throws ExecutionException {
+    return min(checkOwner(array).getBuffer(), array.getType(), array.length());
+  }
+
+  public Number max(DeviceArray array) throws ExecutionException {
+    return max(checkOwner(array).getBuffer(), array.getType(), array.length());
+  }
+
+  public int argMin(DeviceArray array) throws ExecutionException {
+    return argMin(checkOwner(array).getBuffer(), array.getType(), array.length());
+  }
+
+  public int argMax(DeviceArray array) throws ExecutionException {
+    return argMax(checkOwner(array).getBuffer(), array.getType(), array.length());
+  }
+
+  private DeviceArray checkOwner(DeviceArray array) {
+    if (array.getOwner() != arrays) {
+      throw new IllegalArgumentException("Array belongs to another context");
+    }
+    return array;
+  }
+
+  private Number value(Plan plan, ClRuntime.VideoMemBuffer buffer, int length)
+      throws ExecutionException {
+    try (MemoryStack stack = MemoryStack.stackPush()) {
+      ByteBuffer host = stack.malloc(plan.accumulator.getBytes());
+      run(plan, buffer, length, host);
+      switch (plan.accumulator) {
+        case FLOAT:
+          return host.getFloat(0);
+        case DOUBLE:
+          return host.getDouble(0);
+        case INT:
+          return host.getInt(0);
+        default:
+          return host.getLong(0);
+      }
+    }
+  }
+
+  private int index(Plan plan, ClRuntime.VideoMemBuffer buffer, int length)
+      throws ExecutionException {
+    try (MemoryStack stack = MemoryStack.stackPush()) {
+      ByteBuffer host = stack.malloc(Integer.BYTES);
+      run(plan, buffer, length, host);
+      int result = host.getInt(0);
+      return Integer.MAX_VALUE == result ? -1 : result;
+    }
+  }
+
+  /**
+   * Enqueues both passes and reads back the final value, or the final index for indexed plans
+   */
+  private void run(Plan plan, ClRuntime.VideoMemBuffer buffer, int length, ByteBuffer host)
+      throws ExecutionException {
+    if (length <= 0 || (long) length * plan.type.getBytes() > buffer.getCapacity()) {
+      throw new IllegalArgumentException("Invalid reduction length " + length);
+    }
+    final ClRuntime.CommandQueue queue = arrays.getCommandQueue();
+    final int groupSize = plan.groupSize;
+    final int groups = (int) Math.min(groupSize, (length + (long) groupSize - 1) / groupSize);
+    final List<ClRuntime.VideoMemBuffer> acquired = new ArrayList<>(4);
+    try {
+      final ClRuntime.VideoMemBuffer values =
+          acquire(acquired, groups * plan.accumulator.getBytes());
+      final ClRuntime.VideoMemBuffer indices =
+          plan.indexed ? acquire(acquired, groups * Integer.BYTES) : null;
+      plan.program.getKernelPool(FIRST_PASS).execute(kernel -> {
+        kernel.arg(buffer).arg(length).arg(values);
+        if (plan.indexed) {
+          kernel.arg(indices);
+        }
+        kernel.enqueue(queue, NDRange.of((long) groups * groupSize).withLocalSize(groupSize))
+            .close();
+      });
+      ClRuntime.VideoMemBuffer resultValues = values;
+      ClRuntime.VideoMemBuffer resultIndices = indices;
+      if (groups > 1) {
+        final ClRuntime.VideoMemBuffer combinedValues =
+            acquire(acquired, plan.accumulator.getBytes());
+        final ClRuntime.VideoMemBuffer combinedIndices =
+            plan.indexed ? acquire(acquired, Integer.BYTES) : null;
+        plan.program.getKernelPool(SECOND_PASS).execute(kernel -> {
+          kernel.arg(values);
+          if (plan.indexed) {
+            kernel.arg(indices);
+          }
+          kernel.arg(groups).arg(combinedValues);
+          if (plan.indexed) {
+            kernel.arg(combinedIndices);
+          }
+          kernel.enqueue(queue, NDRange.of(groupSize).withLocalSize(groupSize)).close();
+        });
+        resultValues = combinedValues;
+        resultIndices = combinedIndices;
+      }
+      try (ClRuntime.Event read =
+          queue.enqueueRead(plan.indexed ? resultIndices : resultValues, 0, host)) {
+        read.waitFor();
+      }
+    } finally {
+      acquired.forEach(scratch::release);
+    }
+  }
+
+  private ClRuntime.VideoMemBuffer acquire(List<ClRuntime.VideoMemBuffer> acquired, int bytes) {
+    ClRuntime.VideoMemBuffer result = scratch.acquire(bytes);
+    acquired.add(result);
+    return result;
+  }
+
+  /**
+   * Returns reduction kernels for the element type, builds them on first use
+   */
+  private Plan plan(Op op, ElementType type, boolean indexed, boolean compensated) {
+    String key = op + ":" + type + ":" + indexed + ":" + compensated;
+    Plan result = plans.get(key);
+    if (null == result) {
+      // built outside of the map, so a build doesn't block other plans, programs are cached
+      Plan built = build(op, type, indexed, compensated);
+      result = plans.putIfAbsent(key, built);
+      if (null == result) {
+        result = built;
+      }
+    }
+    return result;
+  }
+
+  private Plan build(Op op, ElementType type, boolean indexed, boolean compensated) {
+    ElementType accumulator = op.accumulator(type);
+    // local memory per work item: value, error term and index
+    int localBytes = accumulator.getBytes() * (compensated ? 2 : 1)
+        + (indexed ? Integer.BYTES : 0);
+    int groupSize = arrays.groupSize(size -> source(op, type, indexed, compensated, size),
+        localBytes, MAX_GROUP_SIZE, FIRST_PASS, SECOND_PASS);
+    return new Plan(arrays.program(source(op, type, indexed, compensated, groupSize)), type,
+        accumulator, indexed, groupSize);
+  }
+
+  /**
+   * Generates reduction program source with the first pass kernel reading elements and the second
+   * pass kernel combining partial results of the first pass
+   *
+   * @param op reduction operation
+   * @param type element type
+   * @param indexed whether to track element index, only for minimum and maximum
+   * @param compensated whether to use compensated summation
+   * @param groupSize work-group size
+   * @return program source
+   */
+  static String source(Op op, ElementType type, boolean indexed, boolean compensated,
+      int groupSize) {
+    ElementType accumulator = op.accumulator(type);
+    StringBuilder source = new StringBuilder();
+    if (ElementType.DOUBLE == type) {
+      source.append("#pragma OPENCL EXTENSION cl_khr_fp64 : enable \n");
+    }
+    source.append("#define WG ").append(groupSize).append(" \n");
+    kernel(source, FIRST_PASS, op, type, accumulator, indexed, compensated, false);
+    kernel(source, SECOND_PASS, op, accumulator, accumulator, indexed, compensated, true);
+    return source.toString();
+  }
+
+  private static void kernel(StringBuilder source, String name, Op op, ElementType input,
+      ElementType accumulator, boolean indexed, boolean compensated, boolean combine) {
+    final String a = accumulator.clName();
+    source.append("kernel void ").append(name).append("(global const ").append(input.clName())
+        .append(" *in, ");
+    if (indexed && combine) {
+      source.append("global const int *inIndex, ");
+    }
+    source.append("const int n, global ").append(a).append(" *out");
+    if (indexed) {
+      source.append(", global int *outIndex");
+    }
+    source.append(") { \n").append(" local ").append(a).append(" v[WG]; \n");
+    if (compensated) {
+      source.append(" local ").append(a).append(" c[WG]; \n");
+    }
+    if (indexed) {
+      source.append(" local int ix[WG]; \n");
+    }
+    source.append(" const int lid = get_local_id(0); \n").append(' ').append(a)
+        .append(" acc = ").append(op.identity(accumulator)).append("; \n");
+    if (compensated) {
+      source.append(' ').append(a).append(" comp = 0; \n");
+    }
+    if (indexed) {
+      source.append(" int idx = INT_MAX; \n");
+    }
+    source.append(" for (size_t i = get_global_id(0); i < (size_t) n; i += get_global_size(0)) {")
+        .append(" \n  const ").append(a).append(" x = (").append(a).append(") in[i]; \n");
+    if (indexed) {
+      source.append("  const int j = ").append(combine ? "inIndex[i]" : "(int) i").append("; \n");
+    }
+    source.append("  ").append(op.update(accumulator, indexed, compensated)).append(" \n")
+        .append(" } \n").append(" v[lid] = acc; \n");
+    if (compensated) {
+      source.append(" c[lid] = comp; \n");
+    }
+    if (indexed) {
+      source.append(" ix[lid] = idx; \n");
+    }
+    source.append(" barrier(CLK_LOCAL_MEM_FENCE); \n")
+        .append(" for (int s = WG / 2; s > 0; s >>= 1) { \n")
+        .append("  if (lid < s) { \n")
+        .append("   ").append(op.merge(accumulator, indexed, compensated)).append(" \n")
+        .append("  } \n")
+        .append("  barrier(CLK_LOCAL_MEM_FENCE); \n")
+        .append(" } \n")
+        .append(" if (0 == lid) { \n")
+        .append("  out[get_group_id(0)] = ").append(compensated ? "v[0] + c[0]" : "v[0]")
+        .append("; \n");
+    if (indexed) {
+      source.append("  outIndex[get_group_id(0)] = ix[0]; \n");
+    }
+    source.append(" } \n} \n");
+  }
+
+  /**
+   * Releases idle scratch buffers, kernels are released with the arrays factory
+   */
+  @Override
+  public void close() {
+    scratch.close();
+  }
+
+  /**
+   * Reduction operation
+   */
+  public enum Op {
+    SUM, MIN, MAX;
+
+    ElementType accumulator(ElementType type) {
+      return SUM == this && ElementType.INT == type ? ElementType.LONG : type;
+    }
+
+    String identity(ElementType accumulator) {
+      switch (this) {
+        case MIN:
+          return accumulator.isFloatingPoint() ? "INFINITY"
+              : ElementType.INT == accumulator ? "INT_MAX" : "LONG_MAX";
+        case MAX:
+          return accumulator.isFloatingPoint() ? "-INFINITY"
+              : ElementType.INT == accumulator ? "INT_MIN" : "LONG_MIN";
+        default:
+          return "0";
+      }
+    }
+
+    /**
+     * Returns statement accumulating element <code>x</code> with index <code>j</code> into
+     * <code>acc</code>
+     */
+    String update(ElementType accumulator, boolean indexed, boolean compensated) {
+      if (SUM == this) {
+        return compensated
+            ? "const " + accumulator.clName() + " t = acc + x; "
+                + "comp += fabs(acc) >= fabs(x) ? (acc - t) + x : (x - t) + acc; acc = t;"
+            : "acc += x;";
+      }
+      if (indexed) {
+        return "if (x " + compare() + " acc || (x == acc && j < idx)) { acc = x; idx = j; }";
+      }
+      return "acc = " + function(accumulator) + "(acc, x);";
+    }
+
+    /**
+     * Returns statement merging work item <code>lid + s</code> into work item <code>lid</code>
+     */
+    String merge(ElementType accumulator, boolean indexed, boolean compensated) {
+      final String a = accumulator.clName();
+      if (SUM == this) {
+        return compensated
+            ? "const " + a + " p = v[lid]; const " + a + " q = v[lid + s]; const " + a
+                + " t = p + q; c[lid] += c[lid + s] + (fabs(p) >= fabs(q) ? (p - t) + q "
+                + ": (q - t) + p); v[lid] = t;"
+            : "v[lid] += v[lid + s];";
+      }
+      if (indexed) {
+        return "const " + a + " y = v[lid + s]; const int k = ix[lid + s]; if (y " + compare()
+            + " v[lid] || (y == v[lid] && k < ix[lid])) { v[lid] = y; ix[lid] = k; }";
+      }
+      return "v[lid] = " + function(accumulator) + "(v[lid], v[lid + s]);";
+    }
+
+    private String compare() {
+      return MIN == this ? "<" : ">";
+    }
+
+    private String function(ElementType accumulator) {
+      String result = MIN == this ? "min" : "max";
+      return accumulator.isFloatingPoint() ? "f" + result : result;
+    }
+  }
+
+  private static final class Plan {
+    private final ClRuntime.Program program;
+    private final ElementType type;
+    private final ElementType accumulator;
+    private final boolean indexed;
+    private final int groupSize;
+
+    Plan(ClRuntime.Program program, ElementType type, ElementType accumulator, boolean indexed,
+        int groupSize) {
+      this.program = program;
+      this.type = type;
+      this.accumulator = accumulator;
+      this.indexed = indexed;
+      this.groupSize = groupSize;
+    }
+  }
+
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.lwjgl.opencl.CL10.CL_MEM_READ_WRITE;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Device side prefix sums and stream compaction of buffers.
+ *
+ * Scan is the work-efficient Blelloch scan. Each work-group scans a block of two elements per work
+ * item in local memory with an up-sweep and a down-sweep, and writes the block total. Block totals
+ * are scanned recursively the same way, and the scanned totals are added to the blocks, so any
+ * length is scanned with a few levels, e.g. three levels for 100M elements with 256 work items per
+ * group.
+ *
+ * Compaction scans predicate flags of the elements and scatters selected elements into the output
+ * at their scanned positions, preserving their order. Only the number of selected elements is read
+ * back to the host. Predicate is compiled into the kernel, and each distinct predicate builds a
+ * program cached until the {@link DeviceArrays} is closed, so predicates should come from a small
+ * fixed set with values passed through the data rather than formatted into the predicate.
+ *
+ * Operations are enqueued into the command queue of the {@link DeviceArrays}, so they see results
+ * of all array operations called before. Scans don't wait for completion.
+ *
+ * @see DeviceArrays#getScans()
+ * @author Viktor Gubin
+ */
+public final class Scans implements AutoCloseable {
+
+  static final String SCAN_BLOCKS = "scan_blocks";
+  static final String ADD_OFFSETS = "add_offsets";
+  static final String SCATTER = "scatter";
+
+  private static final int MAX_GROUP_SIZE = 256;
+  // block totals of a 100M elements scan are a few megabytes
+  private static final long MAX_IDLE_BYTES = 4L * 1024 * 1024;
+
+  private final DeviceArrays arrays;
+  private final BufferPool scratch;
+  private final ConcurrentMap<String, Plan> plans;
+
+  Scans(DeviceArrays arrays) {
+    this.arrays = arrays;
+    this.scratch = new BufferPool(arrays.getContext(), MAX_IDLE_BYTES);
+    this.plans = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Enqueues exclusive prefix sum, i.e. <code>out[i] = in[0] + ... + in[i - 1]</code> and
+   * <code>out[0] = 0</code>
+   *
+   * @param input input buffer
+   * @param type element type of both buffers
+   * @param length number of elements to scan
+   * @param output output buffer, may be the input buffer
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public void exclusiveScan(ClRuntime.VideoMemBuffer input, ElementType type, int length,
+      ClRuntime.VideoMemBuffer output) throws ExecutionException {
+    scan(input, type, length, output, false);
+  }
+
+  /**
+   * Enqueues inclusive prefix sum, i.e. <code>out[i] = in[0] + ... + in[i]</code>
+   *
+   * @param input input buffer
+   * @param type element type of both buffers
+   * @param length number of elements to scan
+   * @param output output buffer, may be the input buffer
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public void inclusiveScan(ClRuntime.VideoMemBuffer input, ElementType type, int length,
+      ClRuntime.VideoMemBuffer output) throws ExecutionException {
+    scan(input, type, length, output, true);
+  }
+
+  private void scan(ClRuntime.VideoMemBuffer input, ElementType type, int length,
+      ClRuntime.VideoMemBuffer output, boolean inclusive) throws ExecutionException {
+    checkLength(input, type, length);
+    checkLength(output, type, length);
+    List<ClRuntime.VideoMemBuffer> acquired = new ArrayList<>();
+    try {
+      scan(plan(type, null), input, length, output, inclusive, acquired);
+    } finally {
+      // buffers are reused only by later commands of the same in order queue
+      acquired.forEach(scratch::release);
+    }
+  }
+
+  /**
+   * Copies elements matching the predicate into the output preserving their order, waits until
+   * the number of matching elements is known. Predicate is an OpenCL C expression of the element
+   * <code>x</code>, e.g. <code>x &gt; 0.5f</code>. Each distinct predicate builds a program kept
+   * until the arrays are closed, so predicates should be a small fixed set
+   *
+   * @param input input buffer
+   * @param type element type of both buffers
+   * @param length number of input elements
+   * @param predicate OpenCL C boolean expression of <code>x</code>
+   * @param output output buffer, must have room for all matching elements
+   * @return number of matching elements written into the output
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public int compact(ClRuntime.VideoMemBuffer input, ElementType type, int length,
+      String predicate, ClRuntime.VideoMemBuffer output) throws ExecutionException {
+    checkLength(input, type, length);
+    final Plan plan = plan(type, predicate);
+    final ClRuntime.CommandQueue queue = arrays.getCommandQueue();
+    List<ClRuntime.VideoMemBuffer> acquired = new ArrayList<>();
+    ClRuntime.VideoMemBuffer positions =
+        arrays.getContext().createBuffer(ElementType.INT.bytes(length), CL_MEM_READ_WRITE);
+    try {
+      // inclusive scan of flags is one past the output position of each matching element
+      scan(plan, input, length, positions, true, acquired);
+      final int count;
+      try (MemoryStack stack = MemoryStack.stackPush()) {
+        IntBuffer host = stack.mallocInt(1);
+        try (ClRuntime.Event read =
+            queue.enqueueRead(positions, (long) (length - 1) * Integer.BYTES, host)) {
+          read.waitFor();
+        }
+        count = host.get(0);
+      }
+      if ((long) count * type.getBytes() > output.getCapacity()) {
+        throw new IllegalArgumentException("Output buffer is too small for " + count + " elements");
+      }
+      if (count > 0) {
+        plan.program.getKernelPool(SCATTER).execute(kernel -> {
+          kernel.arg(input).arg(length).arg(positions).arg(output);
+          kernel.enqueue(queue, NDRange.of(length).withLocalSize(plan.groupSize)).close();
+        });
+      }
+      return count;
+    } finally {
+      positions.free();
+      acquired.forEach(scratch::release);
+    }
+  }
+
+  /**
+   * Scans blocks, then recursively scans block totals and adds them to the blocks
+   */
+  private void scan(Plan plan, ClRuntime.VideoMemBuffer input, int length,
+      ClRuntime.VideoMemBuffer output, boolean inclusive, List<ClRuntime.VideoMemBuffer> acquired)
+      throws ExecutionException {
+    final ClRuntime.CommandQueue queue = arrays.getCommandQueue();
+    final int groupSize = plan.groupSize;
+    final int blocks = (int) ((length + 2L * groupSize - 1) / (2L * groupSize));
+    final ClRuntime.VideoMemBuffer totals = scratch.acquire(blocks * plan.sumType.getBytes());
+    acquired.add(totals);
+    plan.program.getKernelPool(SCAN_BLOCKS).execute(kernel -> {
+      kernel.arg(input).arg(length).arg(inclusive ? 1 : 0).arg(output).arg(totals);
+      kernel.enqueue(queue, NDRange.of((long) blocks * groupSize).withLocalSize(groupSize))
+          .close();
+    });
+    if (blocks > 1) {
+      // in place exclusive scan of block totals gives block offsets
+      scan(plan(plan.sumType, null), totals, blocks, totals, false, acquired);
+      plan.program.getKernelPool(ADD_OFFSETS).execute(kernel -> {
+        kernel.arg(output).arg(length).arg(totals);
+        kernel.enqueue(queue, NDRange.of(length).withLocalSize(groupSize)).close();
+      });
+    }
+  }
+
+  private static void checkLength(ClRuntime.VideoMemBuffer buffer, ElementType type, int length) {
+    if (length <= 0 || (long) length * type.getBytes() > buffer.getCapacity()) {
+      throw new IllegalArgumentException("Invalid scan length " + length);
+    }
+  }
+
+  /**
+   * Returns scan kernels for the element type, or compaction kernels when predicate is not null
+   */
+  private Plan plan(ElementType type, String predicate) {
+    String key = null == predicate ? type.name() : type + ":" + predicate;
+    Plan result = plans.get(key);
+    if (null == result) {
+      // built outside of the map, so a build doesn't block other plans, programs are cached
+      ElementType sumType = null == predicate ? type : ElementType.INT;
+      String[] kernels = null == predicate ? new String[] {SCAN_BLOCKS, ADD_OFFSETS}
+          : new String[] {SCAN_BLOCKS, ADD_OFFSETS, SCATTER};
+      int groupSize = arrays.groupSize(size -> source(type, predicate, size),
+          2 * sumType.getBytes(), MAX_GROUP_SIZE, kernels);
+      Plan built = new Plan(arrays.program(source(type, predicate, groupSize)), sumType, groupSize);
+      result = plans.putIfAbsent(key, built);
+      if (null == result) {
+        result = built;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Generates scan program source. Scan kernel sums elements, or predicate flags of elements as
+   * int when predicate is not null, and compaction program has the scatter kernel
+   *
+   * @param type input element type
+   * @param predicate OpenCL C boolean expression of element <code>x</code> or null
+   * @param groupSize work-group size
+   * @return program source
+   */
+  static String source(ElementType type, String predicate, int groupSize) {
+    final String t = type.clName();
+    final String s = null == predicate ? t : ElementType.INT.clName();
+    final String load = null == predicate ? "" : "keep";
+    StringBuilder source = new StringBuilder();
+    if (ElementType.DOUBLE == type) {
+      source.append("#pragma OPENCL EXTENSION cl_khr_fp64 : enable \n");
+    }
+    source.append("#define WG ").append(groupSize).append(" \n");
+    if (null != predicate) {
+      source.append("inline int keep(const ").append(t).append(" x) { \n")
+          .append(" return (").append(predicate).append(") ? 1 : 0; \n")
+          .append("} \n");
+    }
+    source.append("kernel void ").append(SCAN_BLOCKS).append("(global const ").append(t)
+        .append(" *in, const int n, const int inclusive, global ").append(s)
+        .append(" *out, global ").append(s).append(" *totals) { \n")
+        .append(" local ").append(s).append(" tmp[2 * WG]; \n")
+        .append(" const int lid = get_local_id(0); \n")
+        .append(" const size_t ai = get_group_id(0) * 2 * WG + lid; \n")
+        .append(" const size_t bi = ai + WG; \n")
+        .append(' ').append(s).append(" a = ai < (size_t) n ? ").append(load)
+        .append("(in[ai]) : 0; \n")
+        .append(' ').append(s).append(" b = bi < (size_t) n ? ").append(load)
+        .append("(in[bi]) : 0; \n")
+        .append(" tmp[lid] = a; \n")
+        .append(" tmp[lid + WG] = b; \n")
+        .append(" int offset = 1; \n")
+        .append(" for (int d = WG; d > 0; d >>= 1) { \n")
+        .append("  barrier(CLK_LOCAL_MEM_FENCE); \n")
+        .append("  if (lid < d) { \n")
+        .append("   tmp[offset * (2 * lid + 2) - 1] += tmp[offset * (2 * lid + 1) - 1]; \n")
+        .append("  } \n")
+        .append("  offset <<= 1; \n")
+        .append(" } \n")
+        .append(" if (0 == lid) { \n")
+        .append("  totals[get_group_id(0)] = tmp[2 * WG - 1]; \n")
+        .append("  tmp[2 * WG - 1] = 0; \n")
+        .append(" } \n")
+        .append(" for (int d = 1; d <= WG; d <<= 1) { \n")
+        .append("  offset >>= 1; \n")
+        .append("  barrier(CLK_LOCAL_MEM_FENCE); \n")
+        .append("  if (lid < d) { \n")
+        .append("   const int x = offset * (2 * lid + 1) - 1; \n")
+        .append("   const int y = offset * (2 * lid + 2) - 1; \n")
+        .append("   const ").append(s).append(" t = tmp[x]; \n")
+        .append("   tmp[x] = tmp[y]; \n")
+        .append("   tmp[y] += t; \n")
+        .append("  } \n")
+        .append(" } \n")
+        .append(" barrier(CLK_LOCAL_MEM_FENCE); \n")
+        .append(" if (ai < (size_t) n) { \n")
+        .append("  out[ai] = inclusive ? tmp[lid] + a : tmp[lid]; \n")
+        .append(" } \n")
+        .append(" if (bi < (size_t) n) { \n")
+        .append("  out[bi] = inclusive ? tmp[lid + WG] + b : tmp[lid + WG]; \n")
+        .append(" } \n")
+        .append("} \n");
+    source.append("kernel void ").append(ADD_OFFSETS).append("(global ").append(s)
+        .append(" *out, const int n, global const ").append(s).append(" *offsets) { \n")
+        .append(" const size_t i = get_global_id(0); \n")
+        .append(" if (i < (size_t) n) { \n")
+        .append("  out[i] += offsets[i / (2 * WG)]; \n")
+        .append(" } \n")
+        .append("} \n");
+    if (null != predicate) {
+      source.append("kernel void ").append(SCATTER).append("(global const ").append(t)
+          .append(" *in, const int n, global const int *positions, global ").append(t)
+          .append(" *out) { \n")
+          .append(" const size_t i = get_global_id(0); \n")
+          .append(" if (i < (size_t) n) { \n")
+          .append("  const ").append(t).append(" x = in[i]; \n")
+          .append("  if (keep(x)) { \n")
+          .append("   out[positions[i] - 1] = x; \n")
+          .append("  } \n")
+          .append(" } \n")
+          .append("} \n");
+    }
+    return source.toString();
+  }
+
+  /**
+   * Releases idle scratch buffers, kernels are released with the arrays factory
+   */
+  @Override
+  public void close() {
+    scratch.close();
+  }
+
+  private static final class Plan {
+    private final ClRuntime.Program program;
+    // type of scanned values, int for compaction flags
+    private final ElementType sumType;
+    private final int groupSize;
+
+    Plan(ClRuntime.Program program, ElementType sumType, int groupSize) {
+      this.program = program;
+      this.sumType = sumType;
+      this.groupSize = groupSize;
+    }
+  }
+
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.lwjgl.opencl.CL10.CL_MEM_ALLOC_HOST_PTR;
+import static org.lwjgl.opencl.CL10.CL_MEM_READ_ONLY;
+import static org.lwjgl.opencl.CL10.CL_MEM_READ_WRITE;
+import static org.lwjgl.opencl.CL10.CL_MEM_WRITE_ONLY;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Out of core executor of a data parallel kernel over input larger than device memory, or larger
+ * than a single buffer.
+ *
+ * Input is read from a {@link Source} in chunks of at most the chunk size, and each chunk is
+ * uploaded, computed and downloaded through a {@link ChunkPipeline}, so transfers of one chunk
+ * overlap with computation of the others. Device memory is bounded by the pipeline depth times
+ * the chunk input and output sizes, and host memory by the same amount of pinned staging memory,
+ * regardless of the input size.
+ *
+ * Direct input chunks, e.g. windows of a memory-mapped file, are uploaded straight from the source
+ * memory, heap chunks are copied into pinned staging memory first. Chunk results are downloaded
+ * into pinned memory and passed to the {@link Sink} in the input order.
+ *
+ * <pre>
+ * try (StreamingExecutor executor = new StreamingExecutor(context, 64 &lt;&lt; 20, 3);
+ *     StreamingExecutor.Source input = StreamingExecutor.Source.map(path);
+ *     FileChannel output = FileChannel.open(result, CREATE, WRITE)) {
+ *   executor.run(kernel, StreamingExecutor.elementwise(), input, Float.BYTES, Float.BYTES,
+ *       StreamingExecutor.Sink.to(output));
+ * }
+ * </pre>
+ *
+ * Executor is not thread safe.
+ *
+ * @author Viktor Gubin
+ */
+public final class StreamingExecutor implements AutoCloseable {
+
+  private final ClRuntime.Context context;
+  private final ChunkPipeline pipeline;
+  private final int chunkBytes;
+
+  /**
+   * Creates executor
+   *
+   * @param context OpenCL context of the device to execute on
+   * @param chunkBytes maximum size of input chunk in bytes
+   * @param depth pipeline depth i.e. 2 for double or 3 for triple buffering
+   */
+  public StreamingExecutor(ClRuntime.Context context, int chunkBytes, int depth) {
+    if (chunkBytes <= 0 || chunkBytes > context.getDevice().getProperties().getMaxMemAllocSize()) {
+      throw new IllegalArgumentException("Invalid chunk size " + chunkBytes);
+    }
+    this.context = context;
+    this.pipeline = new ChunkPipeline(context, depth);
+    this.chunkBytes = chunkBytes;
+  }
+
+  public int getChunkBytes() {
+    return chunkBytes;
+  }
+
+  public int getDepth() {
+    return pipeline.getDepth();
+  }
+
+  /**
+   * Returns chunk kernel binding for kernels like
+   * <code>kernel void f(global const T *in, global R *out, const int n)</code>, launched with a
+   * work item per element
+   *
+   * @return elementwise chunk kernel
+   */
+  public static ChunkKernel elementwise() {
+    return (kernel, input, output, offset, elements) -> {
+      kernel.arg(input).arg(output).arg(elements);
+      return NDRange.of(elements);
+    };
+  }
+
+  /**
+   * Executes kernel over all input chunks, returns when all chunk results are passed to the sink.
+   * Kernel arguments are bound by the chunk kernel for each chunk, and kernel must not be used
+   * concurrently
+   *
+   * @param kernel kernel to execute
+   * @param chunkKernel binds chunk arguments to the kernel
+   * @param source input
+   * @param inputElementBytes size of input element, chunks are split by whole elements
+   * @param outputElementBytes size of output element per input element
+   * @param sink chunk results consumer
+   * @return number of processed input elements
+   * @throws ExecutionException in case of OpenCL error
+   * @throws IOException when input can't be read or output can't be written
+   */
+  public long run(ClRuntime.Kernel kernel, ChunkKernel chunkKernel, Source source,
+      int inputElementBytes, int outputElementBytes, Sink sink)
+      throws ExecutionException, IOException {
+    if (inputElementBytes <= 0 || inputElementBytes > chunkBytes || outputElementBytes <= 0) {
+      throw new IllegalArgumentException("Invalid element size");
+    }
+    final int maxElements = chunkBytes / inputElementBytes;
+    if ((long) maxElements * outputElementBytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Chunk output exceeds buffer size limit");
+    }
+    try (Slots slots = new Slots(maxElements * inputElementBytes,
+        maxElements * outputElementBytes)) {
+      ChunkHandler handler = new ChunkHandler(kernel, chunkKernel, source, inputElementBytes,
+          outputElementBytes, sink, slots);
+      try {
+        pipeline.run(handler);
+      } finally {
+        // chunks in flight after a failure still use the slots and the source memory
+        pipeline.getUploadQueue().finish();
+        pipeline.getComputeQueue().finish();
+        pipeline.getDownloadQueue().finish();
+      }
+      return handler.elements;
+    } catch (UncheckedIOException exc) {
+      throw exc.getCause();
+    }
+  }
+
+  /**
+   * Releases pipeline command queues
+   */
+  @Override
+  public void close() {
+    pipeline.close();
+  }
+
+  /**
+   * Device buffers and pinned host memory of the pipeline slots
+   */
+  private final class Slots implements AutoCloseable {
+    private final ClRuntime.VideoMemBuffer[] inputs;
+    private final ClRuntime.VideoMemBuffer[] outputs;
+    private final ClRuntime.VideoMemBuffer[] pinned;
+    private final ByteBuffer[] staging;
+    private final ByteBuffer[] results;
+    private final int inputBytes;
+
+    Slots(int inputBytes, int outputBytes) {
+      final int depth = pipeline.getDepth();
+      this.inputBytes = inputBytes;
+      this.inputs = new ClRuntime.VideoMemBuffer[depth];
+      this.outputs = new ClRuntime.VideoMemBuffer[depth];
+      // staging memory is mapped on first heap chunk of the slot, results up front
+      this.pinned = new ClRuntime.VideoMemBuffer[2 * depth];
+      this.staging = new ByteBuffer[depth];
+      this.results = new ByteBuffer[depth];
+      try {
+        for (int slot = 0; slot < depth; slot++) {
+          inputs[slot] = context.createBuffer(inputBytes, CL_MEM_READ_ONLY);
+          outputs[slot] = context.createBuffer(outputBytes, CL_MEM_WRITE_ONLY);
+          pinned[depth + slot] = context.createBuffer(outputBytes,
+              CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR);
+          results[slot] = pipeline.getDownloadQueue().map(pinned[depth + slot],
+              ClRuntime.MapAccess.READ_WRITE);
+        }
+      } catch (RuntimeException | OutOfMemoryError err) {
+        close();
+        throw err;
+      }
+    }
+
+    ByteBuffer staging(int slot) {
+      if (null == staging[slot]) {
+        pinned[slot] = context.createBuffer(inputBytes, CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR);
+        staging[slot] = pipeline.getUploadQueue().map(pinned[slot], ClRuntime.MapAccess.READ_WRITE);
+      }
+      return staging[slot];
+    }
+
+    @Override
+    public void close() {
+      final int depth = pipeline.getDepth();
+      for (int slot = 0; slot < depth; slot++) {
+        unmap(pipeline.getUploadQueue(), pinned[slot], staging[slot]);
+        unmap(pipeline.getDownloadQueue(), pinned[depth + slot], results[slot]);
+        for (ClRuntime.VideoMemBuffer buffer : new ClRuntime.VideoMemBuffer[] {inputs[slot],
+            outputs[slot], pinned[slot], pinned[depth + slot]}) {
+          if (null != buffer) {
+            buffer.free();
+          }
+        }
+      }
+    }
+
+    private void unmap(ClRuntime.CommandQueue queue, ClRuntime.VideoMemBuffer buffer,
+        ByteBuffer mapped) {
+      if (null != mapped) {
+        try (ClRuntime.Event unmapped = queue.unmap(buffer, mapped)) {
+          unmapped.waitFor();
+        }
+      }
+    }
+  }
+
+  private final class ChunkHandler implements ChunkPipeline.Handler {
+    private final ClRuntime.Kernel kernel;
+    private final ChunkKernel chunkKernel;
+    private final Source source;
+    private final int inputElementBytes;
+    private final int outputElementBytes;
+    private final Sink sink;
+    private final Slots slots;
+    // source memory of the chunks in flight, must stay reachable until uploaded
+    private final ByteBuffer[] pending;
+    private final long[] offsets;
+    private final int[] counts;
+    private long elements;
+
+    ChunkHandler(ClRuntime.Kernel kernel, ChunkKernel chunkKernel, Source source,
+        int inputElementBytes, int outputElementBytes, Sink sink, Slots slots) {
+      this.kernel = kernel;
+      this.chunkKernel = chunkKernel;
+      this.source = source;
+      this.inputElementBytes = inputElementBytes;
+      this.outputElementBytes = outputElementBytes;
+      this.sink = sink;
+      this.slots = slots;
+      this.pending = new ByteBuffer[pipeline.getDepth()];
+      this.offsets = new long[pipeline.getDepth()];
+      this.counts = new int[pipeline.getDepth()];
+    }
+
+    @Override
+    public ClRuntime.Event upload(long chunk, int slot, ClRuntime.CommandQueue queue) {
+      ByteBuffer data;
+      try {
+        data = source.next(slots.inputBytes);
+      } catch (IOException exc) {
+        throw new UncheckedIOException(exc);
+      }
+      if (null == data) {
+        return null;
+      }
+      final int bytes = data.remaining();
+      if (0 == bytes || bytes > slots.inputBytes || 0 != bytes % inputElementBytes) {
+        throw new IllegalArgumentException(
+            "Chunk of " + bytes + " bytes is not a whole number of elements");
+      }
+      if (!data.isDirect()) {
+        ByteBuffer staging = slots.staging(slot);
+        staging.clear();
+        staging.put(data).flip();
+        data = staging;
+      }
+      pending[slot] = data;
+      offsets[slot] = elements;
+      counts[slot] = bytes / inputElementBytes;
+      elements += counts[slot];
+      return queue.enqueueWrite(slots.inputs[slot], 0, data);
+    }
+
+    @Override
+    public ClRuntime.Event compute(long chunk, int slot, ClRuntime.CommandQueue queue,
+        ClRuntime.Event uploaded) throws ExecutionException {
+      kernel.flush();
+      NDRange range = chunkKernel.bind(kernel, slots.inputs[slot], slots.outputs[slot],
+          offsets[slot], counts[slot]);
+      return kernel.enqueue(queue, range, uploaded);
+    }
+
+    @Override
+    public ClRuntime.Event download(long chunk, int slot, ClRuntime.CommandQueue queue,
+        ClRuntime.Event computed) {
+      ByteBuffer result = slots.results[slot];
+      result.clear();
+      result.limit(counts[slot] * outputElementBytes);
+      return queue.enqueueRead(slots.outputs[slot], 0, result, computed);
+    }
+
+    @Override
+    public void completed(long chunk, int slot) {
+      pending[slot] = null;
+      try {
+        sink.accept(offsets[slot], slots.results[slot].duplicate());
+      } catch (IOException exc) {
+        throw new UncheckedIOException(exc);
+      }
+    }
+  }
+
+  /**
+   * Binds arguments of a chunk to the kernel
+   */
+  @FunctionalInterface
+  public interface ChunkKernel {
+
+    /**
+     * Binds chunk arguments to the kernel with sequential argument index reset
+     *
+     * @param kernel kernel to bind arguments to
+     * @param input chunk input buffer
+     * @param output chunk output buffer
+     * @param offset index of the first chunk element in the whole input
+     * @param elements number of elements in the chunk
+     * @return range to launch the kernel over
+     */
+    NDRange bind(ClRuntime.Kernel kernel, ClRuntime.VideoMemBuffer input,
+        ClRuntime.VideoMemBuffer output, long offset, int elements);
+
+  }
+
+  /**
+   * Chunked input
+   */
+  public interface Source extends Closeable {
+
+    /**
+     * Returns next chunk of input, called on the pipeline thread. Returned memory must stay valid
+     * and unchanged until the chunk is completed, i.e. for the following pipeline depth calls
+     *
+     * @param maxBytes maximum chunk size in bytes
+     * @return next chunk from position to limit, or null at the end of input
+     * @throws IOException when input can't be read
+     */
+    ByteBuffer next(int maxBytes) throws IOException;
+
+    @Override
+    default void close() throws IOException {}
+
+    /**
+     * Returns source of the buffer content from its position to limit
+     *
+     * @param buffer input buffer, direct buffers are uploaded without copying
+     * @return new source
+     */
+    static Source of(ByteBuffer buffer) {
+      return of(Collections.singletonList(buffer).iterator());
+    }
+
+    /**
+     * Returns source of buffers content, each buffer is split into chunks of at most maximum
+     * chunk size, and no chunk spans two buffers
+     *
+     * @param buffers input buffers, each from its position to limit
+     * @return new source
+     */
+    static Source of(Iterator<ByteBuffer> buffers) {
+      return new Source() {
+        private ByteBuffer current;
+
+        @Override
+        public ByteBuffer next(int maxBytes) {
+          while (null == current || !current.hasRemaining()) {
+            if (!buffers.hasNext()) {
+              return null;
+            }
+            current = buffers.next().duplicate();
+          }
+          ByteBuffer result = current.duplicate();
+          result.limit(result.position() + Math.min(maxBytes, result.remaining()));
+          current.position(result.limit());
+          return result.slice();
+        }
+      };
+    }
+
+    /**
+     * Returns source of the file content, file is mapped into memory window by window, so chunks
+     * are uploaded from the page cache without copying
+     *
+     * @param file input file
+     * @return new source, must be closed
+     * @throws IOException when file can't be opened
+     */
+    static Source map(Path file) throws IOException {
+      final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+      return new Source() {
+        private long position;
+
+        @Override
+        public ByteBuffer next(int maxBytes) throws IOException {
+          long size = channel.size();
+          if (position >= size) {
+            return null;
+          }
+          long length = Math.min(maxBytes, size - position);
+          ByteBuffer result = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+          position += length;
+          return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+          channel.close();
+        }
+      };
+    }
+
+  }
+
+  /**
+   * Consumer of chunk results
+   */
+  @FunctionalInterface
+  public interface Sink {
+
+    /**
+     * Consumes chunk result, called on the pipeline thread in the input order
+     *
+     * @param offset index of the first chunk element in the whole input
+     * @param result chunk result, valid only during the call
+     * @throws IOException when result can't be written
+     */
+    void accept(long offset, ByteBuffer result) throws IOException;
+
+    /**
+     * Returns sink writing results into the channel one after another
+     *
+     * @param channel output channel
+     * @return new sink
+     */
+    static Sink to(WritableByteChannel channel) {
+      return (offset, result) -> {
+        while (result.hasRemaining()) {
+          channel.write(result);
+        }
+      };
+    }
+
+  }
+
+}
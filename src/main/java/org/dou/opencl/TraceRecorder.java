@@ -0,0 +1,295 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records commands enqueued into command queues of attached contexts and writes them as Chrome
+ * trace event JSON, which can be opened with <code>chrome://tracing</code> or Perfetto UI.
+ *
+ * Each device is a trace process, and each command queue has two tracks: host track with enqueue
+ * calls and device track with command execution intervals. Device intervals require queue
+ * profiling, which is enabled for queues created after the context is attached. Device
+ * timestamps are aligned with the host clock by the first command of each device, since OpenCL
+ * 1.x has no device to host clock mapping.
+ *
+ * @author Viktor Gubin
+ */
+public final class TraceRecorder implements CommandListener, AutoCloseable {
+
+  private static final int DEFAULT_CAPACITY = 1 << 20;
+
+  private final int capacity;
+  private final long origin;
+  private final Queue<Slice> slices;
+  private final AtomicInteger size;
+  private final AtomicInteger processes;
+  private final LongAdder dropped;
+  private final List<ClRuntime.Context> contexts;
+  private final Map<ClRuntime.Device, DeviceTrack> devices;
+  private final Map<ClRuntime.CommandQueue, Track> queues;
+  // device clock minus host clock per device
+  private final Map<ClRuntime.Device, Long> clockOffsets;
+
+  public TraceRecorder() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates trace recorder
+   *
+   * @param capacity maximum number of recorded slices, later slices are dropped
+   */
+  public TraceRecorder(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+    this.capacity = capacity;
+    this.origin = System.nanoTime();
+    this.slices = new ConcurrentLinkedQueue<>();
+    this.size = new AtomicInteger();
+    this.processes = new AtomicInteger();
+    this.dropped = new LongAdder();
+    this.contexts = new CopyOnWriteArrayList<>();
+    this.devices = new ConcurrentHashMap<>();
+    this.queues = new ConcurrentHashMap<>();
+    this.clockOffsets = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Starts recording commands of the context, enables profiling for command queues created
+   * afterwards
+   *
+   * @param context OpenCL context
+   * @return this recorder
+   */
+  public TraceRecorder attach(ClRuntime.Context context) {
+    context.setProfilingEnabled(true);
+    context.addCommandListener(this);
+    contexts.add(context);
+    return this;
+  }
+
+  @Override
+  public void enqueued(CommandInfo command) {
+    final long enqueued = System.nanoTime();
+    final ClRuntime.CommandQueue queue = command.getQueue();
+    final Track track = queues.computeIfAbsent(queue, this::newQueueTrack);
+    add(new Slice(command, track.pid, track.tid, command.getEnqueueTime() - origin,
+        enqueued - command.getEnqueueTime(), false));
+    if (queue.isProfilingEnabled()) {
+      command.getEvent().toFuture().thenAccept(event -> recordDevice(command, track, event));
+    }
+  }
+
+  private Track newQueueTrack(ClRuntime.CommandQueue queue) {
+    DeviceTrack device = devices.computeIfAbsent(queue.getContext().getDevice(),
+        d -> new DeviceTrack(processes.incrementAndGet()));
+    // host and device tracks of the queue are tid and tid + 1
+    return new Track(device.pid, 2 * device.queues.getAndIncrement() + 1);
+  }
+
+  private void recordDevice(CommandInfo command, Track track, ClRuntime.Event event) {
+    final long queued;
+    final long start;
+    final long end;
+    try {
+      queued = event.getQueuedTime();
+      start = event.getStartTime();
+      end = event.getEndTime();
+    } catch (CLRuntimeException exc) {
+      return;
+    }
+    long offset = clockOffsets.computeIfAbsent(command.getQueue().getContext().getDevice(),
+        device -> queued - command.getEnqueueTime());
+    add(new Slice(command, track.pid, track.tid + 1, start - offset - origin, end - start, true));
+  }
+
+  private void add(Slice slice) {
+    if (size.incrementAndGet() > capacity) {
+      size.decrementAndGet();
+      dropped.increment();
+    } else {
+      slices.add(slice);
+    }
+  }
+
+  /**
+   * Returns number of slices dropped because the recorder capacity was exceeded
+   *
+   * @return dropped slices
+   */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * Discards recorded slices
+   */
+  public void clear() {
+    slices.clear();
+    size.set(0);
+    dropped.reset();
+  }
+
+  /**
+   * Writes recorded trace as Chrome trace event JSON file
+   *
+   * @param file file to write into
+   * @throws IOException in case of I/O error
+   */
+  public void write(Path file) throws IOException {
+    try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      write(out);
+    }
+  }
+
+  /**
+   * Writes recorded trace as Chrome trace event JSON
+   *
+   * @param out writer to write into, not closed by this method
+   * @throws IOException in case of I/O error
+   */
+  public void write(Writer out) throws IOException {
+    BufferedWriter json = out instanceof BufferedWriter ? (BufferedWriter) out
+        : new BufferedWriter(out);
+    json.write("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[");
+    boolean first = true;
+    for (Map.Entry<ClRuntime.Device, DeviceTrack> device : devices.entrySet()) {
+      first = writeMetadata(json, first, "process_name", device.getValue().pid, 0,
+          device.getKey().getName());
+    }
+    for (Map.Entry<ClRuntime.CommandQueue, Track> queue : queues.entrySet()) {
+      Track track = queue.getValue();
+      String name = "queue " + Long.toHexString(queue.getKey().getId());
+      first = writeMetadata(json, first, "thread_name", track.pid, track.tid, name + " host");
+      first = writeMetadata(json, first, "thread_name", track.pid, track.tid + 1,
+          name + " device");
+    }
+    for (Slice slice : slices) {
+      if (!first) {
+        json.write(',');
+      }
+      first = false;
+      json.write('\n');
+      slice.write(json);
+    }
+    json.write("\n]}\n");
+    json.flush();
+  }
+
+  private static boolean writeMetadata(Writer json, boolean first, String type, int pid, int tid,
+      String name) throws IOException {
+    if (!first) {
+      json.write(',');
+    }
+    json.write("\n{\"name\":\"" + type + "\",\"ph\":\"M\",\"pid\":" + pid + ",\"tid\":" + tid
+        + ",\"args\":{\"name\":\"" + escape(name) + "\"}}");
+    return false;
+  }
+
+  static String escape(String value) {
+    StringBuilder result = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if ('"' == c || '\\' == c) {
+        result.append('\\').append(c);
+      } else if (c < 0x20) {
+        result.append(String.format("\\u%04x", (int) c));
+      } else {
+        result.append(c);
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * Stops recording commands of all attached contexts, recorded slices are kept
+   */
+  @Override
+  public void close() {
+    for (ClRuntime.Context context : contexts) {
+      context.removeCommandListener(this);
+    }
+    contexts.clear();
+  }
+
+  private static final class DeviceTrack {
+    private final int pid;
+    private final AtomicInteger queues;
+
+    DeviceTrack(int pid) {
+      this.pid = pid;
+      this.queues = new AtomicInteger();
+    }
+  }
+
+  private static final class Track {
+    private final int pid;
+    private final int tid;
+
+    Track(int pid, int tid) {
+      this.pid = pid;
+      this.tid = tid;
+    }
+  }
+
+  private static final class Slice {
+    private final String name;
+    private final CommandType type;
+    private final long size;
+    private final int pid;
+    private final int tid;
+    // nanoseconds since recorder origin
+    private final long start;
+    private final long duration;
+    private final boolean device;
+
+    Slice(CommandInfo command, int pid, int tid, long start, long duration, boolean device) {
+      this.name = command.getName();
+      this.type = command.getType();
+      this.size = CommandType.KERNEL == type ? command.getWorkItems() : command.getBytes();
+      this.pid = pid;
+      this.tid = tid;
+      this.start = start;
+      this.duration = Math.max(0L, duration);
+      this.device = device;
+    }
+
+    void write(Writer json) throws IOException {
+      json.write(String.format(Locale.ROOT,
+          "{\"name\":\"%s\",\"cat\":\"%s\",\"ph\":\"X\",\"pid\":%d,\"tid\":%d,\"ts\":%.3f,"
+              + "\"dur\":%.3f,\"args\":{\"%s\":%d}}",
+          escape(device ? name : "enqueue " + name), type.name().toLowerCase(Locale.ROOT), pid,
+          tid, start / 1E3, duration / 1E3,
+          CommandType.KERNEL == type ? "workItems" : "bytes", size));
+    }
+  }
+
+}
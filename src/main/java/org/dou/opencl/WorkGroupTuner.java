@@ -0,0 +1,244 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Kernel work-group size autotuner. Times candidate local work sizes for a kernel and a problem
+ * size, and persists the fastest one into a properties file keyed by device name, driver version,
+ * program source hash, kernel name and global work size.
+ *
+ * Kernel arguments must be bound before tuning, since kernel is executed with them. Only local
+ * sizes dividing the requested global size are timed, so kernels without global id bounds check
+ * are never launched over a padded range.
+ *
+ * @author Viktor Gubin
+ */
+public final class WorkGroupTuner {
+
+  private static final int DEFAULT_REPEATS = 5;
+  // cached when implementation defined local size is the fastest
+  private static final String DRIVER_DEFAULT = "default";
+
+  private final Path cacheFile;
+  private final int repeats;
+  private final Properties cache;
+
+  /**
+   * Creates tuner with the tuning cache stored in user home directory
+   */
+  public WorkGroupTuner() {
+    this(Paths.get(System.getProperty("user.home"), ".javagpu", "workgroup-tuning.properties"),
+        DEFAULT_REPEATS);
+  }
+
+  /**
+   * Creates tuner
+   *
+   * @param cacheFile tuning cache properties file, created when it doesn't exist
+   * @param repeats number of timed kernel executions per candidate
+   */
+  public WorkGroupTuner(Path cacheFile, int repeats) {
+    if (repeats <= 0) {
+      throw new IllegalArgumentException("Positive repeats number expected");
+    }
+    this.cacheFile = cacheFile;
+    this.repeats = repeats;
+    this.cache = new Properties();
+    if (Files.isRegularFile(cacheFile)) {
+      try (InputStream in = Files.newInputStream(cacheFile)) {
+        cache.load(in);
+      } catch (IOException exc) {
+        throw new IllegalStateException("Can not read work-group tuning cache " + cacheFile, exc);
+      }
+    }
+  }
+
+  /**
+   * Returns range with tuned local work size, tunes kernel when there is no cached result for it
+   *
+   * @param kernel kernel with bound arguments
+   * @param range range to launch kernel over, local size is ignored
+   * @return range with tuned local work size, or without local size when the implementation
+   *         defined one is the fastest
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public NDRange apply(ClRuntime.Kernel kernel, NDRange range) throws ExecutionException {
+    String tuned;
+    synchronized (cache) {
+      tuned = cache.getProperty(cacheKey(kernel, range));
+    }
+    if (null == tuned) {
+      return tune(kernel, range);
+    }
+    return range.withLocalSize(DRIVER_DEFAULT.equals(tuned) ? null : parse(tuned));
+  }
+
+  /**
+   * Times all candidate local work sizes and stores the fastest one into the tuning cache
+   *
+   * @param kernel kernel with bound arguments
+   * @param range range to launch kernel over, local size is ignored
+   * @return range with the fastest local work size
+   * @throws ExecutionException in case of OpenCL error
+   */
+  public NDRange tune(ClRuntime.Kernel kernel, NDRange range) throws ExecutionException {
+    NDRange best = range.withLocalSize((long[]) null);
+    long bestTime = time(kernel, best);
+    for (long[] local : candidates(kernel, range)) {
+      NDRange candidate = range.withLocalSize(local);
+      long elapsed;
+      try {
+        elapsed = time(kernel, candidate);
+      } catch (ExecutionException | CLRuntimeException exc) {
+        // shape is not supported for this kernel, e.g. out of local memory
+        continue;
+      }
+      if (elapsed < bestTime) {
+        best = candidate;
+        bestTime = elapsed;
+      }
+    }
+    synchronized (cache) {
+      cache.setProperty(cacheKey(kernel, range),
+          best.hasLocalSize() ? format(best) : DRIVER_DEFAULT);
+      store();
+    }
+    return best;
+  }
+
+  private long time(ClRuntime.Kernel kernel, NDRange range) throws ExecutionException {
+    ClRuntime.CommandQueue cmdQueue = kernel.getCommandQueue();
+    // warm up
+    kernel.execute(range);
+    cmdQueue.finish();
+    long result = Long.MAX_VALUE;
+    for (int i = 0; i < repeats; i++) {
+      long start = System.nanoTime();
+      kernel.execute(range);
+      cmdQueue.finish();
+      result = Math.min(result, System.nanoTime() - start);
+    }
+    return result;
+  }
+
+  /**
+   * Generates power of two local work size candidates dividing the requested global size, bounded
+   * by the kernel work-group size and device work-item sizes, with total work-group size multiple
+   * of the kernel preferred multiple
+   */
+  static List<long[]> candidates(ClRuntime.Kernel kernel, NDRange range) {
+    ClRuntime.Device device = kernel.getProgram().getContext().getDevice();
+    long[] requested = new long[range.getDimensions()];
+    for (int i = 0; i < requested.length; i++) {
+      requested[i] = range.getRequestedSize(i);
+    }
+    return candidates(requested, Math.min(kernel.getWorkGroupSize(), device.getMaxWorkGroupSize()),
+        kernel.getPreferredWorkGroupSizeMultiple(), device.getMaxWorkItemSizes());
+  }
+
+  static List<long[]> candidates(long[] requested, long maxGroup, long multiple,
+      long[] maxItems) {
+    long[] bounds = new long[requested.length];
+    for (int i = 0; i < bounds.length; i++) {
+      // padding global size would launch work items past the end of unguarded kernel buffers
+      long bound = Math.min(maxItems[i], Long.lowestOneBit(requested[i]));
+      bounds[i] = Math.max(1L, Math.min(bound, maxGroup));
+    }
+    List<long[]> result = new ArrayList<>();
+    collect(result, new long[bounds.length], 0, bounds, maxGroup, multiple);
+    return result;
+  }
+
+  private static void collect(List<long[]> result, long[] local, int dimension, long[] bounds,
+      long maxGroup, long multiple) {
+    if (dimension == local.length) {
+      long total = 1L;
+      for (long size : local) {
+        total *= size;
+      }
+      if (total <= maxGroup && (0 == total % multiple || total == maxGroup)) {
+        result.add(local.clone());
+      }
+      return;
+    }
+    for (long size = 1L; size <= bounds[dimension]; size <<= 1) {
+      local[dimension] = size;
+      collect(result, local, dimension + 1, bounds, maxGroup, multiple);
+    }
+  }
+
+  private static String cacheKey(ClRuntime.Kernel kernel, NDRange range) {
+    // device properties are queried once per device
+    DeviceProperties device = kernel.getProgram().getContext().getDevice().getProperties();
+    StringBuilder result = new StringBuilder();
+    result.append(device.getName()).append('|').append(device.getDriverVersion()).append('|')
+        .append(kernel.getProgram().getSourceHash()).append('|').append(kernel.getName())
+        .append('|');
+    for (int i = 0; i < range.getDimensions(); i++) {
+      if (i > 0) {
+        result.append('x');
+      }
+      result.append(range.getRequestedSize(i));
+    }
+    return result.toString();
+  }
+
+  private static String format(NDRange range) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < range.getDimensions(); i++) {
+      if (i > 0) {
+        result.append(',');
+      }
+      result.append(range.getLocalSize(i));
+    }
+    return result.toString();
+  }
+
+  private static long[] parse(String local) {
+    String[] parts = local.split(",");
+    long[] result = new long[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      result[i] = Long.parseLong(parts[i].trim());
+    }
+    return result;
+  }
+
+  private void store() {
+    try {
+      Path dir = cacheFile.toAbsolutePath().getParent();
+      Files.createDirectories(dir);
+      Path tmp = Files.createTempFile(dir, "tuning", ".tmp");
+      try (OutputStream out = Files.newOutputStream(tmp)) {
+        cache.store(out, "OpenCL work-group tuning cache");
+      }
+      Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException exc) {
+      throw new IllegalStateException("Can not write work-group tuning cache " + cacheFile, exc);
+    }
+  }
+
+}
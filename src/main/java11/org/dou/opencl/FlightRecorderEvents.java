@@ -0,0 +1,201 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events facade, Java 11+ version. Command events begin when the command is
+ * enqueued and end when it is complete, so they line up with the surrounding Java activity on the
+ * recording timeline, and are committed from the OpenCL driver callback thread. Device side
+ * durations are recorded when the command queue has profiling enabled.
+ *
+ * @author Viktor Gubin
+ */
+final class FlightRecorderEvents {
+
+  private static final EventType KERNEL_TYPE = EventType.getEventType(KernelLaunchEvent.class);
+  private static final EventType TRANSFER_TYPE = EventType.getEventType(TransferEvent.class);
+
+  private FlightRecorderEvents() {}
+
+  static boolean isCommandEnabled() {
+    return KERNEL_TYPE.isEnabled() || TRANSFER_TYPE.isEnabled();
+  }
+
+  static void commandEnqueued(CommandInfo command) {
+    final CommandEvent event;
+    if (CommandType.KERNEL == command.getType()) {
+      KernelLaunchEvent launch = new KernelLaunchEvent();
+      launch.kernel = command.getName();
+      launch.workItems = command.getWorkItems();
+      event = launch;
+    } else {
+      TransferEvent transfer = new TransferEvent();
+      transfer.command = command.getName();
+      transfer.bytes = command.getBytes();
+      event = transfer;
+    }
+    if (!event.isEnabled()) {
+      return;
+    }
+    event.begin();
+    event.device = command.getQueue().getContext().getDevice().getName();
+    event.enqueueDuration = System.nanoTime() - command.getEnqueueTime();
+    if (null == command.getEvent()) {
+      event.commit();
+      return;
+    }
+    final boolean profiling = command.getQueue().isProfilingEnabled();
+    command.getEvent().toFuture().whenComplete((completed, exc) -> {
+      event.end();
+      if (profiling && null != completed && event.shouldCommit()) {
+        try {
+          event.queuedDuration = completed.getStartTime() - completed.getQueuedTime();
+          event.deviceDuration = completed.getEndTime() - completed.getStartTime();
+        } catch (CLRuntimeException err) {
+          // no device timestamps
+        }
+      }
+      event.commit();
+    });
+  }
+
+  static Object beginProgramBuild() {
+    ProgramBuildEvent event = new ProgramBuildEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  static void endProgramBuild(Object event, String device, String options, boolean fromBinary,
+      boolean success) {
+    if (null != event) {
+      ProgramBuildEvent build = (ProgramBuildEvent) event;
+      build.end();
+      build.device = device;
+      build.options = options;
+      build.fromBinary = fromBinary;
+      build.success = success;
+      build.commit();
+    }
+  }
+
+  static void bufferAllocated(String device, long bytes) {
+    BufferEvent event = new BufferAllocationEvent();
+    if (event.isEnabled()) {
+      event.device = device;
+      event.bytes = bytes;
+      event.commit();
+    }
+  }
+
+  static void bufferReleased(String device, long bytes) {
+    BufferEvent event = new BufferReleaseEvent();
+    if (event.isEnabled()) {
+      event.device = device;
+      event.bytes = bytes;
+      event.commit();
+    }
+  }
+
+  @Category({"OpenCL", "Command"})
+  abstract static class CommandEvent extends Event {
+    @Label("Device")
+    String device;
+
+    @Label("Enqueue Duration")
+    @Description("Host time spent in the enqueue call")
+    @Timespan(Timespan.NANOSECONDS)
+    long enqueueDuration;
+
+    @Label("Queued Duration")
+    @Description("Device time from enqueue to start of execution, requires queue profiling")
+    @Timespan(Timespan.NANOSECONDS)
+    long queuedDuration;
+
+    @Label("Device Duration")
+    @Description("Device execution time, requires queue profiling")
+    @Timespan(Timespan.NANOSECONDS)
+    long deviceDuration;
+  }
+
+  @Name("org.dou.opencl.KernelLaunch")
+  @Label("Kernel Launch")
+  static final class KernelLaunchEvent extends CommandEvent {
+    @Label("Kernel")
+    String kernel;
+
+    @Label("Work Items")
+    long workItems;
+  }
+
+  @Name("org.dou.opencl.Transfer")
+  @Label("Memory Transfer")
+  static final class TransferEvent extends CommandEvent {
+    @Label("Command")
+    String command;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+  }
+
+  @Name("org.dou.opencl.ProgramBuild")
+  @Label("Program Build")
+  @Category({"OpenCL", "Program"})
+  static final class ProgramBuildEvent extends Event {
+    @Label("Device")
+    String device;
+
+    @Label("Options")
+    String options;
+
+    @Label("From Binary")
+    boolean fromBinary;
+
+    @Label("Success")
+    boolean success;
+  }
+
+  @Category({"OpenCL", "Memory"})
+  abstract static class BufferEvent extends Event {
+    @Label("Device")
+    String device;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+  }
+
+  @Name("org.dou.opencl.BufferAllocation")
+  @Label("Buffer Allocation")
+  static final class BufferAllocationEvent extends BufferEvent {
+  }
+
+  @Name("org.dou.opencl.BufferRelease")
+  @Label("Buffer Release")
+  static final class BufferReleaseEvent extends BufferEvent {
+  }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+class ArrayExprTest {
+
+  // code generation needs neither the owner nor the device buffer
+  private static DeviceArray array(ElementType type) {
+    return new DeviceArray(null, type, 16, null);
+  }
+
+  private static int occurrences(String text, String part) {
+    int result = 0;
+    for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + part.length())) {
+      result++;
+    }
+    return result;
+  }
+
+  @Test
+  void fusesExpressionIntoSingleKernel() {
+    DeviceArray a = array(ElementType.FLOAT);
+    DeviceArray b = array(ElementType.FLOAT);
+    String source = a.lazy().mul(b.lazy()).add(a.lazy()).toSource();
+    assertEquals(1, occurrences(source, "kernel void " + DeviceArrays.ELEMENTWISE + "("));
+    assertTrue(source.contains("global const float *in0, global const float *in1, "
+        + "global float *out)"));
+    // the same array is read once
+    assertEquals(1, occurrences(source, "= in0[i];"));
+    assertTrue(source.contains(" const float t0 = (a0) * (a1); \n"));
+    assertTrue(source.contains(" const float t1 = (t0) + (a0); \n"));
+    assertTrue(source.contains(" out[i] = (float) (t1); \n"));
+    assertFalse(source.contains("cl_khr_fp64"));
+  }
+
+  @Test
+  void sharedSubexpressionIsComputedOnce() {
+    DeviceArray a = array(ElementType.FLOAT);
+    ArrayExpr square = a.lazy().mul(a.lazy());
+    String source = square.add(square).toSource();
+    assertEquals(1, occurrences(source, "(a0) * (a0)"));
+    assertTrue(source.contains(" const float t1 = (t0) + (t0); \n"));
+  }
+
+  @Test
+  void scalarsAreKernelArguments() {
+    DeviceArray a = array(ElementType.INT);
+    String source = a.lazy().add(2).mul(3).toSource();
+    assertTrue(source.contains("const int s0, const int s1, "));
+    assertTrue(source.contains(" const int t0 = (a0) + (s0); \n"));
+    assertTrue(source.contains(" const int t1 = (t0) * (s1); \n"));
+  }
+
+  @Test
+  void comparisonsProduceInt() {
+    DeviceArray a = array(ElementType.DOUBLE);
+    DeviceArray b = array(ElementType.DOUBLE);
+    ArrayExpr lt = a.lazy().lt(b.lazy());
+    assertEquals(ElementType.INT, lt.getType());
+    String source = lt.toSource();
+    assertTrue(source.startsWith("#pragma OPENCL EXTENSION cl_khr_fp64 : enable \n"));
+    assertTrue(source.contains("global int *out)"));
+    assertTrue(source.contains("((a0) < (a1) ? 1 : 0)"));
+  }
+
+  @Test
+  void selectAndFma() {
+    DeviceArray a = array(ElementType.FLOAT);
+    DeviceArray b = array(ElementType.FLOAT);
+    String source = a.lazy().gt(b.lazy()).select(a.lazy().fma(b.lazy(), a.lazy()), b.lazy())
+        .toSource();
+    assertTrue(source.contains("fma(a0, a1, a0)"));
+    assertTrue(source.contains("0 != t0 ? t1 : a1"));
+  }
+
+  @Test
+  void rejectsInvalidOperands() {
+    DeviceArray f = array(ElementType.FLOAT);
+    DeviceArray i = array(ElementType.INT);
+    assertThrows(IllegalArgumentException.class, () -> f.lazy().add(i.lazy()));
+    assertThrows(IllegalArgumentException.class, () -> i.lazy().sqrt());
+    assertThrows(IllegalArgumentException.class, () -> i.lazy().add(0.5));
+  }
+
+}
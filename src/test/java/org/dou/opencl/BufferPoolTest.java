@@ -0,0 +1,83 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+class BufferPoolTest {
+
+  private final ContextMetrics metrics = new ContextMetrics("test", 0L);
+
+  // null buffers are never released natively, so the pool is tested without a device
+  private ClRuntime.VideoMemBuffer buffer(int capacity) {
+    return new ClRuntime.VideoMemBuffer(metrics, 0L, capacity);
+  }
+
+  @Test
+  void sizeClasses() {
+    assertEquals(8, BufferPool.shiftOf(1));
+    assertEquals(8, BufferPool.shiftOf(256));
+    assertEquals(9, BufferPool.shiftOf(257));
+    assertEquals(20, BufferPool.shiftOf(1 << 20));
+    assertEquals(30, BufferPool.shiftOf(1 << 30));
+    assertThrows(IllegalArgumentException.class, () -> BufferPool.shiftOf(0));
+    assertThrows(IllegalArgumentException.class, () -> BufferPool.shiftOf((1 << 30) + 1));
+  }
+
+  @Test
+  void rejectsForeignBuffers() {
+    BufferPool pool = new BufferPool(null, 1L << 20);
+    assertThrows(IllegalArgumentException.class, () -> pool.release(buffer(100)));
+    assertThrows(IllegalArgumentException.class, () -> pool.release(buffer(1000)));
+    assertEquals(0L, pool.getIdleBytes());
+  }
+
+  @Test
+  void reusesReleasedBuffer() {
+    BufferPool pool = new BufferPool(null, 1L << 20);
+    ClRuntime.VideoMemBuffer released = buffer(1024);
+    pool.release(released);
+    assertEquals(1024L, pool.getIdleBytes());
+    assertSame(released, pool.acquire(1000));
+    assertEquals(0L, pool.getIdleBytes());
+    assertEquals(1L, pool.getHits());
+    assertEquals(0L, pool.getMisses());
+  }
+
+  @Test
+  void keepsIdleBytesLimit() {
+    BufferPool pool = new BufferPool(null, 2048L);
+    pool.release(buffer(1024));
+    pool.release(buffer(1024));
+    pool.release(buffer(1024));
+    assertEquals(2048L, pool.getIdleBytes());
+  }
+
+  @Test
+  void closeReleasesIdleBuffers() {
+    BufferPool pool = new BufferPool(null, 1L << 20);
+    pool.release(buffer(256));
+    pool.release(buffer(4096));
+    pool.close();
+    assertEquals(0L, pool.getIdleBytes());
+    assertThrows(IllegalStateException.class, () -> pool.acquire(256));
+    // buffers returned after close are released instead of pooled
+    pool.release(buffer(256));
+    assertEquals(0L, pool.getIdleBytes());
+  }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+
+/**
+ * Base of kernel tests, runs them on the default device of the first OpenCL platform, tests using
+ * {@link #arrays()} are skipped when there is no OpenCL runtime
+ *
+ * @author Viktor Gubin
+ *
+ */
+abstract class DeviceTest {
+
+  private static ClRuntime runtime;
+  private static ClRuntime.Context context;
+  private static DeviceArrays arrays;
+  private static Throwable unavailable;
+
+  @BeforeAll
+  static void openDevice() {
+    try {
+      runtime = new ClRuntime();
+      context = runtime.getComputePlatforms().first().getDefault().createContext();
+      arrays = new DeviceArrays(context);
+    } catch (Throwable e) {
+      closeDevice();
+      unavailable = e;
+    }
+  }
+
+  /**
+   * Returns arrays of the test device, skips the calling test when there is no device
+   *
+   * @return device arrays
+   */
+  static DeviceArrays arrays() {
+    Assumptions.assumeTrue(null != arrays, () -> "No OpenCL device: " + unavailable);
+    return arrays;
+  }
+
+  @AfterAll
+  static void closeDevice() {
+    if (null != arrays) {
+      arrays.close();
+      arrays = null;
+    }
+    if (null != context) {
+      context.close();
+      context = null;
+    }
+    if (null != runtime) {
+      runtime.close();
+      runtime = null;
+    }
+  }
+
+  static float[] randomFloats(java.util.Random random, int length) {
+    float[] result = new float[length];
+    for (int i = 0; i < length; i++) {
+      result[i] = random.nextFloat() * 2 - 1;
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import org.junit.jupiter.api.Test;
+
+class GemmTest extends DeviceTest {
+
+  @Test
+  void tilingGeometry() {
+    Gemm.Tiling tiling = new Gemm.Tiling(64, 32, 16, 4, 2, 4);
+    assertEquals(16 * 16, tiling.getGroupSize());
+    // rows of both tiles are padded by one element
+    assertEquals(16L * (65 + 33) * Float.BYTES, tiling.getLocalBytes(ElementType.FLOAT));
+    assertEquals(16L * (65 + 33) * Double.BYTES, tiling.getLocalBytes(ElementType.DOUBLE));
+    assertEquals(tiling, new Gemm.Tiling(64, 32, 16, 4, 2, 4));
+    assertEquals(tiling.hashCode(), new Gemm.Tiling(64, 32, 16, 4, 2, 4).hashCode());
+    assertNotEquals(tiling, new Gemm.Tiling(64, 32, 16, 4, 2, 2));
+    for (Gemm.Tiling candidate : Gemm.Tiling.CANDIDATES) {
+      assertEquals(0, candidate.getTileM() % candidate.getWorkM());
+    }
+  }
+
+  @Test
+  void rejectsInvalidTiling() {
+    assertThrows(IllegalArgumentException.class, () -> new Gemm.Tiling(0, 32, 16, 4, 4, 4));
+    assertThrows(IllegalArgumentException.class, () -> new Gemm.Tiling(32, 32, 16, -4, 4, 4));
+    assertThrows(IllegalArgumentException.class, () -> new Gemm.Tiling(32, 30, 16, 4, 4, 2));
+    assertThrows(IllegalArgumentException.class, () -> new Gemm.Tiling(32, 32, 16, 4, 4, 3));
+    assertThrows(IllegalArgumentException.class, () -> new Gemm.Tiling(32, 32, 16, 4, 4, 32));
+    assertThrows(IllegalArgumentException.class, () -> new Gemm.Tiling(32, 32, 12, 4, 4, 8));
+  }
+
+  @Test
+  void unalignedSourceChecksBounds() {
+    String aligned = Gemm.source(ElementType.FLOAT, Gemm.Tiling.SMALL, false, false, true);
+    String unaligned = Gemm.source(ElementType.FLOAT, Gemm.Tiling.SMALL, false, false, false);
+    assertFalse(aligned.contains("cl_khr_fp64"));
+    assertFalse(aligned.contains("if (i < m && j < n)"));
+    assertTrue(unaligned.contains("if (i < m && j < n)"));
+  }
+
+  @Test
+  void gemmMatchesHost() throws ExecutionException {
+    final DeviceArrays arrays = arrays();
+    Random random = new Random(4);
+    // not multiples of any tile, so the bounds checked kernel is used
+    final int m = 37;
+    final int n = 29;
+    final int k = 41;
+    float[] a = randomFloats(random, m * k);
+    float[] b = randomFloats(random, k * n);
+    float[] c = randomFloats(random, m * n);
+    for (Gemm.Layout layout : Gemm.Layout.values()) {
+      for (boolean trans : new boolean[] {false, true}) {
+        boolean rowMajor = Gemm.Layout.ROW_MAJOR == layout;
+        // A is m x k, or k x m when transposed, B is k x n
+        int lda = rowMajor != trans ? k : m;
+        int ldb = rowMajor ? n : k;
+        int ldc = rowMajor ? n : m;
+        float[] expected = new float[m * n];
+        for (int i = 0; i < m; i++) {
+          for (int j = 0; j < n; j++) {
+            double sum = 0;
+            for (int p = 0; p < k; p++) {
+              float aip = trans ? at(a, p, i, lda, rowMajor) : at(a, i, p, lda, rowMajor);
+              sum += aip * at(b, p, j, ldb, rowMajor);
+            }
+            int index = rowMajor ? i * ldc + j : j * ldc + i;
+            expected[index] = (float) (1.5 * sum + 0.5 * c[index]);
+          }
+        }
+        try (DeviceArray da = arrays.of(a); DeviceArray db = arrays.of(b);
+            DeviceArray dc = arrays.of(c)) {
+          arrays.getGemm().gemm(ElementType.FLOAT, layout, trans, false, m, n, k, 1.5,
+              da.getBuffer(), lda, db.getBuffer(), ldb, 0.5, dc.getBuffer(), ldc);
+          float[] actual = dc.toFloatArray();
+          for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], 1e-4f, layout + " transA=" + trans);
+          }
+        }
+      }
+    }
+  }
+
+  private static float at(float[] matrix, int row, int column, int ld, boolean rowMajor) {
+    return rowMajor ? matrix[row * ld + column] : matrix[column * ld + row];
+  }
+
+}
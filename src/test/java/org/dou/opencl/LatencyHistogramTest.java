@@ -0,0 +1,87 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+  @Test
+  void empty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0L, histogram.getCount());
+    assertEquals(0L, histogram.getMin());
+    assertEquals(0L, histogram.getMax());
+    assertEquals(0D, histogram.getMean());
+    assertEquals(0L, histogram.getPercentile(99D));
+  }
+
+  @Test
+  void statistics() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long value = 1L; value <= 100L; value++) {
+      histogram.record(value);
+    }
+    assertEquals(100L, histogram.getCount());
+    assertEquals(5050L, histogram.getTotal());
+    assertEquals(1L, histogram.getMin());
+    assertEquals(100L, histogram.getMax());
+    assertEquals(50.5D, histogram.getMean(), 1E-9);
+  }
+
+  @Test
+  void percentileIsBucketUpperBound() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long value = 1L; value <= 100L; value++) {
+      histogram.record(value);
+    }
+    // the 50th value is in the [32, 63] bucket
+    assertEquals(63L, histogram.getPercentile(50D));
+    // upper bound of the last bucket is clamped to the maximum
+    assertEquals(100L, histogram.getPercentile(100D));
+    // lower bound is clamped to the minimum
+    assertEquals(1L, histogram.getPercentile(1D));
+  }
+
+  @Test
+  void negativeValuesRecordedAsZero() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5L);
+    assertEquals(0L, histogram.getMin());
+    assertEquals(0L, histogram.getPercentile(50D));
+  }
+
+  @Test
+  void copyAndReset() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(10L);
+    histogram.record(1000L);
+    LatencyHistogram copy = histogram.copy();
+    histogram.reset();
+    assertEquals(0L, histogram.getCount());
+    assertEquals(2L, copy.getCount());
+    assertEquals(1010L, copy.getTotal());
+    assertEquals(1000L, copy.getMax());
+  }
+
+  @Test
+  void invalidPercentile() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertThrows(IllegalArgumentException.class, () -> histogram.getPercentile(0D));
+    assertThrows(IllegalArgumentException.class, () -> histogram.getPercentile(100.5D));
+  }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+class NDRangeTest {
+
+  @Test
+  void roundUp() {
+    assertEquals(0L, NDRange.roundUp(0L, 64L));
+    assertEquals(64L, NDRange.roundUp(1L, 64L));
+    assertEquals(64L, NDRange.roundUp(64L, 64L));
+    assertEquals(128L, NDRange.roundUp(65L, 64L));
+  }
+
+  @Test
+  void withoutLocalSizeKeepsGlobalSize() {
+    NDRange range = NDRange.of(1000L, 3L);
+    assertFalse(range.hasLocalSize());
+    assertEquals(2, range.getDimensions());
+    assertEquals(1000L, range.getGlobalSize(0));
+    assertEquals(3L, range.getGlobalSize(1));
+    assertEquals(3000L, range.getWorkItems());
+  }
+
+  @Test
+  void localSizePadsGlobalSize() {
+    NDRange range = NDRange.of(1000L, 30L).withLocalSize(64L, 8L);
+    assertTrue(range.hasLocalSize());
+    assertEquals(1024L, range.getGlobalSize(0));
+    assertEquals(32L, range.getGlobalSize(1));
+    assertEquals(1000L, range.getRequestedSize(0));
+    assertEquals(30L, range.getRequestedSize(1));
+    assertEquals(64L, range.getLocalSize(0));
+    assertEquals(1024L * 32L, range.getWorkItems());
+  }
+
+  @Test
+  void withLocalSizePadsFromRequestedSize() {
+    NDRange range = NDRange.of(100L).withLocalSize(64L).withLocalSize(32L);
+    assertEquals(128L, range.getGlobalSize(0));
+    range = range.withLocalSize((long[]) null);
+    assertFalse(range.hasLocalSize());
+    assertEquals(100L, range.getGlobalSize(0));
+  }
+
+  @Test
+  void withLocalSizeKeepsOffset() {
+    NDRange range = NDRange.builder().global(10L).offset(5L).build().withLocalSize(4L);
+    assertEquals(5L, range.getOffset(0));
+    assertEquals(12L, range.getGlobalSize(0));
+  }
+
+  @Test
+  void nullLocalSizeAndOffset() {
+    NDRange range = NDRange.builder().global(10L, 10L).local(null).offset(null).build();
+    assertFalse(range.hasLocalSize());
+    assertEquals(0L, range.getOffset(0));
+    assertEquals(0L, range.getOffset(1));
+  }
+
+  @Test
+  void invalidRanges() {
+    assertThrows(IllegalStateException.class, () -> NDRange.builder().build());
+    assertThrows(IllegalStateException.class, () -> NDRange.builder().global(1, 2, 3, 4).build());
+    assertThrows(IllegalStateException.class, () -> NDRange.of(0L));
+    assertThrows(IllegalStateException.class, () -> NDRange.of(8L).withLocalSize(0L));
+    assertThrows(IllegalStateException.class, () -> NDRange.of(8L, 8L).withLocalSize(4L));
+    assertThrows(IllegalStateException.class,
+        () -> NDRange.builder().global(8L).offset(-1L).build());
+    assertThrows(IllegalStateException.class,
+        () -> NDRange.builder().global(8L).offset(1L, 1L).build());
+  }
+
+}
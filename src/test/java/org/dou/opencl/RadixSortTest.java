@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import org.junit.jupiter.api.Test;
+
+class RadixSortTest extends DeviceTest {
+
+  private static final float[] SPECIAL = {Float.NaN, Float.intBitsToFloat(0xffc00001),
+      Float.intBitsToFloat(0x7f800001), Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+      Float.MAX_VALUE, -Float.MAX_VALUE, Float.MIN_VALUE, -Float.MIN_VALUE, 0.0f, -0.0f, 1.0f,
+      -1.0f};
+
+  /**
+   * Host mirror of the float key mapping of the kernels
+   */
+  private static int order(float x) {
+    final int b = Float.isNaN(x) ? 0x7fc00000 : Float.floatToRawIntBits(x);
+    return b ^ (0 != (b >>> 31) ? 0xffffffff : 0x80000000);
+  }
+
+  @Test
+  void sourceMapsKeysToUnsigned() {
+    String floats = RadixSort.source(ElementType.FLOAT, null, 64);
+    assertTrue(floats.contains(" const uint b = isnan(x) ? 0x7fc00000u : as_uint(x); \n"));
+    assertTrue(floats.contains(" return b ^ (0 != (b >> 31) ? 0xffffffffu : 0x80000000u); \n"));
+    String doubles = RadixSort.source(ElementType.DOUBLE, ElementType.INT, 64);
+    assertTrue(doubles.startsWith("#pragma OPENCL EXTENSION cl_khr_fp64 : enable \n"));
+    assertTrue(doubles.contains("isnan(x) ? 0x7ff8000000000000ul : as_ulong(x)"));
+    String ints = RadixSort.source(ElementType.INT, null, 64);
+    assertTrue(ints.contains(" return b ^ 0x80000000u; \n"));
+  }
+
+  @Test
+  void floatMappingKeepsJavaOrder() {
+    float[] keys = Arrays.copyOf(SPECIAL, SPECIAL.length + 1000);
+    Random random = new Random(5);
+    for (int i = SPECIAL.length; i < keys.length; i++) {
+      keys[i] = Float.intBitsToFloat(random.nextInt());
+    }
+    float[] expected = keys.clone();
+    Arrays.sort(expected);
+    Integer[] indices = new Integer[keys.length];
+    for (int i = 0; i < indices.length; i++) {
+      indices[i] = i;
+    }
+    Arrays.sort(indices, (x, y) -> Integer.compareUnsigned(order(keys[x]), order(keys[y])));
+    for (int i = 0; i < indices.length; i++) {
+      assertEquals(0, Float.compare(expected[i], keys[indices[i]]), "at " + i);
+    }
+  }
+
+  @Test
+  void sortMatchesHost() throws ExecutionException {
+    final DeviceArrays arrays = arrays();
+    Random random = new Random(6);
+    // more than one group of items, and not a multiple of it
+    final int length = 100_003;
+    float[] keys = randomFloats(random, length);
+    System.arraycopy(SPECIAL, 0, keys, 0, SPECIAL.length);
+    int[] values = new int[length];
+    for (int i = 0; i < length; i++) {
+      values[i] = i;
+    }
+    Integer[] indices = new Integer[length];
+    for (int i = 0; i < length; i++) {
+      indices[i] = i;
+    }
+    // stable, as values of equal keys keep their order
+    Arrays.sort(indices, (x, y) -> Integer.compareUnsigned(order(keys[x]), order(keys[y])));
+    float[] expectedKeys = keys.clone();
+    Arrays.sort(expectedKeys);
+    int[] expectedValues = new int[length];
+    for (int i = 0; i < length; i++) {
+      expectedValues[i] = indices[i];
+    }
+    try (DeviceArray deviceKeys = arrays.of(keys); DeviceArray deviceValues = arrays.of(values)) {
+      arrays.getRadixSort().sort(deviceKeys, deviceValues);
+      float[] sorted = deviceKeys.toFloatArray();
+      for (int i = 0; i < length; i++) {
+        // NaN keys of any payload compare equal
+        assertEquals(0, Float.compare(expectedKeys[i], sorted[i]), "at " + i);
+      }
+      assertArrayEquals(expectedValues, deviceValues.toIntArray());
+    }
+  }
+
+}
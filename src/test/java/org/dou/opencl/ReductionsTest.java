@@ -0,0 +1,45 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import org.junit.jupiter.api.Test;
+
+class ReductionsTest extends DeviceTest {
+
+  @Test
+  void sumMatchesHost() throws ExecutionException {
+    final DeviceArrays arrays = arrays();
+    Random random = new Random(1);
+    // not a multiple of any group size, so the last group is partial
+    for (int length : new int[] {1, 255, 100_003}) {
+      float[] values = randomFloats(random, length);
+      int[] ints = new int[length];
+      double expected = 0;
+      long expectedInt = 0;
+      for (int i = 0; i < length; i++) {
+        expected += values[i];
+        ints[i] = random.nextInt(1000) - 500;
+        expectedInt += ints[i];
+      }
+      try (DeviceArray array = arrays.of(values); DeviceArray intArray = arrays.of(ints)) {
+        assertEquals(expected, array.sum(true).doubleValue(), 1e-3);
+        assertEquals(expectedInt, intArray.sum().longValue());
+      }
+    }
+  }
+
+}
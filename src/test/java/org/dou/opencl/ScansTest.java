@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import org.junit.jupiter.api.Test;
+
+class ScansTest extends DeviceTest {
+
+  // spans several blocks, so block totals are scanned recursively
+  private static final int LENGTH = 300_001;
+
+  @Test
+  void scansMatchHost() throws ExecutionException {
+    final DeviceArrays arrays = arrays();
+    Random random = new Random(2);
+    int[] values = new int[LENGTH];
+    for (int i = 0; i < LENGTH; i++) {
+      values[i] = random.nextInt(100);
+    }
+    int[] exclusive = new int[LENGTH];
+    int[] inclusive = new int[LENGTH];
+    for (int i = 0, sum = 0; i < LENGTH; i++) {
+      exclusive[i] = sum;
+      sum += values[i];
+      inclusive[i] = sum;
+    }
+    try (DeviceArray input = arrays.of(values);
+        DeviceArray output = arrays.allocate(ElementType.INT, LENGTH)) {
+      arrays.getScans().exclusiveScan(input.getBuffer(), ElementType.INT, LENGTH,
+          output.getBuffer());
+      assertArrayEquals(exclusive, output.toIntArray());
+      arrays.getScans().inclusiveScan(input.getBuffer(), ElementType.INT, LENGTH,
+          output.getBuffer());
+      assertArrayEquals(inclusive, output.toIntArray());
+    }
+  }
+
+  @Test
+  void compactMatchesHost() throws ExecutionException {
+    final DeviceArrays arrays = arrays();
+    float[] values = randomFloats(new Random(3), LENGTH);
+    float[] expected = new float[LENGTH];
+    int count = 0;
+    for (float value : values) {
+      if (value > 0.5f) {
+        expected[count++] = value;
+      }
+    }
+    try (DeviceArray input = arrays.of(values);
+        DeviceArray output = arrays.allocate(ElementType.FLOAT, LENGTH)) {
+      assertEquals(count, arrays.getScans().compact(input.getBuffer(), ElementType.FLOAT, LENGTH,
+          "x > 0.5f", output.getBuffer()));
+      assertArrayEquals(Arrays.copyOf(expected, count),
+          Arrays.copyOf(output.toFloatArray(), count));
+    }
+  }
+
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+class TraceRecorderTest {
+
+  @Test
+  void escapesJsonStrings() {
+    assertEquals("plain kernel", TraceRecorder.escape("plain kernel"));
+    assertEquals("a\\\"b\\\\c", TraceRecorder.escape("a\"b\\c"));
+    assertEquals("line\\u000anext\\u0009tab", TraceRecorder.escape("line\nnext\ttab"));
+    assertEquals("\\u0000", TraceRecorder.escape("\0"));
+    assertEquals("\u00e9\u4e2d", TraceRecorder.escape("\u00e9\u4e2d"));
+  }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2020-2023 Viktor Gubin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dou.opencl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class WorkGroupTunerTest {
+
+  private static final long[] MAX_ITEMS = {1024L, 1024L, 64L};
+
+  @Test
+  void candidatesOfPowerOfTwoSize() {
+    List<long[]> candidates = WorkGroupTuner.candidates(new long[] {1024L}, 256L, 32L, MAX_ITEMS);
+    assertEquals(4, candidates.size());
+    long expected = 32L;
+    for (long[] local : candidates) {
+      assertEquals(expected, local[0]);
+      expected <<= 1;
+    }
+  }
+
+  @Test
+  void candidatesDivideRequestedSize() {
+    long[] requested = {96L, 40L};
+    List<long[]> candidates = WorkGroupTuner.candidates(requested, 256L, 16L, MAX_ITEMS);
+    assertTrue(candidates.stream().anyMatch(local -> 32L == local[0] && 8L == local[1]));
+    for (long[] local : candidates) {
+      assertEquals(0L, requested[0] % local[0]);
+      assertEquals(0L, requested[1] % local[1]);
+      assertTrue(local[0] * local[1] <= 256L);
+      assertEquals(0L, local[0] * local[1] % 16L);
+    }
+  }
+
+  @Test
+  void noCandidatesWithoutDivisors() {
+    // only 1 divides an odd size, which is not a multiple of the preferred multiple
+    assertTrue(WorkGroupTuner.candidates(new long[] {1001L}, 256L, 32L, MAX_ITEMS).isEmpty());
+  }
+
+  @Test
+  void candidatesBoundedByDevice() {
+    List<long[]> candidates =
+        WorkGroupTuner.candidates(new long[] {1L << 20, 1L << 20, 1L << 20}, 512L, 1L, MAX_ITEMS);
+    for (long[] local : candidates) {
+      assertTrue(local[0] * local[1] * local[2] <= 512L);
+      assertTrue(local[2] <= MAX_ITEMS[2]);
+    }
+    assertTrue(candidates.stream().anyMatch(local -> 64L == local[2]));
+    assertTrue(candidates.stream().noneMatch(local -> local[2] > 64L));
+  }
+
+}